@@ -13,12 +13,18 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import org.geotools.data.DataStore;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataTableSpec;
@@ -31,12 +37,23 @@ import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.port.PortObjectSpec;
 import org.knime.core.node.port.PortType;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_shapefile.GeotoolsToDataTableMapper;
 
@@ -53,6 +70,27 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_shapefile.Geot
  */
 public abstract class AbstractReadWKTFromDatastoreNodeModel extends NodeModel {
     
+	/**
+	 * Area to read, either as "minx,miny,maxx,maxy" or as a WKT geometry, 
+	 * in the Coordinate Reference System of the layer; empty to read everything
+	 */
+	protected final SettingsModelString m_queryArea = new SettingsModelString("query area", "");
+	
+	/**
+	 * ECQL filter on the features to read; empty to read everything
+	 */
+	protected final SettingsModelString m_queryFilter = new SettingsModelString("query filter", "");
+	
+	/**
+	 * Maximum count of features to read; 0 for no limit
+	 */
+	protected final SettingsModelIntegerBounded m_queryMaxFeatures = new SettingsModelIntegerBounded(
+			"query max features", 0, 0, Integer.MAX_VALUE);
+	
+	/**
+	 * Names of the attributes to read, separated by commas; empty to read all of them
+	 */
+	protected final SettingsModelString m_columns = new SettingsModelString("columns", "");
 	
 	/**
 	 * Constructor for the node model.
@@ -96,6 +134,174 @@ public abstract class AbstractReadWKTFromDatastoreNodeModel extends NodeModel {
 	 */
 	protected abstract String getSchemaName(DataStore datastore) throws InvalidSettingsException;
 	
+    /**
+     * Returns the names of the columns to read, or an empty list to read all of them
+     */
+    protected List<String> getSelectedColumns() {
+    	List<String> res = new ArrayList<>();
+    	for (String name: m_columns.getStringValue().split(",")) {
+    		name = name.trim();
+    		if (!name.isEmpty())
+    			res.add(name);
+    	}
+    	return res;
+    }
+    
+    /**
+     * Creates the mappers converting each attribute of the features 
+     * into KNIME cells, in the order of the attributes.
+     * 
+     * @param type the type of the features read, which might be restricted to some attributes
+     * @param crs
+     * @return
+     */
+    protected GeotoolsToDataTableMapper[] createMappers(SimpleFeatureType type, CoordinateReferenceSystem crs) {
+    	
+		return type.getAttributeDescriptors().stream()
+					.map(ad -> new GeotoolsToDataTableMapper(ad, crs, getLogger()))
+					.toArray(GeotoolsToDataTableMapper[]::new);
+    }
+    
+    protected DataTableSpec createSpec(GeotoolsToDataTableMapper[] mappers) {
+    	
+		return new DataTableSpec(
+				Arrays.stream(mappers)
+				   .map(GeotoolsToDataTableMapper::getKnimeColumnSpec)
+				   .toArray(DataColumnSpec[]::new));
+    }
+    
+    /**
+     * Converts the attributes of a feature into cells.
+     */
+    protected DataCell[] convert(GeotoolsToDataTableMapper[] mappers, SimpleFeature feature) {
+    	
+		DataCell[] cells = new DataCell[mappers.length];
+		for (int i=0; i<mappers.length; i++) 
+			cells[i] = mappers[i].convert(feature.getAttribute(i));
+		return cells;
+    }
+    
+    /**
+     * Returns true if the features to read are restricted by an area, 
+     * a filter or a maximum count.
+     */
+    protected boolean hasQueryRestrictions() {
+    	return !m_queryArea.getStringValue().trim().isEmpty() 
+    			|| !m_queryFilter.getStringValue().trim().isEmpty()
+    			|| m_queryMaxFeatures.getIntValue() > 0;
+    }
+    
+    /**
+     * Creates the query passed to the datastore, so the area, filter, 
+     * maximum count of features and selection of attributes are processed
+     * by the datastore itself, using its indexes. 
+     * 
+     * @param schemaName
+     * @param type
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected Query createQuery(String schemaName, SimpleFeatureType type) throws InvalidSettingsException {
+    	
+    	final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+    	final String geometryName = type.getGeometryDescriptor().getLocalName();
+    	
+    	List<Filter> filters = new ArrayList<>();
+    	
+    	// restrict to the area
+    	final String area = m_queryArea.getStringValue().trim();
+    	if (!area.isEmpty()) {
+    		final String[] bounds = area.split(",");
+    		if (bounds.length == 4) {
+    			try {
+    				filters.add(ff.bbox(
+    						ff.property(geometryName), 
+    						new ReferencedEnvelope(
+    								Double.parseDouble(bounds[0].trim()), 
+    								Double.parseDouble(bounds[2].trim()), 
+    								Double.parseDouble(bounds[1].trim()), 
+    								Double.parseDouble(bounds[3].trim()), 
+    								type.getCoordinateReferenceSystem())
+    						));
+    			} catch (NumberFormatException e) {
+    				throw new InvalidSettingsException("invalid bounding box \""+area+"\"; expecting minx,miny,maxx,maxy");
+    			}
+    		} else {
+    			try {
+    				Geometry geom = new WKTReader().read(area);
+    				filters.add(ff.intersects(ff.property(geometryName), ff.literal(geom)));
+    			} catch (ParseException e) {
+    				throw new InvalidSettingsException("the area should be either a bounding box minx,miny,maxx,maxy or a WKT geometry: "+e.getMessage(), e);
+    			}
+    		}
+    	}
+    	
+    	// filter the attributes
+    	final String filter = m_queryFilter.getStringValue().trim();
+    	if (!filter.isEmpty()) {
+    		try {
+				filters.add(ECQL.toFilter(filter));
+			} catch (CQLException e) {
+				throw new InvalidSettingsException("invalid CQL query: "+e.getMessage(), e);
+			}
+    	}
+    	
+    	Query query = new Query(schemaName);
+    	if (filters.size() == 1)
+    		query.setFilter(filters.get(0));
+    	else if (filters.size() > 1)
+    		query.setFilter(ff.and(filters));
+    	
+    	if (m_queryMaxFeatures.getIntValue() > 0)
+    		query.setMaxFeatures(m_queryMaxFeatures.getIntValue());
+    	
+    	// select the attributes, keeping the order of the layer
+    	final List<String> selected = getSelectedColumns();
+    	if (!selected.isEmpty()) {
+    		for (String name: selected) {
+    			if (type.getDescriptor(name) == null)
+    				throw new InvalidSettingsException("there is no column "+name+" in the layer "+schemaName);
+    		}
+    		List<String> properties = new ArrayList<>(selected.size()+1);
+    		for (AttributeDescriptor descriptor: type.getAttributeDescriptors()) {
+    			final String name = descriptor.getLocalName();
+    			if (name.equals(geometryName) || selected.contains(name))
+    				properties.add(name);
+    		}
+    		query.setPropertyNames(properties);
+    	}
+    	
+    	return query;
+    }
+    
+    protected void saveQuerySettingsTo(final NodeSettingsWO settings) {
+    	
+    	m_queryArea.saveSettingsTo(settings);
+    	m_queryFilter.saveSettingsTo(settings);
+    	m_queryMaxFeatures.saveSettingsTo(settings);
+    	m_columns.saveSettingsTo(settings);
+    }
+    
+    /**
+     * Loads the settings of the query. 
+     * Workflows created before the query settings existed read everything.
+     */
+    protected void loadQuerySettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+    	
+    	for (SettingsModel model: new SettingsModel[] { m_queryArea, m_queryFilter, m_queryMaxFeatures, m_columns }) {
+    		if (settings.containsKey(model.getKey()))
+    			model.loadSettingsFrom(settings);
+    	}
+    }
+
+    protected void validateQuerySettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+    	
+    	for (SettingsModel model: new SettingsModel[] { m_queryArea, m_queryFilter, m_queryMaxFeatures, m_columns }) {
+    		if (settings.containsKey(model.getKey()))
+    			model.validateSettings(settings);
+    	}
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -118,63 +324,40 @@ public abstract class AbstractReadWKTFromDatastoreNodeModel extends NodeModel {
 			throw new RuntimeException("Unable to decode the schema "+schemaName+" from the file: "+e, e);
 		}
 		
-		List<AttributeDescriptor> descriptors = new ArrayList<>(type.getAttributeDescriptors());
+		final Query query = createQuery(schemaName, type);
+		final SimpleFeatureSource source = datastore.getFeatureSource(schemaName);
+		final SimpleFeatureCollection features = source.getFeatures(query);
 		
-		// create mappers
-		Map<AttributeDescriptor,GeotoolsToDataTableMapper> gtAttribute2mapper = 
-				descriptors.stream()
-							.collect(Collectors.toMap( 
-									ad -> ad, 
-									ad -> new GeotoolsToDataTableMapper(
-											ad, 
-											type.getCoordinateReferenceSystem(), 
-											getLogger()))
-							);
-	
-		// prepare the output
-		DataColumnSpec[] dataColSpecs = descriptors.stream()
-				   .map( d -> gtAttribute2mapper.get(d).getKnimeColumnSpec() )
-				   .toArray(DataColumnSpec[]::new);
-        DataTableSpec outputSpec = new DataTableSpec(dataColSpecs);
-        
+		// the schema might be restricted to the selected attributes
+		final GeotoolsToDataTableMapper[] mappers = createMappers(
+				features.getSchema(), 
+				type.getCoordinateReferenceSystem());
         
-        final BufferedDataContainer container = exec.createDataContainer(outputSpec);
-
+        final BufferedDataContainer container = exec.createDataContainer(createSpec(mappers));
 
-        // work for true
-		int total = datastore.getFeatureSource(schemaName).getFeatures().size();
+        // the count is only used for progress; -1 if the datastore cannot count cheaply
+		final int total = source.getCount(query);
 		
-		SimpleFeatureIterator itFeature = datastore
-												.getFeatureSource(schemaName)
-				 								.getFeatures()
-				 								.features();
+		SimpleFeatureIterator itFeature = features.features();
 		int rowIdx = 0;
 		while (itFeature.hasNext()) {
 			SimpleFeature feature = itFeature.next();
 			
-			int i=0;
-			DataCell[] cells = new DataCell[dataColSpecs.length];
-			for (AttributeDescriptor gtAtt: descriptors) {
-				
-				Object gtVal = feature.getAttribute(gtAtt.getName());
-				GeotoolsToDataTableMapper mapper = gtAttribute2mapper.get(gtAtt);
-				
-	    		
-				cells[i++] = mapper.convert(gtVal);
-			}
-
 			container.addRowToTable(
         			new DefaultRow(
 	        			new RowKey("Row " + rowIdx), 
-	        			cells
+	        			convert(mappers, feature)
 	        			)
         			);
 			if (rowIdx % 10 == 0) { 
 	            // check if the execution monitor was canceled
 	            exec.checkCanceled();
-	            exec.setProgress(
+	            if (total > 0)
+	            	exec.setProgress(
 	            		(double)rowIdx / total, 
 	            		"reading row " + rowIdx);
+	            else
+	            	exec.setMessage("reading row " + rowIdx);
         	}
     		rowIdx++;
 		}
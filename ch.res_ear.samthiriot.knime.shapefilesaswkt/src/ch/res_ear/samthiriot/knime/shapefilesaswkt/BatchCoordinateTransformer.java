@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.geometry.jts.JTS;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Transforms the coordinates of many geometries at once:
+ * the coordinates of all the geometries are packed into a single
+ * buffer, which is transformed by one call to the math transform,
+ * then written back into copies of the geometries.
+ * This avoids the creation of one intermediate object per coordinate
+ * done by {@link JTS#transform(Geometry, MathTransform)}.
+ *
+ * Can be used from several threads, as long as each thread
+ * transforms its own geometries.
+ *
+ * @author Samuel Thiriot
+ */
+public class BatchCoordinateTransformer {
+
+	/**
+	 * Collects the coordinate sequences of a geometry
+	 */
+	private static class SequenceCollector implements CoordinateSequenceFilter {
+
+		final List<CoordinateSequence> sequences;
+
+		SequenceCollector(List<CoordinateSequence> sequences) {
+			this.sequences = sequences;
+		}
+
+		@Override
+		public void filter(CoordinateSequence seq, int i) {
+			// called for each coordinate; we only need the sequence once
+			if (i == 0)
+				sequences.add(seq);
+		}
+
+		@Override
+		public boolean isDone() {
+			return false;
+		}
+
+		@Override
+		public boolean isGeometryChanged() {
+			return false;
+		}
+	}
+
+	private final MathTransform transform;
+
+	/**
+	 * True if the transform works in 2D, so coordinates can be packed by pairs
+	 */
+	private final boolean packed;
+
+	public BatchCoordinateTransformer(MathTransform transform) {
+		this.transform = transform;
+		this.packed = transform.getSourceDimensions() == 2 && transform.getTargetDimensions() == 2;
+	}
+
+	/**
+	 * Returns the transformed geometries, in the same order.
+	 * The original geometries are not modified.
+	 *
+	 * @param geometries
+	 * @return
+	 * @throws TransformException
+	 */
+	public List<Geometry> transform(List<Geometry> geometries) throws TransformException {
+
+		List<Geometry> results = new ArrayList<>(geometries.size());
+
+		if (!packed) {
+			// fall back to the transformation of each geometry
+			for (Geometry geom: geometries)
+				results.add(JTS.transform(geom, transform));
+			return results;
+		}
+
+		// copy the geometries, and collect their coordinate sequences
+		List<CoordinateSequence> sequences = new ArrayList<>(geometries.size());
+		SequenceCollector collector = new SequenceCollector(sequences);
+		int count = 0;
+		for (Geometry geom: geometries) {
+			Geometry copy = geom.copy();
+			copy.apply(collector);
+			results.add(copy);
+			count += copy.getNumPoints();
+		}
+
+		// pack the coordinates
+		double[] buffer = new double[count*2];
+		int offset = 0;
+		for (CoordinateSequence seq: sequences) {
+			for (int i=0; i<seq.size(); i++) {
+				buffer[offset++] = seq.getX(i);
+				buffer[offset++] = seq.getY(i);
+			}
+		}
+
+		// transform them all at once
+		transform.transform(buffer, 0, buffer, 0, offset/2);
+
+		// write them back
+		offset = 0;
+		for (CoordinateSequence seq: sequences) {
+			for (int i=0; i<seq.size(); i++) {
+				seq.setOrdinate(i, CoordinateSequence.X, buffer[offset++]);
+				seq.setOrdinate(i, CoordinateSequence.Y, buffer[offset++]);
+			}
+		}
+		for (Geometry geom: results)
+			geom.geometryChanged();
+
+		return results;
+	}
+
+}
@@ -89,6 +89,10 @@ public class DataTableToGeotoolsMapper {
 		return GeotoolTargetType.Ignore;
 	}
 	
+	public GeotoolTargetType getTargetType() {
+		return targetType;
+	}
+	
 	/**
 	 * returns a name compliant with the limitation
 	 * @return
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.LinearComponentExtracter;
+import org.locationtech.jts.operation.distance.DistanceOp;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.datum.Ellipsoid;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import net.sf.geographiclib.Geodesic;
+import net.sf.geographiclib.GeodesicMask;
+import net.sf.geographiclib.PolygonArea;
+
+/**
+ * Computes metric measures of geometries directly on the ellipsoid,
+ * using GeographicLib, so there is no need to reproject
+ * geometries first.
+ *
+ * If the Coordinate Reference System is geographic, the coordinates are
+ * used as they are on its ellipsoid; else the geometries are first
+ * transformed into WGS84.
+ * Once created, the calculator can be used from several threads.
+ *
+ * @author Samuel Thiriot
+ */
+public class GeodesicCalculator {
+
+	private final Geodesic geodesic;
+
+	/**
+	 * True if the coordinates are (latitude, longitude)
+	 */
+	private final boolean latitudeFirst;
+
+	/**
+	 * The transform to geographic coordinates,
+	 * or null if the coordinates are already geographic
+	 */
+	private final MathTransform toGeographic;
+
+	public GeodesicCalculator(CoordinateReferenceSystem crs) throws FactoryException {
+
+		if (crs instanceof GeographicCRS) {
+			final Ellipsoid ellipsoid = CRS.getEllipsoid(crs);
+			final double inverseFlattening = ellipsoid.getInverseFlattening();
+			this.geodesic = new Geodesic(
+					ellipsoid.getSemiMajorAxis(),
+					Double.isInfinite(inverseFlattening) || inverseFlattening == 0 ? 0 : 1/inverseFlattening
+					);
+			this.latitudeFirst = CRS.getAxisOrder(crs) == CRS.AxisOrder.NORTH_EAST;
+			this.toGeographic = null;
+		} else {
+			this.geodesic = Geodesic.WGS84;
+			this.latitudeFirst = false;
+			this.toGeographic = SpatialUtils.findMathTransform(crs, DefaultGeographicCRS.WGS84, true);
+		}
+	}
+
+	/**
+	 * Returns the geometry in geographic coordinates.
+	 *
+	 * @param geom
+	 * @return
+	 * @throws TransformException
+	 */
+	protected Geometry toGeographic(Geometry geom) throws TransformException {
+		if (toGeographic == null)
+			return geom;
+		return JTS.transform(geom, toGeographic);
+	}
+
+	protected double latitude(CoordinateSequence seq, int i) {
+		return latitudeFirst ? seq.getX(i) : seq.getY(i);
+	}
+
+	protected double longitude(CoordinateSequence seq, int i) {
+		return latitudeFirst ? seq.getY(i) : seq.getX(i);
+	}
+
+	/**
+	 * Returns the area of the ring in square meters, whatever its orientation.
+	 */
+	protected double ringArea(CoordinateSequence seq) {
+
+		final int size = seq.size();
+		if (size < 4)
+			return 0;
+
+		PolygonArea polygonArea = new PolygonArea(geodesic, false);
+		// the last point closes the ring
+		for (int i=0; i<size-1; i++)
+			polygonArea.AddPoint(latitude(seq, i), longitude(seq, i));
+
+		return Math.abs(polygonArea.Compute(false, true).area);
+	}
+
+	/**
+	 * Returns the area of the polygons of this geometry in square meters.
+	 * Other geometries (points, lines) have no area.
+	 *
+	 * @param geom
+	 * @return
+	 * @throws TransformException
+	 */
+	public double area(Geometry geom) throws TransformException {
+
+		final Geometry geographic = toGeographic(geom);
+
+		double area = 0;
+		for (int n=0; n<geographic.getNumGeometries(); n++) {
+			final Geometry part = geographic.getGeometryN(n);
+			if (!(part instanceof Polygon))
+				continue;
+			final Polygon polygon = (Polygon)part;
+			area += ringArea(polygon.getExteriorRing().getCoordinateSequence());
+			for (int h=0; h<polygon.getNumInteriorRing(); h++)
+				area -= ringArea(polygon.getInteriorRingN(h).getCoordinateSequence());
+		}
+		return area;
+	}
+
+	/**
+	 * Returns the length of the line in meters, 
+	 * following the geodesics between its successive points.
+	 */
+	protected double lineLength(CoordinateSequence seq) {
+
+		final int size = seq.size();
+		if (size < 2)
+			return 0;
+
+		double length = 0;
+		double latPrevious = latitude(seq, 0);
+		double lonPrevious = longitude(seq, 0);
+		for (int i=1; i<size; i++) {
+			final double lat = latitude(seq, i);
+			final double lon = longitude(seq, i);
+			length += geodesic.Inverse(latPrevious, lonPrevious, lat, lon, GeodesicMask.DISTANCE).s12;
+			latPrevious = lat;
+			lonPrevious = lon;
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the length in meters of the lines of this geometry, 
+	 * including the perimeter of polygons (both exterior and interior rings).
+	 * Points have no length.
+	 *
+	 * @param geom
+	 * @return
+	 * @throws TransformException
+	 */
+	public double length(Geometry geom) throws TransformException {
+
+		final Geometry geographic = toGeographic(geom);
+
+		double length = 0;
+		for (Object line: LinearComponentExtracter.getLines(geographic))
+			length += lineLength(((LineString)line).getCoordinateSequence());
+		return length;
+	}
+
+	/**
+	 * Returns the distance in meters between two geometries.
+	 * The closest points of the geometries are searched in geographic
+	 * coordinates, then the geodesic distance between them is computed; 
+	 * this is exact for points, and a close approximation for other geometries.
+	 * Returns NaN if one of the geometries is empty.
+	 *
+	 * @param geom1
+	 * @param geom2
+	 * @return
+	 * @throws TransformException
+	 */
+	public double distance(Geometry geom1, Geometry geom2) throws TransformException {
+
+		if (geom1.isEmpty() || geom2.isEmpty())
+			return Double.NaN;
+
+		final Geometry geographic1 = toGeographic(geom1);
+		final Geometry geographic2 = toGeographic(geom2);
+
+		final Coordinate[] closest = DistanceOp.nearestPoints(geographic1, geographic2);
+		if (closest[0].equals2D(closest[1]))
+			return 0;
+
+		final double lat1 = latitudeFirst ? closest[0].x : closest[0].y;
+		final double lon1 = latitudeFirst ? closest[0].y : closest[0].x;
+		final double lat2 = latitudeFirst ? closest[1].x : closest[1].y;
+		final double lon2 = latitudeFirst ? closest[1].y : closest[1].x;
+
+		return geodesic.Inverse(lat1, lon1, lat2, lon2, GeodesicMask.DISTANCE).s12;
+	}
+
+}
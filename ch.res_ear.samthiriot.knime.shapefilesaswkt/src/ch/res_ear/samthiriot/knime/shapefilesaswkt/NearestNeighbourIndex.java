@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * Spatial index to find the k nearest neighbours of geometries,
+ * with a best first search in a STRtree.
+ *
+ * Geometries are first added with an associated item; once built,
+ * the index is only read without lock, so it can be queried from several threads.
+ *
+ * @author Samuel Thiriot
+ *
+ * @param <T> the type of the items associated with the geometries
+ */
+public class NearestNeighbourIndex<T> {
+
+	/**
+	 * A neighbour found in the index, with its distance
+	 * to the geometry searched for.
+	 */
+	public static class Neighbour<T> {
+
+		public final Geometry geometry;
+		public final T item;
+		public final double distance;
+		
+		/**
+		 * Order of insertion in the index, used to sort neighbours at the same distance
+		 */
+		private final int order;
+
+		private Neighbour(Geometry geometry, T item, double distance, int order) {
+			this.geometry = geometry;
+			this.item = item;
+			this.distance = distance;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * What is actually stored in the tree
+	 */
+	private static class Entry<T> {
+
+		final Geometry geometry;
+		final T item;
+		final int order;
+
+		Entry(Geometry geometry, T item, int order) {
+			this.geometry = geometry;
+			this.item = item;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * A node or an entry waiting to be explored during a search,
+	 * with the minimum distance of its content to the geometry searched for
+	 */
+	private static class Candidate {
+
+		final Object boundable;
+		final double distance;
+
+		Candidate(Object boundable, double distance) {
+			this.boundable = boundable;
+			this.distance = distance;
+		}
+	}
+
+	private final STRtree tree = new STRtree();
+	private ReadOnlySTRtree readTree = null;
+	private int size = 0;
+	private boolean built = false;
+
+	public NearestNeighbourIndex() {
+
+	}
+
+	/**
+	 * Adds a geometry and its item to the index.
+	 *
+	 * @param geometry
+	 * @param item
+	 */
+	public void add(Geometry geometry, T item) {
+		if (built)
+			throw new IllegalStateException("cannot add geometries to the index once it was built");
+		tree.insert(geometry.getEnvelopeInternal(), new Entry<T>(geometry, item, size++));
+	}
+
+	/**
+	 * Builds the index. Called once all the geometries were added,
+	 * and before querying from several threads.
+	 */
+	public void build() {
+		readTree = new ReadOnlySTRtree(tree);
+		built = true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the k nearest neighbours of the geometry,
+	 * sorted by increasing distance. If maxDistance is positive,
+	 * the neighbours further than this distance are ignored,
+	 * so less than k neighbours might be returned.
+	 * Neighbours at the same distance are sorted in the order they were added; 
+	 * when several neighbours are at the distance of the k-th one, 
+	 * the first ones added are kept, so the result does not depend on the tree.
+	 *
+	 * @param geometry
+	 * @param k
+	 * @param maxDistance
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Neighbour<T>> nearest(Geometry geometry, int k, double maxDistance) {
+
+		if (!built)
+			throw new IllegalStateException("the index should be built before searching for neighbours");
+		if (k <= 0)
+			throw new IllegalArgumentException("the count of neighbours should be positive");
+
+		if (size == 0)
+			return Collections.emptyList();
+
+		final Envelope envelope = geometry.getEnvelopeInternal();
+
+		// best first search: the nodes are explored by increasing distance of their envelope,
+		// until the next candidate is further than the k-th neighbour found, 
+		// so all the neighbours at the distance of the k-th one are found
+		PriorityQueue<Candidate> queue = new PriorityQueue<>(
+				Comparator.comparingDouble((Candidate c) -> c.distance));
+		final AbstractNode root = readTree.getRoot();
+		queue.add(new Candidate(root, envelope.distance((Envelope)root.getBounds())));
+
+		List<Neighbour<T>> neighbours = new ArrayList<>(k);
+		while (!queue.isEmpty()) {
+			final Candidate candidate = queue.poll();
+			if (neighbours.size() >= k && candidate.distance > neighbours.get(k-1).distance)
+				break;
+			if (maxDistance > 0 && candidate.distance > maxDistance)
+				break;
+
+			if (candidate.boundable instanceof Entry) {
+				final Entry<T> entry = (Entry<T>)candidate.boundable;
+				// the entries are found by increasing distance
+				neighbours.add(new Neighbour<T>(entry.geometry, entry.item, candidate.distance, entry.order));
+				continue;
+			}
+
+			for (Object child: ((AbstractNode)candidate.boundable).getChildBoundables()) {
+				if (child instanceof AbstractNode) {
+					queue.add(new Candidate(child, envelope.distance((Envelope)((AbstractNode)child).getBounds())));
+				} else {
+					final Entry<T> entry = (Entry<T>)((ItemBoundable)child).getItem();
+					queue.add(new Candidate(entry, geometry.distance(entry.geometry)));
+				}
+			}
+		}
+
+		// sort by distance, then in the order of insertion
+		neighbours.sort(Comparator.<Neighbour<T>>comparingDouble(n -> n.distance)
+							.thenComparingInt(n -> n.order));
+		return neighbours.size() > k ? new ArrayList<>(neighbours.subList(0, k)) : neighbours;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.Boundable;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * Read only view of a STRtree, which can be queried from several threads
+ * without any lock. The queries of the STRtree itself call its synchronized
+ * build method each time, so parallel queries wait for each other.
+ *
+ * The tree is built when the view is created, and should not be modified after.
+ *
+ * @author Samuel Thiriot
+ */
+public class ReadOnlySTRtree {
+
+	private final AbstractNode root;
+
+	/**
+	 * Builds the tree, and computes the bounds of all its nodes,
+	 * which are else computed lazily during the first queries.
+	 */
+	public ReadOnlySTRtree(STRtree tree) {
+		this.root = tree.getRoot();
+		computeBounds(root);
+	}
+
+	private static void computeBounds(AbstractNode node) {
+		node.getBounds();
+		for (Object child: node.getChildBoundables()) {
+			if (child instanceof AbstractNode)
+				computeBounds((AbstractNode)child);
+		}
+	}
+
+	/**
+	 * Returns the root of the tree, to explore it without lock
+	 */
+	public AbstractNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns the items whose envelope intersects this envelope,
+	 * in no specific order.
+	 */
+	public List<Object> query(Envelope searchEnv) {
+
+		List<Object> found = new ArrayList<>();
+		if (root.isEmpty() || !((Envelope)root.getBounds()).intersects(searchEnv))
+			return found;
+
+		Deque<AbstractNode> pending = new ArrayDeque<>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			final AbstractNode node = pending.pop();
+			for (Object o: node.getChildBoundables()) {
+				final Boundable child = (Boundable)o;
+				if (!((Envelope)child.getBounds()).intersects(searchEnv))
+					continue;
+				if (child instanceof AbstractNode)
+					pending.push((AbstractNode)child);
+				else
+					found.add(((ItemBoundable)child).getItem());
+			}
+		}
+		return found;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.node.NodeLogger;
+import org.opengis.referencing.FactoryException;
+
+/**
+ * A bounded cache for the costly referencing objects, such as
+ * the Coordinate Reference Systems decoded from the EPSG database
+ * or the math transforms between them.
+ * When full, the least recently used entry is removed.
+ * Can be used from several threads; the hits and misses are counted
+ * so the efficiency of the cache can be checked in the logs.
+ *
+ * @author Samuel Thiriot
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached objects
+ */
+public class ReferencingCache<K,V> {
+
+	/**
+	 * Creates the object to cache for a key
+	 */
+	public interface ILoader<K,V> {
+		V load(K key) throws FactoryException;
+	}
+
+	private static final NodeLogger LOGGER = NodeLogger.getLogger(ReferencingCache.class);
+
+	private final String name;
+	private final Map<K,V> entries;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	public ReferencingCache(String name, final int maxSize) {
+		this.name = name;
+		this.entries = new LinkedHashMap<K,V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached object for this key, or creates it with the loader.
+	 * Failures are not cached.
+	 *
+	 * @param key
+	 * @param loader
+	 * @return
+	 * @throws FactoryException
+	 */
+	public V get(K key, ILoader<K,V> loader) throws FactoryException {
+
+		synchronized (entries) {
+			V value = entries.get(key);
+			if (value != null) {
+				hits.incrementAndGet();
+				return value;
+			}
+		}
+
+		// load outside of the lock, so other threads can still read the cache
+		misses.incrementAndGet();
+		V value = loader.load(key);
+
+		synchronized (entries) {
+			entries.put(key, value);
+		}
+		LOGGER.debug(this);
+		return value;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name+" cache: "+size()+" entries, "+getHits()+" hits, "+getMisses()+" misses";
+	}
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.feature.simple.SimpleFeatureImpl;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.identity.FeatureIdImpl;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataTableSpec;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper.GeotoolTargetType;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.RowAndGeometry;
+
+/**
+ * Exposes the rows of a KNIME table as geotools features,
+ * so ECQL filters and expressions can be evaluated in memory
+ * without storing the table into a shapefile first.
+ *
+ * The feature type contains the geometry, the row id and
+ * every other column of the table with its original name.
+ * Once created, the adapter can be used from several threads.
+ *
+ * @author Samuel Thiriot
+ */
+public class RowFeatureAdapter {
+
+	public static final String ATTRIBUTE_NAME_ROWID = "rowid";
+
+	private final SimpleFeatureType type;
+
+	/**
+	 * Indices of the columns exposed as attributes,
+	 * in the same order as the mappers
+	 */
+	private final int[] idxColumns;
+	private final DataTableToGeotoolsMapper[] mappers;
+
+	private final boolean addRowid;
+
+	public RowFeatureAdapter(
+			DataTableSpec spec,
+			String featureName,
+			CoordinateReferenceSystem crs,
+			IWarningWriter warnWriter) {
+
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName(featureName);
+        builder.setCRS(crs);
+        builder.add(SpatialUtils.GEOMETRY_COLUMN_NAME, Geometry.class);
+
+        // keep the rowid attribute for the queries written for the former shapefile
+        addRowid = !spec.containsName(ATTRIBUTE_NAME_ROWID);
+        if (addRowid)
+        	builder.add(ATTRIBUTE_NAME_ROWID, String.class);
+
+        List<Integer> indices = new ArrayList<>(spec.getNumColumns());
+        List<DataTableToGeotoolsMapper> columnMappers = new ArrayList<>(spec.getNumColumns());
+        for (int i=0; i<spec.getNumColumns(); i++) {
+        	final DataColumnSpec colspec = spec.getColumnSpec(i);
+        	if (colspec.getName().equals(SpatialUtils.GEOMETRY_COLUMN_NAME))
+        		continue;
+        	DataTableToGeotoolsMapper mapper = new DataTableToGeotoolsMapper(warnWriter, colspec);
+        	mapper.addAttributeForSpec(builder);
+        	indices.add(i);
+        	columnMappers.add(mapper);
+        }
+
+        this.type = builder.buildFeatureType();
+        this.idxColumns = indices.stream().mapToInt(Integer::intValue).toArray();
+        this.mappers = columnMappers.toArray(new DataTableToGeotoolsMapper[columnMappers.size()]);
+	}
+
+	public SimpleFeatureType getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the value of the cell as expected by geotools.
+	 * Unlike the shapefile export, long strings are not truncated.
+	 */
+	private Object getValue(DataTableToGeotoolsMapper mapper, DataCell cell) {
+		if (cell.isMissing())
+			return null;
+		if (mapper.targetType == GeotoolTargetType.Ignore)
+			return cell.toString();
+		return mapper.getValue(cell);
+	}
+
+	/**
+	 * Creates a feature for this row and its already decoded geometry.
+	 * The values are not validated against the type,
+	 * as they were converted according to it.
+	 *
+	 * @param rowAndGeom
+	 * @return
+	 */
+	public SimpleFeature createFeature(RowAndGeometry rowAndGeom) {
+
+		final int offset = addRowid ? 2 : 1;
+		Object[] values = new Object[offset + idxColumns.length];
+		values[0] = rowAndGeom.geometry;
+		final String rowid = rowAndGeom.row.getKey().getString();
+		if (addRowid)
+			values[1] = rowid;
+		for (int i=0; i<idxColumns.length; i++)
+			values[offset+i] = getValue(mappers[i], rowAndGeom.row.getCell(idxColumns[i]));
+
+		return new SimpleFeatureImpl(values, type, new FeatureIdImpl(rowid), false);
+	}
+
+}
@@ -69,6 +69,13 @@ public class ShapefileAsWKTNodePlugin extends Plugin {
         				e);
         }
         
+        // initialize the EPSG database in background, so the first node using it is not stalled
+        Thread warmUp = new Thread(
+        		() -> SpatialUtils.warmUpReferencing(SpatialUtils.getWarmUpCRSCodes()), 
+        		"spatial referencing warm-up");
+        warmUp.setDaemon(true);
+        warmUp.setPriority(Thread.MIN_PRIORITY);
+        warmUp.start();
     }
 
     /**
@@ -106,6 +113,8 @@ public class ShapefileAsWKTNodePlugin extends Plugin {
 			
 			prefs.setDefault(PreferenceConstants.P_DIRECTORY_CACHE, f2.getAbsolutePath());
 		}
+		prefs.setDefault(PreferenceConstants.P_PARALLEL_THREADS, 0);
+		prefs.setDefault(PreferenceConstants.P_WARMUP_CRS, SpatialUtils.DEFAULT_WARMUP_CRS);
 		return prefs;
 	}
 
@@ -16,7 +16,11 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -24,6 +28,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 import org.geotools.data.DataStore;
 import org.geotools.data.collection.ListFeatureCollection;
@@ -38,22 +48,33 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.feature.type.BasicFeatureTypes;
 import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.referencing.CRS;
+import org.geotools.referencing.ReferencingFactoryFinder;
 import org.geotools.util.factory.GeoTools;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.data.property.ColorAttr;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
 import org.knime.core.util.FileUtil;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.Filter;
@@ -61,7 +82,10 @@ import org.opengis.filter.FilterFactory2;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.data.GeometryCell;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.data.GeometryValue;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.preferences.PreferenceConstants;
 
 // see http://docs.geotools.org/latest/userguide/tutorial/feature/csv2shp.html
@@ -95,13 +119,31 @@ public class SpatialUtils {
 
 	}
 	
+	/**
+	 * Count of Coordinate Reference Systems and math transforms kept in cache
+	 */
+	public static final int REFERENCING_CACHE_SIZE = 64;
+	
+	/**
+	 * The Coordinate Reference Systems already decoded, 
+	 * from their code ("code:EPSG:4326") or their WKT ("wkt:...")
+	 */
+	public static final ReferencingCache<String,CoordinateReferenceSystem> CACHE_CRS = 
+			new ReferencingCache<>("CRS", REFERENCING_CACHE_SIZE);
+
+	/**
+	 * The math transforms already found between two Coordinate Reference Systems
+	 */
+	public static final ReferencingCache<List<Object>,MathTransform> CACHE_TRANSFORMS = 
+			new ReferencingCache<>("math transforms", REFERENCING_CACHE_SIZE);
+	
 	public static CoordinateReferenceSystem getCRSforString(String s) {
 		
 		if (s == null || s.equalsIgnoreCase("null"))
 			throw new IllegalArgumentException("No CRS provided");
 			
 		try {
-			return CRS.decode(s);
+			return CACHE_CRS.get("code:"+s, k -> CRS.decode(s));
 		} catch (FactoryException e1) {
 			e1.printStackTrace();
 			throw new IllegalArgumentException("unable to decode CRS from string: "+s);
@@ -113,6 +155,37 @@ public class SpatialUtils {
 		}
 	}
 	
+	/**
+	 * Decodes a Coordinate Reference System from its WKT, 
+	 * or returns it from the cache if it was already decoded.
+	 * 
+	 * @param wkt
+	 * @return
+	 * @throws FactoryException
+	 */
+	public static CoordinateReferenceSystem getCRSforWKT(String wkt) throws FactoryException {
+		return CACHE_CRS.get("wkt:"+wkt, k -> CRS.parseWKT(wkt));
+	}
+	
+	/**
+	 * Finds the math transform between two Coordinate Reference Systems, 
+	 * or returns it from the cache if it was already found.
+	 * 
+	 * @param source
+	 * @param target
+	 * @param lenient
+	 * @return
+	 * @throws FactoryException
+	 */
+	public static MathTransform findMathTransform(
+						CoordinateReferenceSystem source, 
+						CoordinateReferenceSystem target, 
+						boolean lenient) throws FactoryException {
+		return CACHE_TRANSFORMS.get(
+				Arrays.asList(source, target, lenient), 
+				k -> CRS.findMathTransform(source, target, lenient));
+	}
+	
 	/**
 	 * Takes a column of a sample supposed to be in WKT format, 
 	 * and tries to detect using the 50 first lines 
@@ -148,7 +221,7 @@ public class SpatialUtils {
         
         	Geometry g;
 			try {
-				g = reader.read(cellGeom.toString());
+				g = readGeometry(cellGeom, reader);
 				foundGeometries.add(g);
 			} catch (ParseException e) {
 				e.printStackTrace();
@@ -295,7 +368,7 @@ public class SpatialUtils {
             	
             	// add geometry
             	try {
-    				Geometry geom = reader.read(cellGeom.toString());
+    				Geometry geom = readGeometry(cellGeom, reader);
     				geometryConsumer.accept(
     						new RowAndGeometry(geom, row));
 
@@ -316,6 +389,629 @@ public class SpatialUtils {
 		
 	}
 
+	/**
+	 * Computes the rows resulting from a geometry and its row. 
+	 * Several threads might call the same mapper in parallel.
+	 */
+	public interface IRowAndGeometryMapper {
+	    void apply(RowAndGeometry rowAndGeom, Consumer<DataRow> output) 
+	    		throws CanceledExecutionException, InvalidSettingsException;
+	}
+	
+	/**
+	 * Computes the rows resulting from a chunk of geometries and their rows, 
+	 * so the processing of several geometries can be batched together. 
+	 * Several threads might call the same mapper in parallel, each with its own chunk.
+	 */
+	public interface IGeometryChunkMapper {
+	    void apply(List<RowAndGeometry> chunk, Consumer<DataRow> output) 
+	    		throws CanceledExecutionException, InvalidSettingsException;
+	}
+	
+	/**
+	 * Adapts a mapper processing geometries one by one to chunks.
+	 */
+	private static IGeometryChunkMapper toChunkMapper(final IRowAndGeometryMapper mapper) {
+		return (chunk, output) -> {
+			for (RowAndGeometry rowAndGeom: chunk)
+				mapper.apply(rowAndGeom, output);
+		};
+	}
+	
+	/**
+	 * Count of rows processed together by one thread
+	 */
+	public static final int PARALLEL_CHUNK_SIZE = 1000;
+	
+	/**
+	 * Returns the count of threads to use for parallel processing, 
+	 * as defined in the preferences.
+	 * 
+	 * @return
+	 */
+	public static int getParallelThreadsCount() {
+		int threads = 0;
+		try {
+			threads = ShapefileAsWKTNodePlugin.getDefault().getPreferenceStore().getInt(PreferenceConstants.P_PARALLEL_THREADS);
+		} catch (RuntimeException e) {
+			// no preferences available; use the default
+		}
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		return threads;
+	}
+
+	/**
+	 * Coordinate Reference Systems decoded by default when the plugin starts
+	 */
+	public static final String DEFAULT_WARMUP_CRS = "EPSG:4326,EPSG:3857,EPSG:2056";
+	
+	/**
+	 * Returns the codes of the Coordinate Reference Systems to decode 
+	 * when the plugin starts, as defined in the preferences.
+	 * 
+	 * @return
+	 */
+	public static List<String> getWarmUpCRSCodes() {
+		String codes = DEFAULT_WARMUP_CRS;
+		try {
+			codes = ShapefileAsWKTNodePlugin.getDefault().getPreferenceStore().getString(PreferenceConstants.P_WARMUP_CRS);
+		} catch (RuntimeException e) {
+			// no preferences available; use the default
+		}
+		List<String> res = new ArrayList<>();
+		if (codes == null)
+			return res;
+		for (String code: codes.split(",")) {
+			code = code.trim();
+			if (!code.isEmpty())
+				res.add(code);
+		}
+		return res;
+	}
+	
+	/**
+	 * Initializes the referencing factories, including the EPSG database 
+	 * and the AUTO authority, and decodes these Coordinate Reference Systems
+	 * so they are already in cache when nodes need them. 
+	 * This takes several seconds on the first call, so it is called 
+	 * in background when the plugin starts. 
+	 * Errors are only logged. Nothing is done if there is no code.
+	 * 
+	 * @param codes
+	 */
+	public static void warmUpReferencing(Collection<String> codes) {
+		
+		if (codes.isEmpty())
+			return;
+		
+		final NodeLogger logger = NodeLogger.getLogger(SpatialUtils.class);
+		
+		final long start = System.currentTimeMillis();
+		try {
+			ReferencingFactoryFinder.getAuthorityNames();
+			ReferencingFactoryFinder.getCRSAuthorityFactory("AUTO", null);
+		} catch (RuntimeException e) {
+			logger.warn("unable to initialize the referencing factories: "+e.getMessage(), e);
+			return;
+		}
+		final long factories = System.currentTimeMillis() - start;
+		
+		for (String code: codes) {
+			try {
+				getCRSforString(code);
+			} catch (IllegalArgumentException e) {
+				logger.warn("unable to decode the Coordinate Reference System "+code+": "+e.getMessage());
+			}
+		}
+		
+		logger.info(
+				"referencing initialized in "+(System.currentTimeMillis() - start)+"ms "+
+				"(factories: "+factories+"ms, "+codes.size()+" Coordinate Reference Systems: "+
+				(System.currentTimeMillis() - start - factories)+"ms)");
+	}
+	
+	/**
+	 * Decodes every cell of the geometry column of the sample
+	 * and passes it to the mapper, using as many threads as defined 
+	 * in the preferences. 
+	 * 
+	 * @see #applyToEachGeometryParallel(BufferedDataTable, Consumer, ExecutionMonitor, int, int, IRowAndGeometryMapper)
+	 */
+	public static void applyToEachGeometryParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						IRowAndGeometryMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		applyToEachGeometryParallel(
+				sample, 
+				output, 
+				exec, 
+				getParallelThreadsCount(), 
+				PARALLEL_CHUNK_SIZE, 
+				mapper);
+	}
+	
+	/**
+	 * Same as {@link #applyToEachGeometryParallel(BufferedDataTable, Consumer, ExecutionMonitor, IRowAndGeometryMapper)}, 
+	 * but the rows with a missing geometry are also passed to the mapper, with a null geometry, 
+	 * so they can be kept in the output. 
+	 */
+	public static void applyToEachRowParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						IRowAndGeometryMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		applyToEachGeometryChunkParallel(
+				sample, 
+				output, 
+				exec, 
+				getParallelThreadsCount(), 
+				PARALLEL_CHUNK_SIZE, 
+				toChunkMapper(mapper),
+				true);
+	}
+	
+	/**
+	 * Decodes every cell of the geometry column of the sample, 
+	 * and passes it to the mapper. 
+	 * The rows are read by chunks which are decoded and mapped in parallel, 
+	 * each thread using its own WKT reader. The resulting rows are passed
+	 * to the output in the original order of the rows, from the calling thread only, 
+	 * so the output might be a {@link org.knime.core.node.BufferedDataContainer}. 
+	 * Rows with a missing geometry are skipped, as in 
+	 * {@link #applyToEachGeometry(BufferedDataTable, IRowAndGeometryConsumer)}.
+	 * 
+	 * @param sample
+	 * @param output receives the rows in order
+	 * @param exec used for progress and cancellation
+	 * @param threads count of threads
+	 * @param chunkSize count of rows processed together
+	 * @param mapper
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 */
+	public static void applyToEachGeometryParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						int threads,
+						int chunkSize,
+						IRowAndGeometryMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		applyToEachGeometryChunkParallel(
+				sample, 
+				output, 
+				exec, 
+				threads, 
+				chunkSize, 
+				toChunkMapper(mapper));
+	}
+	
+	/**
+	 * Decodes every cell of the geometry column of the sample 
+	 * and passes the geometries to the mapper by chunks, using as many threads as defined 
+	 * in the preferences. 
+	 * 
+	 * @see #applyToEachGeometryChunkParallel(BufferedDataTable, Consumer, ExecutionMonitor, int, int, IGeometryChunkMapper)
+	 */
+	public static void applyToEachGeometryChunkParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						IGeometryChunkMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		applyToEachGeometryChunkParallel(
+				sample, 
+				output, 
+				exec, 
+				getParallelThreadsCount(), 
+				PARALLEL_CHUNK_SIZE, 
+				mapper);
+	}
+	
+	/**
+	 * Same as {@link #applyToEachGeometryParallel(BufferedDataTable, Consumer, ExecutionMonitor, int, int, IRowAndGeometryMapper)}, 
+	 * but each chunk of decoded geometries is passed at once to the mapper. 
+	 * 
+	 * @param sample
+	 * @param output receives the rows in order
+	 * @param exec used for progress and cancellation
+	 * @param threads count of threads
+	 * @param chunkSize count of rows processed together
+	 * @param mapper
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 */
+	public static void applyToEachGeometryChunkParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						int threads,
+						int chunkSize,
+						IGeometryChunkMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		applyToEachGeometryChunkParallel(sample, output, exec, threads, chunkSize, mapper, false);
+	}
+	
+	/**
+	 * @param withMissing if true, the rows with a missing geometry are passed 
+	 * 		to the mapper with a null geometry instead of being skipped
+	 */
+	private static void applyToEachGeometryChunkParallel(
+						BufferedDataTable sample, 
+						Consumer<DataRow> output,
+						ExecutionMonitor exec,
+						int threads,
+						int chunkSize,
+						IGeometryChunkMapper mapper,
+						boolean withMissing
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		final int idxColGeom = sample.getDataTableSpec().findColumnIndex(GEOMETRY_COLUMN_NAME);
+		final double total = sample.size();
+		
+		// WKT readers are not thread safe
+		final ThreadLocal<WKTReader> readers = ThreadLocal.withInitial(
+				() -> new WKTReader(JTSFactoryFinder.getGeometryFactory( null )));
+
+		// limit the count of chunks waiting, so we do not load the entire table in memory
+		final int maxPending = threads * 2;
+		Deque<Future<List<DataRow>>> pending = new ArrayDeque<>(maxPending);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CloseableRowIterator itRow = sample.iterator();
+		long done = 0;
+		try {
+			List<DataRow> chunk = new ArrayList<>(chunkSize);
+	    	while (itRow.hasNext()) {
+	    		chunk.add(itRow.next());
+	    		if (chunk.size() >= chunkSize || !itRow.hasNext()) {
+	    			final List<DataRow> rows = chunk;
+	    			pending.add(executor.submit(() -> mapChunk(rows, idxColGeom, readers.get(), mapper, withMissing)));
+	    			done += rows.size();
+	    			chunk = new ArrayList<>(chunkSize);
+	    			
+	    			// store the chunks already processed
+	    			while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+	    				waitForChunk(pending.poll()).forEach(output);
+	    			}
+    				exec.checkCanceled();
+    				exec.setProgress(done/total, "processing row "+done);
+	    		}
+	    	}
+	    	// store the last chunks
+	    	while (!pending.isEmpty()) {
+	    		waitForChunk(pending.poll()).forEach(output);
+	    		exec.checkCanceled();
+	    	}
+		} finally {
+			itRow.close();
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Decodes the geometry of every row coming from a streamed input, 
+	 * passes it to the mapper and pushes the resulting rows to the output.
+	 * Used by the streamable operators of the nodes processing geometries 
+	 * row per row. Rows with a missing geometry are skipped. 
+	 * Both the input and output are closed at the end.
+	 * 
+	 * @param input
+	 * @param output
+	 * @param exec
+	 * @param mapper
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 * @throws InterruptedException
+	 */
+	public static void applyToEachGeometry(
+						RowInput input, 
+						RowOutput output,
+						ExecutionContext exec,
+						IRowAndGeometryMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException, InterruptedException {
+		
+		WKTReader reader = new WKTReader(JTSFactoryFinder.getGeometryFactory( null ));
+		
+		final int idxColGeom = input.getDataTableSpec().findColumnIndex(GEOMETRY_COLUMN_NAME);
+
+		List<DataRow> results = new ArrayList<>();
+		long done = 0;
+		DataRow row;
+		while ((row = input.poll()) != null) {
+			
+			final DataCell cellGeom = row.getCell(idxColGeom);
+			if (!cellGeom.isMissing()) {
+				try {
+					Geometry geom = readGeometry(cellGeom, reader);
+					mapper.apply(new RowAndGeometry(geom, row), results::add);
+				} catch (ParseException e) {
+					e.printStackTrace();
+					throw new IllegalArgumentException(
+							"Invalid WKT geometry on row "+
+							row.getKey()+":"+
+							e.getMessage(), 
+							e
+							);    			
+				}
+				for (DataRow result: results)
+					output.push(result);
+				results.clear();
+			}
+			
+			if (done++ % 100 == 0) {
+				exec.checkCanceled();
+				exec.setMessage("processing row "+done);
+			}
+		}
+		
+		input.close();
+		output.close();
+	}
+	
+	/**
+	 * Decodes the geometry of every row coming from a streamed input, 
+	 * passes them by chunks to the mapper and pushes the resulting rows to the output.
+	 * Rows with a missing geometry are skipped. 
+	 * Both the input and output are closed at the end.
+	 * 
+	 * @param input
+	 * @param output
+	 * @param exec
+	 * @param mapper
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 * @throws InterruptedException
+	 */
+	public static void applyToEachGeometryChunk(
+						RowInput input, 
+						RowOutput output,
+						ExecutionContext exec,
+						IGeometryChunkMapper mapper
+						) throws CanceledExecutionException, InvalidSettingsException, InterruptedException {
+		
+		WKTReader reader = new WKTReader(JTSFactoryFinder.getGeometryFactory( null ));
+		
+		final int idxColGeom = input.getDataTableSpec().findColumnIndex(GEOMETRY_COLUMN_NAME);
+
+		List<DataRow> chunk = new ArrayList<>(PARALLEL_CHUNK_SIZE);
+		long done = 0;
+		DataRow row;
+		while (true) {
+			row = input.poll();
+			if (row != null)
+				chunk.add(row);
+			
+			if (chunk.size() >= PARALLEL_CHUNK_SIZE || (row == null && !chunk.isEmpty())) {
+				for (DataRow result: mapChunk(chunk, idxColGeom, reader, mapper, false))
+					output.push(result);
+				done += chunk.size();
+				chunk.clear();
+				exec.checkCanceled();
+				exec.setMessage("processing row "+done);
+			}
+			if (row == null)
+				break;
+		}
+		
+		input.close();
+		output.close();
+	}
+	
+	private static List<DataRow> mapChunk(
+						List<DataRow> rows, 
+						int idxColGeom, 
+						WKTReader reader, 
+						IGeometryChunkMapper mapper,
+						boolean withMissing
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		List<RowAndGeometry> geometries = new ArrayList<>(rows.size());
+		for (DataRow row: rows) {
+			final DataCell cellGeom = row.getCell(idxColGeom);
+        	if (cellGeom.isMissing()) {
+        		if (withMissing)
+        			geometries.add(new RowAndGeometry(null, row));
+        		continue; // ignore data with missing elements
+        	}
+        	
+			Geometry geom;
+			try {
+				geom = readGeometry(cellGeom, reader);
+			} catch (ParseException e) {
+				e.printStackTrace();
+				throw new IllegalArgumentException(
+						"Invalid WKT geometry on row "+
+						row.getKey()+":"+
+						e.getMessage(), 
+						e
+						);    			
+			}
+			geometries.add(new RowAndGeometry(geom, row));
+		}
+		
+		List<DataRow> results = new ArrayList<>(rows.size());
+		mapper.apply(geometries, results::add);
+		return results;
+	}
+	
+	/**
+	 * Waits for the result of a chunk, and throws again the exception 
+	 * which happened during its processing if any. 
+	 */
+	public static <T> T waitForChunk(Future<T> future) 
+						throws CanceledExecutionException, InvalidSettingsException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CanceledExecutionException("interrupted while processing geometries");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof CanceledExecutionException)
+				throw (CanceledExecutionException)cause;
+			if (cause instanceof InvalidSettingsException)
+				throw (InvalidSettingsException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Count of partial unions merged together at each level 
+	 * of the parallel union
+	 */
+	public static final int UNION_FAN_IN = 8;
+	
+	/**
+	 * Computes the union of these geometries using a cascaded union, 
+	 * which is way faster than merging the geometries one by one.
+	 * Returns null if there is no geometry.
+	 * 
+	 * @param geometries
+	 * @return
+	 */
+	public static Geometry union(Collection<Geometry> geometries) {
+		if (geometries.isEmpty())
+			return null;
+		return OverlayNGRobust.union(geometries);
+	}
+	
+	/**
+	 * Computes the union of these geometries using as many threads
+	 * as defined in the preferences.
+	 * 
+	 * @see #unionParallel(List, ExecutionMonitor, int, int)
+	 */
+	public static Geometry unionParallel(
+						List<Geometry> geometries,
+						ExecutionMonitor exec
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		return unionParallel(
+				geometries, 
+				exec, 
+				getParallelThreadsCount(), 
+				PARALLEL_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Computes the union of these geometries as a tree reduction: 
+	 * the geometries are split into chunks which are merged in parallel
+	 * with a cascaded union, then the partial unions are merged
+	 * by groups of {@link #UNION_FAN_IN}, level after level, 
+	 * until only one geometry remains. The progress is reported for each level.
+	 * Returns null if there is no geometry.
+	 * 
+	 * @param geometries
+	 * @param exec used for progress and cancellation
+	 * @param threads count of threads
+	 * @param chunkSize count of geometries merged together at the first level
+	 * @return
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 */
+	public static Geometry unionParallel(
+						List<Geometry> geometries,
+						ExecutionMonitor exec,
+						int threads,
+						int chunkSize
+						) throws CanceledExecutionException, InvalidSettingsException {
+		
+		if (geometries.isEmpty())
+			return null;
+		
+		// count the levels of the tree, so we can report progress
+		int levels = 1;
+		for (int count = (geometries.size()+chunkSize-1)/chunkSize; count > 1; count = (count+UNION_FAN_IN-1)/UNION_FAN_IN)
+			levels++;
+		
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Geometry> current = geometries;
+			int groupSize = chunkSize;
+			int level = 0;
+			do {
+				final int groups = (current.size()+groupSize-1)/groupSize;
+				exec.setMessage("union level "+(level+1)+"/"+levels+": merging "+current.size()+" geometries");
+				ExecutionMonitor execLevel = exec.createSubProgress(1.0/levels);
+				
+				// fork: merge each group in parallel
+				List<Future<Geometry>> futures = new ArrayList<>(groups);
+				for (int i=0; i<current.size(); i+=groupSize) {
+					final List<Geometry> group = current.subList(i, Math.min(i+groupSize, current.size()));
+					futures.add(pool.submit(() -> union(group)));
+				}
+				
+				// join: collect the partial unions for the next level
+				List<Geometry> merged = new ArrayList<>(groups);
+				for (Future<Geometry> future: futures) {
+					merged.add(waitForChunk(future));
+					exec.checkCanceled();
+					execLevel.setProgress((double)merged.size()/groups);
+				}
+				
+				current = merged;
+				groupSize = UNION_FAN_IN;
+				level++;
+			} while (current.size() > 1);
+			
+			return current.get(0);
+			
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Computes the union of each group of geometries with a cascaded union, 
+	 * the groups being processed in parallel with as many threads 
+	 * as defined in the preferences. 
+	 * The unions are returned in the order of the groups; 
+	 * an empty group leads to a null union.
+	 * 
+	 * @param groups
+	 * @param exec used for progress and cancellation
+	 * @return
+	 * @throws CanceledExecutionException
+	 * @throws InvalidSettingsException
+	 */
+	public static List<Geometry> unionGroupsParallel(
+						List<List<Geometry>> groups,
+						ExecutionMonitor exec
+						) throws CanceledExecutionException, InvalidSettingsException {
+
+		ForkJoinPool pool = new ForkJoinPool(getParallelThreadsCount());
+		try {
+			List<Future<Geometry>> futures = new ArrayList<>(groups.size());
+			for (List<Geometry> group: groups)
+				futures.add(pool.submit(() -> union(group)));
+			
+			List<Geometry> merged = new ArrayList<>(groups.size());
+			for (Future<Geometry> future: futures) {
+				merged.add(waitForChunk(future));
+				exec.checkCanceled();
+				exec.setProgress((double)merged.size()/groups.size(), "merged "+merged.size()+" groups");
+			}
+			return merged;
+			
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
 	public static class RowsAndGeometrys {
 		
 		public final Geometry geometry1;
@@ -382,7 +1078,7 @@ public class SpatialUtils {
                 	// add geometry
             		Geometry geom1 = null;
                 	try {
-        				geom1 = reader.read(cellGeom1.toString());
+        				geom1 = readGeometry(cellGeom1, reader);
         			} catch (ParseException e) {
         				e.printStackTrace();
         				throw new IllegalArgumentException(
@@ -395,7 +1091,7 @@ public class SpatialUtils {
                 	
     				Geometry geom2 = null;
     				try {
-        				geom2 = reader.read(cellGeom2.toString());
+        				geom2 = readGeometry(cellGeom2, reader);
         			} catch (ParseException e) {
         				e.printStackTrace();
         				throw new IllegalArgumentException(
@@ -485,7 +1181,7 @@ public class SpatialUtils {
 	            	
 	            	// add geometry
 	            	try {
-	    				Geometry geom = reader.read(cellGeom.toString());
+	    				Geometry geom = readGeometry(cellGeom, reader);
 	    				featureBuilder.add(geom);
 	    			} catch (ParseException e) {
 	    				e.printStackTrace();
@@ -718,6 +1414,13 @@ public class SpatialUtils {
 		
 	}
 
+	/**
+	 * Searches the closest feature by querying the source with larger and larger buffers.
+	 * 
+	 * @deprecated use {@link NearestNeighbourIndex}, which searches the neighbours in a spatial index
+	 * without creating buffers and querying the source again and again.
+	 */
+	@Deprecated
 	public static SimpleFeature findClosestNeighboorVariableBuffer(
 			Geometry geom,
 			SimpleFeatureSource source,
@@ -799,7 +1502,7 @@ public class SpatialUtils {
 			return SpatialUtils.getCRSforString(columnSpec.getProperties().getProperty(PROPERTY_CRS_CODE));
 		} catch (IllegalArgumentException e) {
 			try {
-				return CRS.parseWKT(columnSpec.getProperties().getProperty(PROPERTY_CRS_WKT));
+				return getCRSforWKT(columnSpec.getProperties().getProperty(PROPERTY_CRS_WKT));
 			} catch (FactoryException e1) {
 				e1.printStackTrace();
 				throw new IllegalArgumentException(
@@ -816,21 +1519,7 @@ public class SpatialUtils {
 		if (idx < 0) 
 			throw new IllegalArgumentException("No column for containing geometry "+GEOMETRY_COLUMN_NAME);
 		
-		DataColumnSpec columnSpec = spec.getColumnSpec(idx);
-		
-		try {
-			return SpatialUtils.getCRSforString(columnSpec.getProperties().getProperty(PROPERTY_CRS_CODE));
-		} catch (IllegalArgumentException e) {
-			try {
-				return CRS.parseWKT(columnSpec.getProperties().getProperty(PROPERTY_CRS_WKT));
-			} catch (FactoryException e1) {
-				e1.printStackTrace();
-				throw new IllegalArgumentException(
-						"Unable to decode a coordinate reference system "+
-						"from the code \""+columnSpec.getProperties().getProperty(PROPERTY_CRS_CODE)+"\""+
-						" nor from WKT "+columnSpec.getProperties().getProperty(PROPERTY_CRS_WKT)); 
-			}
-		}
+		return decodeCRSFromColumnSpec(spec.getColumnSpec(idx));
 	}
 
 
@@ -846,6 +1535,89 @@ public class SpatialUtils {
 		return (idx >= 0);
 	}
 	
+	/**
+	 * Returns true if the geometries of this table are stored 
+	 * as binary geometry cells instead of WKT strings.
+	 * 
+	 * @param dataTableSpec
+	 * @return
+	 */
+	public static boolean hasBinaryGeometry(DataTableSpec dataTableSpec) {
+		int idx = dataTableSpec.findColumnIndex(GEOMETRY_COLUMN_NAME);
+		if (idx < 0)
+			return false;
+		return dataTableSpec.getColumnSpec(idx).getType().isCompatible(GeometryValue.class);
+	}
+	
+	/**
+	 * Returns the type of cell to use for storing geometries, 
+	 * either binary or WKT.
+	 * 
+	 * @param binary
+	 * @return
+	 */
+	public static DataType getGeometryCellType(boolean binary) {
+		return binary ? GeometryCell.TYPE : StringCell.TYPE;
+	}
+	
+	/**
+	 * Creates the cell storing this geometry, 
+	 * either as a binary geometry cell or as WKT.
+	 * 
+	 * @param geom
+	 * @param binary
+	 * @return
+	 */
+	public static DataCell createGeometryCell(Geometry geom, boolean binary) {
+		if (binary)
+			return GeometryCell.create(geom);
+		else 
+			return StringCellFactory.create(geom.toString());
+	}
+	
+	/**
+	 * Decodes the geometry stored in a cell. Binary geometry cells
+	 * are returned without parsing; other cells are parsed as WKT.
+	 * 
+	 * @param cell
+	 * @param reader
+	 * @return
+	 * @throws ParseException
+	 */
+	public static Geometry readGeometry(DataCell cell, WKTReader reader) throws ParseException {
+		if (cell instanceof GeometryValue)
+			return ((GeometryValue)cell).getGeometry();
+		return reader.read(cell.toString());
+	}
+	
+	/**
+	 * Returns true if at least one coordinate of the geometry has a Z.
+	 * The WKT reader creates sequences able to store Z even for 2D geometries,
+	 * so the dimension of the sequences is not enough.
+	 * 
+	 * @param geom
+	 * @return
+	 */
+	public static boolean hasZ(Geometry geom) {
+		final boolean[] found = { false };
+		geom.apply(new CoordinateSequenceFilter() {
+			@Override
+			public void filter(CoordinateSequence seq, int i) {
+				if (seq.hasZ() && !Double.isNaN(seq.getOrdinate(i, CoordinateSequence.Z)))
+					found[0] = true;
+			}
+			@Override
+			public boolean isDone() {
+				return found[0];
+			}
+			@Override
+			public boolean isGeometryChanged() {
+				return false;
+			}
+		});
+		return found[0];
+	}
+	
 	public static File getFileForCache() {
 		String filepath = ShapefileAsWKTNodePlugin.getDefault().getPreferenceStore().getString(PreferenceConstants.P_DIRECTORY_CACHE);
 		File f = new File(filepath);
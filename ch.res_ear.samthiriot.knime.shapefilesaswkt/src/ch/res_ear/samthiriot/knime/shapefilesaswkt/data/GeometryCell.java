@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataCellDataInput;
+import org.knime.core.data.DataCellDataOutput;
+import org.knime.core.data.DataCellSerializer;
+import org.knime.core.data.DataType;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.def.StringCell;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+/**
+ * A cell storing a geometry as Well-Known Binary (WKB).
+ *
+ * Compared to a {@link StringCell} containing WKT, the cell is
+ * smaller to store and can be decoded without parsing decimal text.
+ * The cell also implements {@link StringValue} and returns the WKT
+ * representation of the geometry, so the nodes reading geometries
+ * as text keep working.
+ *
+ * @author Samuel Thiriot
+ */
+public final class GeometryCell extends DataCell implements GeometryValue, StringValue {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The type of the cells storing geometries as WKB.
+	 */
+	public static final DataType TYPE = DataType.getType(GeometryCell.class);
+
+	/**
+	 * WKB readers and writers are not thread safe; we keep one per thread.
+	 */
+	private static final ThreadLocal<WKBReader> READER = ThreadLocal.withInitial(
+			() -> new WKBReader(JTSFactoryFinder.getGeometryFactory(null)));
+	private static final ThreadLocal<WKBWriter> WRITER = ThreadLocal.withInitial(
+			() -> new WKBWriter());
+
+	private final byte[] m_wkb;
+
+	/**
+	 * The geometry, decoded on the first access only.
+	 */
+	private transient Geometry m_geometry = null;
+
+	private GeometryCell(final byte[] wkb) {
+		m_wkb = wkb;
+	}
+
+	private GeometryCell(final byte[] wkb, final Geometry geometry) {
+		m_wkb = wkb;
+		m_geometry = geometry;
+	}
+
+	/**
+	 * Creates a cell for this geometry.
+	 *
+	 * @param geometry
+	 * @return the cell
+	 */
+	public static GeometryCell create(final Geometry geometry) {
+		if (geometry == null)
+			throw new IllegalArgumentException("cannot create a geometry cell from a null geometry");
+		return new GeometryCell(WRITER.get().write(geometry), geometry);
+	}
+
+	/**
+	 * Creates a cell from a geometry already encoded as WKB.
+	 *
+	 * @param wkb
+	 * @return the cell
+	 */
+	public static GeometryCell create(final byte[] wkb) {
+		if (wkb == null)
+			throw new IllegalArgumentException("cannot create a geometry cell from null WKB");
+		return new GeometryCell(wkb);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Geometry getGeometry() {
+		Geometry geometry = m_geometry;
+		if (geometry == null) {
+			try {
+				geometry = READER.get().read(m_wkb);
+			} catch (ParseException e) {
+				e.printStackTrace();
+				throw new IllegalStateException("invalid WKB geometry: "+e.getMessage(), e);
+			}
+			m_geometry = geometry;
+		}
+		return geometry;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] getWKB() {
+		return m_wkb;
+	}
+
+	/**
+	 * Returns the geometry as WKT.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getStringValue() {
+		return getGeometry().toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getStringValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected boolean equalsDataCell(final DataCell dc) {
+		return Arrays.equals(m_wkb, ((GeometryCell)dc).m_wkb);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(m_wkb);
+	}
+
+	/**
+	 * Serializes the cell as the length followed by the WKB bytes.
+	 * Registered through the org.knime.core.DataType extension point.
+	 */
+	public static final class GeometryCellSerializer implements DataCellSerializer<GeometryCell> {
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void serialize(final GeometryCell cell, final DataCellDataOutput output) throws IOException {
+			output.writeInt(cell.m_wkb.length);
+			output.write(cell.m_wkb);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public GeometryCell deserialize(final DataCellDataInput input) throws IOException {
+			final int length = input.readInt();
+			byte[] wkb = new byte[length];
+			input.readFully(wkb);
+			return new GeometryCell(wkb);
+		}
+	}
+
+}
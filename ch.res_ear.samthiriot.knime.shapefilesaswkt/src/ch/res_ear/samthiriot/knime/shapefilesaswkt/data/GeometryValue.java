@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.data;
+
+import org.knime.core.data.DataValue;
+import org.knime.core.data.ExtensibleUtilityFactory;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Value of a cell containing a geometry which can be accessed
+ * without parsing text.
+ *
+ * @author Samuel Thiriot
+ */
+public interface GeometryValue extends DataValue {
+
+	/**
+	 * Meta information for this value type.
+	 */
+	UtilityFactory UTILITY = new GeometryUtilityFactory();
+
+	/**
+	 * Returns the geometry.
+	 * The geometry might be shared between callers; do not modify it.
+	 *
+	 * @return the geometry
+	 */
+	Geometry getGeometry();
+
+	/**
+	 * Returns the geometry encoded as Well-Known Binary.
+	 *
+	 * @return the WKB bytes
+	 */
+	byte[] getWKB();
+
+	/**
+	 * Utility factory for geometry values.
+	 */
+	final class GeometryUtilityFactory extends ExtensibleUtilityFactory {
+
+		private GeometryUtilityFactory() {
+			super(GeometryValue.class);
+		}
+
+		@Override
+		public String getName() {
+			return "Geometry (WKB)";
+		}
+	}
+}
@@ -7,4 +7,16 @@ public class PreferenceConstants {
 
 	public static final String P_DIRECTORY_CACHE = "cacheDirectory";
 	
+	/**
+	 * Count of threads used to process geometries in parallel; 
+	 * 0 means as many threads as available processors.
+	 */
+	public static final String P_PARALLEL_THREADS = "parallelThreads";
+	
+	/**
+	 * Codes of the Coordinate Reference Systems decoded in background 
+	 * when the plugin starts, separated by commas; empty to disable the warm-up.
+	 */
+	public static final String P_WARMUP_CRS = "warmupCRS";
+	
 }
@@ -6,6 +6,7 @@ import org.eclipse.core.runtime.preferences.AbstractPreferenceInitializer;
 import org.eclipse.jface.preference.IPreferenceStore;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.ShapefileAsWKTNodePlugin;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
 
 /**
  * Class used to initialize default preference values.
@@ -28,6 +29,9 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 			
 			store.setDefault(PreferenceConstants.P_DIRECTORY_CACHE, f2.getAbsolutePath());
 		}
+		
+		store.setDefault(PreferenceConstants.P_PARALLEL_THREADS, 0);
+		store.setDefault(PreferenceConstants.P_WARMUP_CRS, SpatialUtils.DEFAULT_WARMUP_CRS);
 	}
 
 }
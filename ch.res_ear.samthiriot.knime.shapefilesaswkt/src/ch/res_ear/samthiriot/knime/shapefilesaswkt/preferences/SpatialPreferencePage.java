@@ -6,6 +6,8 @@ import java.io.IOException;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jface.preference.DirectoryFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
+import org.eclipse.jface.preference.IntegerFieldEditor;
+import org.eclipse.jface.preference.StringFieldEditor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
@@ -54,6 +56,18 @@ public class SpatialPreferencePage
 				"&Directory for cache storage", 
 				getFieldEditorParent()));
 		
+		IntegerFieldEditor threadsEditor = new IntegerFieldEditor(
+				PreferenceConstants.P_PARALLEL_THREADS, 
+				"&Threads for processing geometries (0 for all processors)", 
+				getFieldEditorParent());
+		threadsEditor.setValidRange(0, 1024);
+		addField(threadsEditor);
+		
+		addField(new StringFieldEditor(
+				PreferenceConstants.P_WARMUP_CRS, 
+				"&Coordinate Reference Systems loaded at startup (comma separated)", 
+				getFieldEditorParent()));
+		
 		//DialogComponentButton clearCacheButton = new DialogComponentButton("clear cache");
 		
 	    Button clearCacheButton = new Button(getFieldEditorParent(), SWT.NONE);
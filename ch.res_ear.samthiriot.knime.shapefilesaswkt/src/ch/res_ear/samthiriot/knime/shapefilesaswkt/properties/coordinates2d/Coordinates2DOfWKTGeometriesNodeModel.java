@@ -35,9 +35,19 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.locationtech.jts.geom.Coordinate;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -111,8 +121,39 @@ public class Coordinates2DOfWKTGeometriesNodeModel extends NodeModel {
 		return new DataTableSpec[] { createSpec(spec) };
 	}
 
-	long done = 0;
+	/**
+	 * Creates the function which appends to each row
+	 * the coordinates of its geometry.
+	 * 
+	 * @param inputSpec
+	 * @return
+	 */
+	protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) {
+		
+		final int numberOfCells = inputSpec.getNumColumns();
 
+		return (geomAndRow, output) -> {
+	     		
+				// copy all cells
+				List<DataCell> cells = new ArrayList<>(numberOfCells+2);
+				cells.addAll(geomAndRow.row.stream().collect(Collectors.toList()));
+				
+				// add the cell with the type
+				Coordinate coord = geomAndRow.geometry.getCoordinate();
+				
+				cells.add(DoubleCellFactory.create(coord.x));
+				cells.add(DoubleCellFactory.create(coord.y));
+				
+				// append the row
+				DataRow row = new DefaultRow(
+		    		  geomAndRow.row.getKey(), 
+		    		  cells
+		    		  );
+				output.accept(row);
+		
+			};
+	}
+	
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -129,40 +170,12 @@ public class Coordinates2DOfWKTGeometriesNodeModel extends NodeModel {
 		DataTableSpec outputSpec = createSpec(inputTable.getDataTableSpec());
 		BufferedDataContainer container = exec.createDataContainer(outputSpec);
 
-		final double total = inputTable.size();
-				
-		final int numberOfCells = inputTable.getDataTableSpec().getNumColumns();
-
-
 		// iterate each geometry of each row
-		done = 0;
-		SpatialUtils.applyToEachGeometry(
+		SpatialUtils.applyToEachGeometryParallel(
 				inputTable, 
-				geomAndRow -> {
-		     		
-					// copy all cells
-					List<DataCell> cells = new ArrayList<>(numberOfCells+2);
-					cells.addAll(geomAndRow.row.stream().collect(Collectors.toList()));
-					
-					// add the cell with the type
-					Coordinate coord = geomAndRow.geometry.getCoordinate();
-					
-					cells.add(DoubleCellFactory.create(coord.x));
-					cells.add(DoubleCellFactory.create(coord.y));
-					
-					// append the row
-					DataRow row = new DefaultRow(
-			    		  geomAndRow.row.getKey(), 
-			    		  cells
-			    		  );
-					container.addRowToTable(row);
-					  
-					if (done++ % 10 == 0) {
-						exec.checkCanceled();
-						exec.setProgress(done/total, "computing row "+done);
-					}
-			
-				}
+				container::addRowToTable, 
+				exec, 
+				createMapper(inputTable.getDataTableSpec())
 				);
 
 		container.close();
@@ -171,6 +184,46 @@ public class Coordinates2DOfWKTGeometriesNodeModel extends NodeModel {
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.properties.geodesic;
+
+import org.knime.core.data.StringValue;
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumberEdit;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelDouble;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * Dialog of the "GeodesicMeasures" node.
+ *
+ * @author Samuel Thiriot
+ */
+public class GeodesicMeasuresNodeDialog extends DefaultNodeSettingsPane {
+
+	/**
+	 * New dialog pane for configuring the node. The dialog created here
+	 * will show up when double clicking on a node in KNIME Analytics Platform.
+	 */
+    protected GeodesicMeasuresNodeDialog() {
+        super();
+
+     	addDialogComponent(new DialogComponentString(
+     			new SettingsModelString(
+    					"colname length",
+    					"geodesic_length"),
+     			"length column name",
+     			true,
+     			20
+     			));
+
+        createNewGroup("Distance");
+
+     	addDialogComponent(new DialogComponentStringSelection(
+     			new SettingsModelString(
+    					"distance",
+    					GeodesicMeasuresNodeModel.DISTANCE_NONE),
+     			"distance",
+     			GeodesicMeasuresNodeModel.DISTANCE_MODES
+     			));
+
+     	addDialogComponent(new DialogComponentString(
+     			new SettingsModelString(
+    					"colname distance",
+    					"geodesic_distance"),
+     			"distance column name",
+     			true,
+     			20
+     			));
+
+        addDialogComponent(new DialogComponentNumberEdit(
+        		new SettingsModelDouble(
+        				"point latitude",
+        				0.0
+        				),
+        		"latitude of the point (WGS84)"
+        		));
+
+        addDialogComponent(new DialogComponentNumberEdit(
+        		new SettingsModelDouble(
+        				"point longitude",
+        				0.0
+        				),
+        		"longitude of the point (WGS84)"
+        		));
+
+        addDialogComponent(new DialogComponentColumnNameSelection(
+        		new SettingsModelString("other column", null),
+        		"other geometry column",
+        		0,
+        		false,
+        		StringValue.class
+        		));
+    }
+}
@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.properties.geodesic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.StringValue;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.DoubleCell.DoubleCellFactory;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelDouble;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.GeodesicCalculator;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
+
+
+/**
+ * Computes metric measures of geometries on the ellipsoid using GeographicLib:
+ * the length of lines and perimeter of polygons, and optionally the distance
+ * to a fixed point or to the geometry of another column.
+ * No reprojection is required.
+ *
+ * @author Samuel Thiriot
+ */
+public class GeodesicMeasuresNodeModel extends NodeModel {
+
+	public static final String DISTANCE_NONE = "none";
+	public static final String DISTANCE_POINT = "to a fixed point";
+	public static final String DISTANCE_COLUMN = "to the geometries of another column";
+
+	public static final String[] DISTANCE_MODES = {
+			DISTANCE_NONE,
+			DISTANCE_POINT,
+			DISTANCE_COLUMN
+		};
+
+	private final SettingsModelString m_colnameLength = new SettingsModelString(
+			"colname length",
+			"geodesic_length");
+
+	private final SettingsModelString m_distance = new SettingsModelString(
+			"distance",
+			DISTANCE_NONE);
+
+	private final SettingsModelString m_colnameDistance = new SettingsModelString(
+			"colname distance",
+			"geodesic_distance");
+
+	private final SettingsModelDouble m_pointLatitude = new SettingsModelDouble(
+			"point latitude",
+			0.0);
+
+	private final SettingsModelDouble m_pointLongitude = new SettingsModelDouble(
+			"point longitude",
+			0.0);
+
+	private final SettingsModelString m_otherColumn = new SettingsModelString(
+			"other column",
+			null);
+
+	/**
+	 * Constructor for the node model.
+	 */
+	protected GeodesicMeasuresNodeModel() {
+		super(1, 1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+
+		final DataTableSpec spec = inSpecs[0];
+		if (spec == null)
+			throw new InvalidSettingsException("no table as input");
+
+		if (!SpatialUtils.hasGeometry(spec))
+			throw new InvalidSettingsException("the input table contains no WKT geometry");
+
+		final String colnameLength = m_colnameLength.getStringValue();
+		if (spec.containsName(colnameLength))
+			throw new InvalidSettingsException("the table already contains a column named "+colnameLength);
+
+		final String distance = m_distance.getStringValue();
+
+		if (!DISTANCE_NONE.equals(distance)) {
+
+			final String colnameDistance = m_colnameDistance.getStringValue();
+			if (spec.containsName(colnameDistance) || colnameDistance.equals(colnameLength))
+				throw new InvalidSettingsException("the table already contains a column named "+colnameDistance);
+
+			if (DISTANCE_POINT.equals(distance)) {
+
+				final double latitude = m_pointLatitude.getDoubleValue();
+				final double longitude = m_pointLongitude.getDoubleValue();
+				if (latitude < -90 || latitude > 90)
+					throw new InvalidSettingsException("the latitude of the point should be between -90 and 90");
+				if (longitude < -180 || longitude > 180)
+					throw new InvalidSettingsException("the longitude of the point should be between -180 and 180");
+
+			} else if (DISTANCE_COLUMN.equals(distance)) {
+
+				final String otherColumn = m_otherColumn.getStringValue();
+				if (otherColumn == null)
+					throw new InvalidSettingsException("please select the column containing the other geometries");
+				final int idxOther = spec.findColumnIndex(otherColumn);
+				if (idxOther < 0)
+					throw new InvalidSettingsException("there is no column named "+otherColumn);
+				if (otherColumn.equals(SpatialUtils.GEOMETRY_COLUMN_NAME))
+					throw new InvalidSettingsException("please select another column than "+SpatialUtils.GEOMETRY_COLUMN_NAME);
+				final DataColumnSpec otherSpec = spec.getColumnSpec(idxOther);
+				if (!otherSpec.getType().isCompatible(StringValue.class))
+					throw new InvalidSettingsException("the column "+otherColumn+" does not contain geometries");
+				if (SpatialUtils.hasCRS(otherSpec) &&
+						!SpatialUtils.decodeCRSFromColumnSpec(otherSpec).equals(SpatialUtils.decodeCRS(spec)))
+					throw new InvalidSettingsException("the geometries of the column "+otherColumn+" are not spatialized on the same Coordinate Reference System; please reproject them first");
+
+			} else {
+				throw new InvalidSettingsException("unknown distance mode "+distance);
+			}
+		}
+
+		return new DataTableSpec[] { createOutputSpec(spec) };
+	}
+
+	/**
+	 * Creates the output table spec from the input spec:
+	 * the original columns, the length and the distance if requested.
+	 *
+	 * @param inputTableSpec
+	 * @return
+	 */
+	private DataTableSpec createOutputSpec(DataTableSpec inputTableSpec) {
+
+		List<DataColumnSpec> newColumnSpecs = new ArrayList<>(inputTableSpec.getNumColumns()+2);
+
+		// copy the existing columns
+		for (int i = 0; i < inputTableSpec.getNumColumns(); i++) {
+			newColumnSpecs.add(inputTableSpec.getColumnSpec(i));
+		}
+
+		newColumnSpecs.add(
+				new DataColumnSpecCreator(m_colnameLength.getStringValue(), DoubleCell.TYPE).createSpec()
+				);
+		if (!DISTANCE_NONE.equals(m_distance.getStringValue()))
+			newColumnSpecs.add(
+					new DataColumnSpecCreator(m_colnameDistance.getStringValue(), DoubleCell.TYPE).createSpec()
+					);
+
+		return new DataTableSpec(
+					newColumnSpecs.toArray(
+						new DataColumnSpec[newColumnSpecs.size()]));
+	}
+
+	/**
+	 * Creates the function which appends to each row
+	 * the geodesic length of its geometry in meters,
+	 * and the distance if requested.
+	 *
+	 * @param inputSpec
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) throws InvalidSettingsException {
+
+		final int numberOfCells = inputSpec.getNumColumns();
+		final String distance = m_distance.getStringValue();
+		final boolean withDistance = !DISTANCE_NONE.equals(distance);
+
+		CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputSpec);
+
+		final GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory(null);
+
+		final GeodesicCalculator calculator;
+		final Geometry point;
+		try {
+			calculator = new GeodesicCalculator(crsOrig);
+			if (DISTANCE_POINT.equals(distance)) {
+				// the point is defined in WGS84 (longitude, latitude)
+				point = JTS.transform(
+						geomFactory.createPoint(new Coordinate(
+								m_pointLongitude.getDoubleValue(),
+								m_pointLatitude.getDoubleValue())),
+						SpatialUtils.findMathTransform(DefaultGeographicCRS.WGS84, crsOrig, true)
+						);
+			} else {
+				point = null;
+			}
+		} catch (FactoryException | TransformException e) {
+			e.printStackTrace();
+			throw new InvalidSettingsException("unable to find a transformation from the Coordinate Reference System of the geometries to WGS84; please reproject your geometries first: "+e.getMessage());
+		}
+
+		final int idxOther = DISTANCE_COLUMN.equals(distance) ?
+				inputSpec.findColumnIndex(m_otherColumn.getStringValue()) : -1;
+
+		// WKT readers are not thread safe
+		final ThreadLocal<WKTReader> readers = ThreadLocal.withInitial(() -> new WKTReader(geomFactory));
+
+		return (geomAndRow, output) -> {
+
+			try {
+
+				DataCell[] cells = new DataCell[numberOfCells + (withDistance ? 2 : 1)];
+				for (int i=0; i<numberOfCells; i++)
+					cells[i] = geomAndRow.row.getCell(i);
+
+				cells[numberOfCells] = DoubleCellFactory.create(calculator.length(geomAndRow.geometry));
+
+				if (point != null) {
+					cells[numberOfCells+1] = DoubleCellFactory.create(calculator.distance(geomAndRow.geometry, point));
+				} else if (idxOther >= 0) {
+					final DataCell cellOther = geomAndRow.row.getCell(idxOther);
+					if (cellOther.isMissing()) {
+						cells[numberOfCells+1] = DataType.getMissingCell();
+					} else {
+						final Geometry other = SpatialUtils.readGeometry(cellOther, readers.get());
+						final double d = calculator.distance(geomAndRow.geometry, other);
+						cells[numberOfCells+1] = Double.isNaN(d) ? DataType.getMissingCell() : DoubleCellFactory.create(d);
+					}
+				}
+
+				output.accept(new DefaultRow(
+		    		  geomAndRow.row.getKey(),
+		    		  cells
+		    		  ));
+
+			} catch (TransformException e) {
+				e.printStackTrace();
+				throw new InvalidSettingsException("An error occured during the conversion of geometries into geographic coordinates; please reproject your geometries first: "+e.getMessage());
+			} catch (ParseException e) {
+				e.printStackTrace();
+				throw new IllegalArgumentException(
+						"Invalid WKT geometry on row "+
+						geomAndRow.row.getKey()+":"+
+						e.getMessage(),
+						e
+						);
+			}
+
+		};
+	}
+
+	/**
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+			throws Exception {
+
+		BufferedDataTable inputTable = inData[0];
+
+		DataTableSpec outputSpec = createOutputSpec(inputTable.getDataTableSpec());
+		BufferedDataContainer container = exec.createDataContainer(outputSpec);
+
+		// iterate each geometry of each row
+		SpatialUtils.applyToEachGeometryParallel(
+				inputTable,
+				container::addRowToTable,
+				exec,
+				createMapper(inputTable.getDataTableSpec())
+				);
+
+		container.close();
+		BufferedDataTable out = container.getTable();
+		return new BufferedDataTable[] { out };
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo,
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+
+		return new StreamableOperator() {
+
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0],
+						(RowOutput)outputs[0],
+						exec,
+						mapper);
+			}
+		};
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+
+		m_colnameLength.saveSettingsTo(settings);
+		m_distance.saveSettingsTo(settings);
+		m_colnameDistance.saveSettingsTo(settings);
+		m_pointLatitude.saveSettingsTo(settings);
+		m_pointLongitude.saveSettingsTo(settings);
+		m_otherColumn.saveSettingsTo(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_colnameLength.loadSettingsFrom(settings);
+		m_distance.loadSettingsFrom(settings);
+		m_colnameDistance.loadSettingsFrom(settings);
+		m_pointLatitude.loadSettingsFrom(settings);
+		m_pointLongitude.loadSettingsFrom(settings);
+		m_otherColumn.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_colnameLength.validateSettings(settings);
+		m_distance.validateSettings(settings);
+		m_colnameDistance.validateSettings(settings);
+		m_pointLatitude.validateSettings(settings);
+		m_pointLongitude.validateSettings(settings);
+		m_otherColumn.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void saveInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void reset() {
+
+		// nothing to do
+	}
+}
+
@@ -12,6 +12,7 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.properties.surface;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 /**
@@ -43,6 +44,14 @@ public class SpatialPropertySurfaceNodeDialog extends DefaultNodeSettingsPane {
      			true, 
      			10
      			));
+     	
+     	addDialogComponent(new DialogComponentStringSelection(
+     			new SettingsModelString(
+    					"method", 
+    					SpatialPropertySurfaceNodeModel.METHOD_GEODESIC), 
+     			"Method", 
+     			SpatialPropertySurfaceNodeModel.METHODS
+     			));
     }
 }
 
@@ -14,10 +14,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.ReferencingFactoryFinder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
@@ -36,6 +39,15 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
 import org.opengis.geometry.MismatchedDimensionException;
@@ -45,7 +57,9 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.GeodesicCalculator;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -59,12 +73,23 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
  * @author Samuel Thiriot
  */
 public class SpatialPropertySurfaceNodeModel extends NodeModel {
-    
-	
+
+	public static final String METHOD_GEODESIC = "geodesic (on the ellipsoid)";
+	public static final String METHOD_PROJECTION_ZONE = "projection (per UTM zone)";
+	public static final String METHOD_PROJECTION_GEOMETRY = "projection (per geometry)";
+	public static final String[] METHODS = { METHOD_GEODESIC, METHOD_PROJECTION_ZONE, METHOD_PROJECTION_GEOMETRY };
+
 	private final SettingsModelString m_colname = new SettingsModelString(
-					"colname", 
+					"colname",
 					"geom_surface");
 
+	/**
+	 * How the surface is computed, one of METHODS
+	 */
+	private final SettingsModelString m_method = new SettingsModelString(
+					"method",
+					METHOD_GEODESIC);
+
 	/**
 	 * Constructor for the node model.
 	 */
@@ -123,7 +148,143 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 						new DataColumnSpec[newColumnSpecs.size()]));
 	}
 	
-	long done = 0;
+	/**
+	 * Computes the surface of a geometry in square meters
+	 */
+	protected interface ISurfaceComputer {
+		double surface(Geometry geom) throws FactoryException, TransformException;
+	}
+
+	/**
+	 * Computes the surface on the ellipsoid, without any reprojection.
+	 */
+	protected ISurfaceComputer createGeodesicComputer(CoordinateReferenceSystem crsOrig) throws FactoryException {
+
+		final GeodesicCalculator calculator = new GeodesicCalculator(crsOrig);
+
+		return geom -> calculator.area(geom);
+	}
+
+	/**
+	 * Reprojects each geometry into an automatic projection 
+	 * centred on the UTM zone of its centroid. 
+	 * The transforms are reused for all the geometries of the same zone.
+	 */
+	protected ISurfaceComputer createProjectionPerZoneComputer(
+			final CoordinateReferenceSystem crsOrig, 
+			final CRSAuthorityFactory factory) throws FactoryException {
+
+		final MathTransform toWGS84 = SpatialUtils.findMathTransform(crsOrig, DefaultGeographicCRS.WGS84, true);
+
+		// the transforms for each zone; negative zones are in the south hemisphere
+		final Map<Integer,MathTransform> zone2transform = new ConcurrentHashMap<>();
+
+		return geom -> {
+
+			Point centroid = (Point)JTS.transform(geom.getCentroid(), toWGS84);
+
+			final int zone = Math.min(60, Math.max(1, (int)Math.floor((centroid.getX() + 180) / 6) + 1));
+			final int key = centroid.getY() < 0 ? -zone : zone;
+
+			MathTransform transform = zone2transform.get(key);
+			if (transform == null) {
+				CoordinateReferenceSystem crsTarget = factory.createProjectedCRS(
+						"AUTO:42001," + (zone * 6 - 183) + "," + (key < 0 ? -1 : 0)
+						);
+				transform = SpatialUtils.findMathTransform(crsOrig, crsTarget, true);
+				zone2transform.put(key, transform);
+			}
+
+			return JTS.transform(geom, transform).getArea();
+		};
+	}
+
+	/**
+	 * Reprojects each geometry into an automatic projection
+	 * centred on its own centroid. This is the original behaviour of the node.
+	 */
+	protected ISurfaceComputer createProjectionPerGeometryComputer(
+			final CoordinateReferenceSystem crsOrig, 
+			final CRSAuthorityFactory factory) {
+
+		return geom -> {
+
+			Point centroid = geom.getCentroid(); 
+
+			CoordinateReferenceSystem crsTarget = factory.createProjectedCRS(
+					"AUTO:42001," + centroid.getX() + "," + centroid.getY()
+					);
+			MathTransform transform = CRS.findMathTransform(
+					crsOrig, 
+					crsTarget, 
+					true);
+			return JTS.transform(geom, transform).getArea();
+		};
+	}
+
+	/**
+	 * Creates the function which appends to each row
+	 * the surface of its geometry in square meters.
+	 * 
+	 * @param inputSpec
+	 * @return
+	 * @throws InvalidSettingsException 
+	 */
+	protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) throws InvalidSettingsException {
+		
+		final int numberOfCells = inputSpec.getNumColumns();
+
+		CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputSpec);
+
+		final String method = m_method.getStringValue();
+
+		final ISurfaceComputer computer;
+		try {
+			if (METHOD_GEODESIC.equals(method)) {
+				computer = createGeodesicComputer(crsOrig);
+			} else {
+				if (!ReferencingFactoryFinder.getAuthorityNames().contains("AUTO"))
+					throw new RuntimeException("No factory for autority AUTO");
+				CRSAuthorityFactory factory = ReferencingFactoryFinder.getCRSAuthorityFactory("AUTO", null);
+				if (METHOD_PROJECTION_ZONE.equals(method))
+					computer = createProjectionPerZoneComputer(crsOrig, factory);
+				else if (METHOD_PROJECTION_GEOMETRY.equals(method))
+					computer = createProjectionPerGeometryComputer(crsOrig, factory);
+				else 
+					throw new InvalidSettingsException("unknown method "+method);
+			}
+		} catch (FactoryException e) {
+			e.printStackTrace();
+			throw new InvalidSettingsException("unable to find a transformation from the Coordinate Reference System of the geometries to WGS84; please reproject your geometries first: "+e.getMessage());
+		}
+
+		return (geomAndRow, output) -> {
+		      
+				try {
+					
+				    // compute the surface
+				    double surfaceSquareMeter = computer.surface(geomAndRow.geometry);
+					
+				    // create the row
+					DataCell[] cells = new DataCell[numberOfCells+1];
+					for (int i=0; i<numberOfCells; i++)
+						cells[i] = geomAndRow.row.getCell(i);
+						
+					cells[numberOfCells] = DoubleCellFactory.create(surfaceSquareMeter);
+					
+					DataRow row = new DefaultRow(
+			    		  geomAndRow.row.getKey(), 
+			    		  cells
+			    		  );
+					output.accept(row);
+					  
+				} catch (FactoryException | MismatchedDimensionException | TransformException e) {
+					e.printStackTrace();
+					throw new InvalidSettingsException("An error occured during the reprojection of geometries; please reproject your geometries first: "+e.getMessage());
+				} 
+
+			};
+	}
 	
 	/**
 	 * 
@@ -133,100 +294,17 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
 			throws Exception {
 		
-		if (!ReferencingFactoryFinder.getAuthorityNames().contains("AUTO"))
-			throw new RuntimeException("No factory for autority AUTO");
-		
 		BufferedDataTable inputTable = inData[0];
 
 		DataTableSpec outputSpec = createOutputSpec(inputTable.getDataTableSpec());
 		BufferedDataContainer container = exec.createDataContainer(outputSpec);
 
-		final double total = inputTable.size();
-				
-		final int numberOfCells = inputTable.getDataTableSpec().getNumColumns();
-
-		CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputTable.getDataTableSpec());
-
-		CRSAuthorityFactory factory = ReferencingFactoryFinder.getCRSAuthorityFactory("AUTO", null);
-
-		/*
-		// depending to the original CRS, it might be necessary to pass through an intermediate CRS
-		CoordinateReferenceSystem crsInter = DefaultGeocentricCRS.CARTESIAN;
-		MathTransform transform1 = CRS.findMathTransform(
-				crsOrig, 
-				crsInter, 
-				true);
-		boolean reprojectInter = false;
-		*/
-		
 		// iterate each geometry of each row
-		done = 0;
-		SpatialUtils.applyToEachGeometry(
+		SpatialUtils.applyToEachGeometryParallel(
 				inputTable, 
-				geomAndRow -> {
-			      
-					try {
-						
-						Geometry transformed = null;
-						
-
-						//try {
-							Point centroid = geomAndRow.geometry.getCentroid(); 
-
-							CoordinateReferenceSystem crsTarget = factory.createProjectedCRS(
-									"AUTO:42001," + centroid.getX()//String.format(Locale.ENGLISH, "%.2f", centroid.getX()) 
-									+ "," + centroid.getY()//String.format(Locale.ENGLISH, "%.5f", centroid.getY())
-									);
-							MathTransform transform2 = CRS.findMathTransform(
-									crsOrig, 
-									crsTarget, 
-									true);
-							transformed = JTS.transform(geomAndRow.geometry, transform2);
-							/*
-						} catch (FactoryException | TransformException e) {
-							e.printStackTrace();
-							System.out.println("using a second projection");
-							Geometry geomInter = JTS.transform(geomAndRow.geometry, transform1);
-							Point centroid = geomInter.getCentroid(); 
-							CoordinateReferenceSystem crsTarget = factory.createProjectedCRS(
-									"AUTO:42001," + centroid.getX()//String.format(Locale.ENGLISH, "%.2f", centroid.getX()) 
-									+ "," + centroid.getY()//String.format(Locale.ENGLISH, "%.5f", centroid.getY())
-									);
-							MathTransform transform2 = CRS.findMathTransform(
-									crsInter, 
-									crsTarget, 
-									true);
-							transformed = JTS.transform(geomInter, transform2);
-
-						}
-						*/
-					    // compute the geometry
-					    double surfaceSquareMeter = transformed.getArea();
-						
-					    // create the row
-						DataCell[] cells = new DataCell[numberOfCells+1];
-						for (int i=0; i<numberOfCells; i++)
-							cells[i] = geomAndRow.row.getCell(i);
-							
-						cells[numberOfCells] = DoubleCellFactory.create(surfaceSquareMeter);
-						
-						DataRow row = new DefaultRow(
-				    		  geomAndRow.row.getKey(), 
-				    		  cells
-				    		  );
-						container.addRowToTable(row);
-						  
-						if (done++ % 100 == 0) {
-							exec.checkCanceled();
-							exec.setProgress(done/total, "computing surface of row "+done);
-						}
-						  
-					} catch (FactoryException | MismatchedDimensionException | TransformException e) {
-						e.printStackTrace();
-						throw new InvalidSettingsException("An error occured during the reprojection of geometries; please reproject your geometries first: "+e.getMessage());
-					} 
-
-				}
+				container::addRowToTable, 
+				exec, 
+				createMapper(inputTable.getDataTableSpec())
 				);
 
 		container.close();
@@ -235,6 +313,46 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -242,6 +360,7 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 	protected void saveSettingsTo(final NodeSettingsWO settings) {
 		
 		m_colname.saveSettingsTo(settings);
+		m_method.saveSettingsTo(settings);
 	}
 
 	/**
@@ -251,6 +370,11 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
 		
 		m_colname.loadSettingsFrom(settings);
+		// workflows created before the method was proposed reproject each geometry
+		if (settings.containsKey(m_method.getKey()))
+			m_method.loadSettingsFrom(settings);
+		else
+			m_method.setStringValue(METHOD_PROJECTION_GEOMETRY);
 	}
 
 	/**
@@ -260,6 +384,8 @@ public class SpatialPropertySurfaceNodeModel extends NodeModel {
 	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
 		
 		m_colname.validateSettings(settings);
+		if (settings.containsKey(m_method.getKey()))
+			m_method.validateSettings(settings);
 	}
 
 	@Override
@@ -16,6 +16,7 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentMultiLineString;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentPasswordField;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
@@ -107,6 +108,56 @@ public class ReadWKTFromDatabaseNodeDialog extends DefaultNodeSettingsPane {
         		);
         this.addDialogComponent(layerComponent);
         
+        createNewGroup("Query");
+        
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("query area", ""),
+        		"area (minx,miny,maxx,maxy or WKT)",
+        		false,
+        		30
+        		));
+        
+        addDialogComponent(new DialogComponentMultiLineString(
+        		new SettingsModelString("query filter", ""),
+        		"filter (ECQL)",
+        		false,
+        		30,
+        		3
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("query max features", 0, 0, Integer.MAX_VALUE),
+        		"maximum count of features (0 for no limit)",
+        		1000
+        		));
+        
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("columns", ""),
+        		"columns to read (comma separated, empty for all)",
+        		false,
+        		30
+        		));
+        
+        createNewGroup("Performance");
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("fetch size", 1000, 1, Integer.MAX_VALUE),
+        		"fetch size (rows per round trip)",
+        		100
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("partitions", 1, 1, 64),
+        		"partitions read in parallel (1 to read sequentially)",
+        		1
+        		));
+        
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("partition column", ""),
+        		"partition column (numeric key)",
+        		false,
+        		20
+        		));
         
         ms.addChangeListener(new ChangeListener() {
 			
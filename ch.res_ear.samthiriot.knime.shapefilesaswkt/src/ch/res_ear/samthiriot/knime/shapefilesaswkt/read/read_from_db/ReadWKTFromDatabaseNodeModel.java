@@ -12,28 +12,57 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_db;
 
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.feature.visitor.MinVisitor;
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelPassword;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.port.PortObject;
 import org.knime.core.node.util.CheckUtils;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.AbstractReadWKTFromDatastoreNodeModel;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_shapefile.GeotoolsToDataTableMapper;
 
 
 /**
@@ -59,6 +88,26 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
 	protected SettingsModelString m_password = new SettingsModelPassword("password", ENCRYPTION_KEY, "postgres");
 	protected SettingsModelString m_layer = new SettingsModelString("layer", null);
 
+	/**
+	 * Count of rows fetched from the database at once
+	 */
+	protected SettingsModelIntegerBounded m_fetchSize = new SettingsModelIntegerBounded("fetch size", 1000, 1, Integer.MAX_VALUE);
+	
+	/**
+	 * Count of ranges of the layer read in parallel, each on its own connection; 1 to read sequentially 
+	 */
+	protected SettingsModelIntegerBounded m_partitions = new SettingsModelIntegerBounded("partitions", 1, 1, 64);
+	
+	/**
+	 * Numeric column used to split the layer into ranges
+	 */
+	protected SettingsModelString m_partitionColumn = new SettingsModelString("partition column", "");
+	
+	/**
+	 * Count of rows read by a partition between two updates of its progress
+	 */
+	private static final int ROWS_PER_BATCH = 1000;
+
 
 	/**
 	 * Constructor for the node model.
@@ -109,6 +158,9 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
         params.put("database", 	m_database.getStringValue());
         params.put("user", 		m_user.getStringValue());
         params.put("passwd", 	m_password.getStringValue());
+        params.put("fetch size",m_fetchSize.getIntValue());
+        // each partition read in parallel holds its own connection
+        params.put("max connections", Math.max(10, m_partitions.getIntValue() + 1));
 
         //params.put(PostgisDataStoreFactory.LOOSEBBOX, true );
         //params.put(PostgisDataStoreFactory.PREPARED_STATEMENTS, true );
@@ -147,6 +199,246 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
 		return layer;
 	}
 
+	/**
+	 * Returns true if the layer should be read as several partitions in parallel
+	 */
+	protected boolean isPartitioned() {
+		
+		if (m_partitions.getIntValue() <= 1)
+			return false;
+		final String column = m_partitionColumn.getStringValue();
+		if (column == null || column.trim().isEmpty()) {
+			getLogger().warn("no partition column defined; the layer will be read sequentially");
+			return false;
+		}
+		if (m_queryMaxFeatures.getIntValue() > 0) {
+			getLogger().warn("a maximum count of features is defined; the layer will be read sequentially");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Splits the range of values of the partition column into as many filters
+	 * as partitions. The partitions are half-open ranges [from, to) sharing their bounds,
+	 * the first one having no lower bound and the last one no upper bound, so the 
+	 * minimum, the maximum and the values equal to a bound are each read once. 
+	 * The last partition also contains the features having no value (NULL) 
+	 * for this column, so every feature is read once.
+	 */
+	protected static List<Filter> createPartitionFilters(
+			String column, Class<?> binding, 
+			Number min, Number max, 
+			int count,
+			Filter baseFilter) {
+		
+		final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+		final boolean integral = 
+				binding == Integer.class || binding == Long.class || 
+				binding == Short.class || binding == Byte.class || 
+				binding == BigInteger.class;
+		
+		// the bounds between partitions, computed once so two consecutive partitions use the same
+		final double lower = min.doubleValue();
+		final double step = (max.doubleValue() - lower) / count;
+		final Object[] bounds = new Object[count];
+		for (int i=1; i<count; i++) {
+			final double bound = lower + step*i;
+			bounds[i] = integral ? (Object)(long)Math.ceil(bound) : (Object)bound;
+		}
+		
+		List<Filter> filters = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			
+			List<Filter> conditions = new ArrayList<>(2);
+			if (i > 0)
+				conditions.add(ff.greaterOrEqual(ff.property(column), ff.literal(bounds[i])));
+			if (i < count - 1)
+				conditions.add(ff.less(ff.property(column), ff.literal(bounds[i+1])));
+			Filter range;
+			if (conditions.isEmpty())
+				range = Filter.INCLUDE;
+			else if (conditions.size() == 1)
+				range = conditions.get(0);
+			else
+				range = ff.and(conditions);
+			
+			if (i == count - 1 && range != Filter.INCLUDE)
+				range = ff.or(range, ff.isNull(ff.property(column)));
+			
+			if (baseFilter == null || baseFilter == Filter.INCLUDE)
+				filters.add(range);
+			else if (range == Filter.INCLUDE)
+				filters.add(baseFilter);
+			else
+				filters.add(ff.and(baseFilter, range));
+		}
+		
+		return filters;
+	}
+	
+    @Override
+    protected BufferedDataTable[] execute(final PortObject[] inObjects,
+            final ExecutionContext exec) throws Exception {
+    
+    	if (!isPartitioned())
+    		return super.execute(inObjects, exec);
+    	
+    	final String column = m_partitionColumn.getStringValue().trim();
+    	
+		final DataStore datastore = openDataStore(inObjects, exec);
+		
+		ExecutorService executor = null;
+		try {
+			final String schemaName = getSchemaName(datastore);
+			final SimpleFeatureType type = datastore.getSchema(schemaName);
+			
+			final AttributeDescriptor descriptor = type.getDescriptor(column);
+			if (descriptor == null)
+				throw new InvalidSettingsException("there is no column \""+column+"\" in the layer "+schemaName);
+			final Class<?> binding = descriptor.getType().getBinding();
+			if (!Number.class.isAssignableFrom(binding))
+				throw new InvalidSettingsException("the partition column \""+column+"\" should be numeric, not "+binding.getSimpleName());
+			
+			final Query query = createQuery(schemaName, type);
+			final SimpleFeatureSource source = datastore.getFeatureSource(schemaName);
+			final SimpleFeatureCollection features = source.getFeatures(query);
+			
+			final GeotoolsToDataTableMapper[] mappers = createMappers(
+					features.getSchema(), 
+					type.getCoordinateReferenceSystem());
+	        final DataTableSpec spec = createSpec(mappers);
+	        
+	        // the bounds of the partition column are computed by the database 
+	        exec.setMessage("computing the range of "+column);
+	        MinVisitor minVisitor = new MinVisitor(column);
+	        MaxVisitor maxVisitor = new MaxVisitor(column);
+	        features.accepts(minVisitor, null);
+	        features.accepts(maxVisitor, null);
+	        final Object min = minVisitor.getResult().getValue();
+	        final Object max = maxVisitor.getResult().getValue();
+	        
+	        final List<Filter> filters;
+	        if (min == null || max == null) 
+	        	// no value at all for this column: one partition reads everything
+	        	filters = Collections.singletonList(query.getFilter());
+	        else
+	        	filters = createPartitionFilters(
+	        			column, binding, 
+	        			(Number)min, (Number)max, 
+	        			m_partitions.getIntValue(), 
+	        			query.getFilter());
+	        
+	        // read each partition on its own connection, into its own container;
+	        // the containers are concatenated in the order of the partitions, 
+	        // so the order of the rows does not depend on the speed of each partition
+	        final int count = filters.size();
+	        final AtomicInteger[] read = new AtomicInteger[count];
+	        final BufferedDataContainer[] containers = new BufferedDataContainer[count];
+	        final List<Future<?>> futures = new ArrayList<>(count);
+	        executor = Executors.newFixedThreadPool(count);
+	        
+	        for (int p=0; p<count; p++) {
+	        	
+	        	final Query partitionQuery = new Query(query);
+	        	partitionQuery.setFilter(filters.get(p));
+	        	final ExecutionMonitor progress = exec.createSubProgress(1.0 / count);
+	        	final AtomicInteger partitionRead = new AtomicInteger(0);
+	        	read[p] = partitionRead;
+	        	final BufferedDataContainer partitionContainer = exec.createDataContainer(spec);
+	        	containers[p] = partitionContainer;
+	        	// the keys are unique among all the partitions
+	        	final String keyPrefix = "Row "+p+"_";
+	        	
+	        	futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						
+						// counted in parallel with the other partitions, only for the progress
+						final int total = source.getCount(partitionQuery);
+						SimpleFeatureIterator itFeature = source.getFeatures(partitionQuery).features();
+						try {
+							int done = 0;
+							while (itFeature.hasNext()) {
+								partitionContainer.addRowToTable(new DefaultRow(
+										new RowKey(keyPrefix + done), 
+										convert(mappers, itFeature.next())));
+								done++;
+								if (done % ROWS_PER_BATCH == 0) {
+									partitionRead.set(done);
+									progress.checkCanceled();
+									if (total > 0)
+										progress.setProgress((double)done / total);
+								}
+							}
+							partitionRead.set(done);
+							progress.setProgress(1.0);
+						} finally {
+							itFeature.close();
+							partitionContainer.close();
+						}
+						return null;
+					}
+				}));
+	        }
+	        
+	        // wait for the partitions
+	        while (true) {
+	        	
+	        	boolean allDone = true;
+	        	int finished = 0;
+	        	for (Future<?> f: futures) {
+	        		if (f.isDone()) {
+	        			finished++;
+	        			try {
+	        				f.get();
+	        			} catch (ExecutionException e) {
+	        				if (e.getCause() instanceof Exception)
+	        					throw (Exception)e.getCause();
+	        				throw e;
+	        			}
+	        		} else 
+	        			allDone = false;
+	        	}
+	        	if (allDone)
+	        		break;
+	        	
+	        	exec.checkCanceled();
+	        	
+	        	long rowIdx = 0;
+	        	for (AtomicInteger r: read)
+	        		rowIdx += r.get();
+	        	StringBuilder sb = new StringBuilder();
+	        	sb.append("read ").append(rowIdx).append(" rows; partitions done ")
+	        		.append(finished).append("/").append(count);
+	        	for (int p=0; p<count; p++) {
+	        		if (!futures.get(p).isDone())
+	        			sb.append(", #").append(p+1).append(": ").append(read[p].get());
+	        	}
+	        	exec.setMessage(sb.toString());
+	        	Thread.sleep(200);
+	        }
+	        
+	        BufferedDataTable[] tables = new BufferedDataTable[count];
+	        for (int p=0; p<count; p++)
+	        	tables[p] = containers[p].getTable();
+	        BufferedDataTable out = count == 1 ? 
+	        		tables[0] : 
+	        		exec.createConcatenateTable(exec, tables);
+	        
+	        // add flow variables for the CRS
+	        pushFlowVariableString("CRS_code", SpatialUtils.getStringForCRS(type.getCoordinateReferenceSystem()));
+	        pushFlowVariableString("CRS_WKT", type.getCoordinateReferenceSystem().toWKT());
+	        
+	        return new BufferedDataTable[]{ out };
+	        
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			datastore.dispose();
+		}
+    }
 	
 	/**
 	 * {@inheritDoc}
@@ -163,6 +455,10 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
 		m_user.saveSettingsTo(settings);
 		m_password.saveSettingsTo(settings);
 		m_layer.saveSettingsTo(settings);
+		saveQuerySettingsTo(settings);
+		m_fetchSize.saveSettingsTo(settings);
+		m_partitions.saveSettingsTo(settings);
+		m_partitionColumn.saveSettingsTo(settings);
 
 	}
 
@@ -180,6 +476,12 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
 		m_user.loadSettingsFrom(settings);
 		m_password.loadSettingsFrom(settings);
 		m_layer.loadSettingsFrom(settings);
+		loadQuerySettingsFrom(settings);
+		// settings added later; older workflows read sequentially
+		for (SettingsModel model: new SettingsModel[] { m_fetchSize, m_partitions, m_partitionColumn }) {
+			if (settings.containsKey(model.getKey()))
+				model.loadSettingsFrom(settings);
+		}
 		
 	}
 
@@ -197,6 +499,11 @@ public class ReadWKTFromDatabaseNodeModel extends AbstractReadWKTFromDatastoreNo
 		m_user.validateSettings(settings);
 		m_password.validateSettings(settings);
 		m_layer.validateSettings(settings);
+		validateQuerySettings(settings);
+		for (SettingsModel model: new SettingsModel[] { m_fetchSize, m_partitions, m_partitionColumn }) {
+			if (settings.containsKey(model.getKey()))
+				model.validateSettings(settings);
+		}
 	}
 
 	@Override
@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_geojson;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the features of a GeoJSON document one by one with a streaming parser,
+ * so only the current feature is in memory.
+ * The geometries are written as WKT directly from the tokens of the coordinates,
+ * keeping the numbers as they are written in the file;
+ * no intermediate geometry nor feature is built.
+ *
+ * Reads either a FeatureCollection or a single Feature, or a sequence
+ * of features such as GeoJSON lines (one feature per line) or
+ * <a href="https://tools.ietf.org/html/rfc8142">GeoJSON text sequences</a>.
+ *
+ * @author Samuel Thiriot
+ */
+public class GeoJSONStreamReader implements Closeable {
+
+	/**
+	 * A feature as read from the file
+	 */
+	public static class Feature {
+
+		/**
+		 * The id of the feature, or null
+		 */
+		public final String id;
+
+		/**
+		 * The geometry as WKT, or null if the feature has no geometry
+		 */
+		public final String geometry;
+
+		/**
+		 * The values of the properties, in the order of the file:
+		 * String, Integer, Long, Double, Boolean, or null.
+		 * Nested objects and arrays are kept as JSON strings.
+		 */
+		public final Map<String,Object> properties;
+
+		public Feature(String id, String geometry, Map<String,Object> properties) {
+			this.id = id;
+			this.geometry = geometry;
+			this.properties = properties;
+		}
+
+		/**
+		 * Returns the type of the geometry as written in WKT, such as POINT, or null
+		 */
+		public String getGeometryType() {
+			return GeoJSONStreamReader.getGeometryType(geometry);
+		}
+	}
+
+	/**
+	 * Replaces the record separators which start the texts of
+	 * GeoJSON text sequences by spaces, so they are ignored by the parser.
+	 */
+	private static class RecordSeparatorFilter extends FilterInputStream {
+
+		RecordSeparatorFilter(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			return b == RECORD_SEPARATOR ? ' ' : b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int count = super.read(b, off, len);
+			replaceRecordSeparators(b, off, count);
+			return count;
+		}
+	}
+
+	/**
+	 * The character starting each text of a GeoJSON text sequence
+	 */
+	private static final byte RECORD_SEPARATOR = 0x1E;
+
+	/**
+	 * Count of the ordinates of a position kept in the WKT (x, y and elevation)
+	 */
+	private static final int MAX_ORDINATES = 3;
+
+	/**
+	 * Extensions of the files containing one feature per line
+	 */
+	public static final String[] SEQUENCE_EXTENSIONS = {
+			".geojsonl", ".geojsons", ".geojsonseq", ".jsonl", ".ndjson"
+	};
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private final JsonParser parser;
+
+	/**
+	 * True while the parser is in the array of features
+	 */
+	private boolean inFeatures = false;
+
+	/**
+	 * The feature, when the document only contains one feature
+	 */
+	private Feature single = null;
+
+	/**
+	 * True if the document is a sequence of features
+	 */
+	private final boolean sequence;
+
+	public GeoJSONStreamReader(InputStream inputStream) throws IOException {
+		this(inputStream, false);
+	}
+
+	/**
+	 * @param inputStream the content of the file
+	 * @param sequence true if the file contains a sequence of features
+	 *  such as one feature per line, false if it contains a FeatureCollection or a Feature
+	 * @throws IOException
+	 */
+	public GeoJSONStreamReader(InputStream inputStream, boolean sequence) throws IOException {
+
+		this.sequence = sequence;
+
+		if (sequence) {
+			parser = FACTORY.createParser(new RecordSeparatorFilter(inputStream));
+			return;
+		}
+
+		parser = FACTORY.createParser(inputStream);
+
+		if (parser.nextToken() != JsonToken.START_OBJECT)
+			throw new IOException("invalid GeoJSON: the document should be an object");
+
+		// read the members of the document until the features
+		String type = null;
+		String id = null;
+		String geometry = null;
+		Map<String,Object> properties = new LinkedHashMap<>();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			if ("features".equals(name) && value == JsonToken.START_ARRAY) {
+				inFeatures = true;
+				return;
+			} else if ("type".equals(name)) {
+				type = parser.getText();
+			} else if ("id".equals(name)) {
+				id = value == JsonToken.VALUE_NULL ? null : parser.getText();
+			} else if ("geometry".equals(name)) {
+				geometry = value == JsonToken.START_OBJECT ? readGeometry(parser) : null;
+			} else if ("properties".equals(name) && value == JsonToken.START_OBJECT) {
+				readProperties(parser, properties);
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (!"Feature".equals(type))
+			throw new IOException("invalid GeoJSON: the document contains neither features nor a feature (type "+type+")");
+		single = new Feature(id, geometry, properties);
+	}
+
+	/**
+	 * Returns the next feature, or null at the end of the features
+	 */
+	public Feature next() throws IOException {
+
+		if (single != null) {
+			Feature f = single;
+			single = null;
+			return f;
+		}
+		if (sequence)
+			return nextInSequence(parser);
+		if (!inFeatures)
+			return null;
+
+		final JsonToken token = parser.nextToken();
+		if (token == JsonToken.END_ARRAY) {
+			inFeatures = false;
+			return null;
+		}
+		if (token != JsonToken.START_OBJECT)
+			throw new IOException("invalid GeoJSON: expected a feature at "+parser.getCurrentLocation());
+
+		return readFeature(parser);
+	}
+
+	/**
+	 * Count of bytes read so far, or -1 if unknown
+	 */
+	public long getBytesRead() {
+		return parser.getCurrentLocation().getByteOffset();
+	}
+
+	@Override
+	public void close() throws IOException {
+		parser.close();
+	}
+
+	/**
+	 * Returns true if the name of this file announces one feature per line
+	 */
+	public static boolean isSequenceFile(String filename) {
+		if (filename == null)
+			return false;
+		final String lower = filename.toLowerCase(Locale.ROOT);
+		for (String extension: SEQUENCE_EXTENSIONS) {
+			if (lower.endsWith(extension))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the type of the geometry written in WKT, such as POINT, or null
+	 */
+	public static String getGeometryType(String wkt) {
+		if (wkt == null)
+			return null;
+		final int idx = wkt.indexOf(' ');
+		return idx < 0 ? wkt : wkt.substring(0, idx);
+	}
+
+	/**
+	 * Reads all the features of a part of a sequence of features,
+	 * such as a range of complete lines of a file.
+	 * The record separators found in the buffer are replaced by spaces.
+	 *
+	 * @param buffer the content
+	 * @param offset the start of the features in the buffer
+	 * @param length the length of the features in the buffer
+	 * @return the features, in order
+	 * @throws IOException
+	 */
+	public static List<Feature> readSequence(byte[] buffer, int offset, int length) throws IOException {
+
+		replaceRecordSeparators(buffer, offset, length);
+
+		List<Feature> features = new ArrayList<>();
+		JsonParser parser = FACTORY.createParser(buffer, offset, length);
+		try {
+			Feature feature;
+			while ((feature = nextInSequence(parser)) != null)
+				features.add(feature);
+		} finally {
+			parser.close();
+		}
+		return features;
+	}
+
+	/**
+	 * Reads the next feature of a sequence, or returns null at its end
+	 */
+	protected static Feature nextInSequence(JsonParser parser) throws IOException {
+
+		final JsonToken token = parser.nextToken();
+		if (token == null)
+			return null;
+		if (token != JsonToken.START_OBJECT)
+			throw new IOException("invalid GeoJSON: expected a feature at "+parser.getCurrentLocation());
+		return readFeature(parser);
+	}
+
+	private static void replaceRecordSeparators(byte[] buffer, int offset, int length) {
+		for (int i=offset; i<offset+length; i++) {
+			if (buffer[i] == RECORD_SEPARATOR)
+				buffer[i] = ' ';
+		}
+	}
+
+	/**
+	 * Reads a feature, the parser being on the start of its object
+	 */
+	protected static Feature readFeature(JsonParser parser) throws IOException {
+
+		String id = null;
+		String geometry = null;
+		Map<String,Object> properties = new LinkedHashMap<>();
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			switch (name) {
+			case "id":
+				id = value == JsonToken.VALUE_NULL ? null : parser.getText();
+				break;
+			case "geometry":
+				geometry = value == JsonToken.START_OBJECT ? readGeometry(parser) : null;
+				break;
+			case "properties":
+				if (value == JsonToken.START_OBJECT)
+					readProperties(parser, properties);
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+		return new Feature(id, geometry, properties);
+	}
+
+	/**
+	 * Reads a geometry as WKT, the parser being on the start of its object.
+	 * The members might come in any order, so the coordinates are converted
+	 * before knowing the type.
+	 */
+	protected static String readGeometry(JsonParser parser) throws IOException {
+
+		String type = null;
+		String coordinates = null;
+		List<String> geometries = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			if ("type".equals(name)) {
+				type = parser.getText();
+			} else if ("coordinates".equals(name) && value == JsonToken.START_ARRAY) {
+				StringBuilder sb = new StringBuilder();
+				appendCoordinates(parser, sb);
+				coordinates = sb.toString();
+			} else if ("geometries".equals(name) && value == JsonToken.START_ARRAY) {
+				geometries = new ArrayList<>();
+				while (parser.nextToken() == JsonToken.START_OBJECT)
+					geometries.add(readGeometry(parser));
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (type == null)
+			throw new IOException("invalid GeoJSON: geometry without type at "+parser.getCurrentLocation());
+
+		// the GeoJSON types are the WKT ones, in another case
+		final String wktType = type.toUpperCase(Locale.ROOT);
+		if ("GEOMETRYCOLLECTION".equals(wktType)) {
+			if (geometries == null || geometries.isEmpty())
+				return wktType + " EMPTY";
+			return wktType + " (" + String.join(", ", geometries) + ")";
+		}
+		if (coordinates == null || coordinates.isEmpty())
+			return wktType + " EMPTY";
+		if ("POINT".equals(wktType))
+			return wktType + " (" + coordinates + ")";
+		return wktType + " " + coordinates;
+	}
+
+	/**
+	 * Appends as WKT the array of coordinates the parser is on.
+	 * A position becomes "x y" or "x y z", and an array of positions or arrays
+	 * becomes "(a, b, ...)", which is the WKT nesting of every geometry type.
+	 */
+	protected static void appendCoordinates(JsonParser parser, StringBuilder sb) throws IOException {
+
+		JsonToken token = parser.nextToken();
+		if (token == JsonToken.END_ARRAY)
+			return;
+
+		if (token.isNumeric()) {
+			// a position; only x, y and the elevation are kept,
+			// as RFC 7946 allows, because WKT readers reject the other ordinates
+			sb.append(parser.getText());
+			int count = 1;
+			while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+				if (count++ < MAX_ORDINATES)
+					sb.append(' ').append(parser.getText());
+			}
+			return;
+		}
+
+		sb.append('(');
+		boolean first = true;
+		while (token != JsonToken.END_ARRAY) {
+			if (token != JsonToken.START_ARRAY)
+				throw new IOException("invalid GeoJSON: unexpected "+token+" in coordinates at "+parser.getCurrentLocation());
+			if (!first)
+				sb.append(", ");
+			appendCoordinates(parser, sb);
+			first = false;
+			token = parser.nextToken();
+		}
+		sb.append(')');
+	}
+
+	/**
+	 * Reads the properties, the parser being on the start of their object
+	 */
+	protected static void readProperties(JsonParser parser, Map<String,Object> properties) throws IOException {
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.getCurrentName();
+			properties.put(name, readValue(parser, parser.nextToken()));
+		}
+	}
+
+	protected static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+
+		switch (token) {
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NUMBER_INT:
+			switch (parser.getNumberType()) {
+			case INT:
+				return parser.getIntValue();
+			case LONG:
+				return parser.getLongValue();
+			default:
+				return parser.getDoubleValue();
+			}
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDoubleValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case START_OBJECT:
+		case START_ARRAY:
+			// keep nested values as JSON
+			StringWriter writer = new StringWriter();
+			JsonGenerator generator = FACTORY.createGenerator(writer);
+			generator.copyCurrentStructure(parser);
+			generator.close();
+			return writer.toString();
+		default:
+			return null;
+		}
+	}
+
+}
@@ -12,6 +12,7 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_geojson;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.DialogComponentReferenceSystem;
@@ -30,7 +31,13 @@ public class ReadGeoJSONAsWKTNodeDialog extends DefaultNodeSettingsPane {
         addDialogComponent(new DialogComponentFileChooser(
         		new SettingsModelString("filename", null),
         		"GeoJSON",
-        		".json|.geojson", ".json", ".geojson"
+        		".json|.geojson|.geojsonl|.geojsons|.jsonl|.ndjson|.gz", ".json", ".geojson", ".geojsonl", ".jsonl", ".ndjson", ".gz"
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString("format", ReadGeoJSONAsWKTNodeModel.FORMAT_AUTO),
+        		"format",
+        		ReadGeoJSONAsWKTNodeModel.FORMATS
         		));
                    
 
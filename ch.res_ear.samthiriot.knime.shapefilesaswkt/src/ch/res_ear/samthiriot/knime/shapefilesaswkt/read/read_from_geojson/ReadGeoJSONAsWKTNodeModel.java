@@ -10,28 +10,50 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_geojson;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
-import org.geotools.feature.FeatureIterator;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.referencing.CRS;
 import org.knime.core.data.DataCell;
-import org.knime.core.data.DataColumnProperties;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.MissingCell;
 import org.knime.core.data.RowKey;
+import org.knime.core.data.def.BooleanCell;
+import org.knime.core.data.def.BooleanCell.BooleanCellFactory;
 import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.DoubleCell.DoubleCellFactory;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.IntCell.IntCellFactory;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.LongCell.LongCellFactory;
 import org.knime.core.data.def.StringCell;
 import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.node.BufferedDataContainer;
@@ -47,15 +69,12 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.CheckUtils;
 import org.knime.core.util.FileUtil;
-import org.locationtech.jts.geom.Geometry;
-import org.opengis.feature.Property;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.FeaturesDecodingUtils;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
-
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_geojson.GeoJSONStreamReader.Feature;
 
 /**
  * This is an example implementation of the node model of the
@@ -79,10 +98,46 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
 
     private final SettingsModelString m_file = new SettingsModelString("filename", null);
     private final SettingsModelString m_crs = new SettingsModelString("CRS", "EPSG:4326"); // WGS84
+    private final SettingsModelString m_format = new SettingsModelString("format", FORMAT_AUTO);
+
+    public static final String FORMAT_AUTO = "detect from the extension";
+    public static final String FORMAT_COLLECTION = "GeoJSON (FeatureCollection or Feature)";
+    public static final String FORMAT_SEQUENCE = "GeoJSON lines (one Feature per line)";
+    public static final List<String> FORMATS = Arrays.asList(FORMAT_AUTO, FORMAT_COLLECTION, FORMAT_SEQUENCE);
 
     // TODO make that a parameter
     private static int SAMPLE_LINES_JSON = 100;
     
+    /**
+     * Count of bytes of GeoJSON lines parsed together by one thread
+     */
+    private static final int BYTES_PER_CHUNK = 8 << 20;
+    
+    /**
+     * Specs inferred from the files, keyed by the path, the modification time and the CRS,
+     * so the frequent calls to configure do not parse the file again
+     */
+    private static final Map<String,DataTableSpec> CACHE_SPECS = Collections.synchronizedMap(
+    		new LinkedHashMap<String,DataTableSpec>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,DataTableSpec> eldest) {
+					return size() > 20;
+				}
+    		});
+    
+    /**
+     * Type of the geometries added so far during the execution
+     */
+    private String lastGeometryType = null;
+    private boolean errorGeomType = false;
+    
+    /**
+     * Properties for which a value could not be read during the execution; 
+     * we only warn once per property, and the features might be converted in parallel
+     */
+    private final Set<String> warnedProperties = ConcurrentHashMap.newKeySet();
+    
 	/**
 	 * Constructor for the node model.
 	 */
@@ -90,23 +145,14 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
         super(0, 1);
 	}
 
-
 	/**
-	 * Opens the file, and creates an iterator; return this iterator.
-	 * Please remind closing it.
-	 * @return
-	 * @throws InvalidSettingsException
-	 * @throws IOException 
+	 * Returns the URL of the file (possibly with knime:// protocol)
 	 */
-	protected FeatureIterator<SimpleFeature> getFeaturesIterator() throws InvalidSettingsException, IOException {
-	
-
-    	// open the file
-
+	protected URL getURL() throws InvalidSettingsException {
+		
     	// retrieve parameters
         CheckUtils.checkSourceFile(m_file.getStringValue());
         
-        // identify the file containing the KML (possibly with knime:// protocol)
         URL filename;
 		try {
 			filename = FileUtil.toURL(m_file.getStringValue());
@@ -117,8 +163,39 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
         
         if (filename == null)
         	throw new InvalidSettingsException("no file defined");
-       
         
+        return filename;
+	}
+
+	/**
+	 * Returns true if the file contains one feature per line, 
+	 * according to the settings or the extension of the file
+	 */
+	protected boolean isSequence(URL filename) {
+		final String format = m_format.getStringValue();
+		if (FORMAT_SEQUENCE.equals(format))
+			return true;
+		if (FORMAT_COLLECTION.equals(format))
+			return false;
+		return GeoJSONStreamReader.isSequenceFile(filename.getPath().replaceFirst("(?i)\\.gz$", ""));
+	}
+	
+	/**
+	 * Returns true if the file is compressed with gzip, according to its extension
+	 */
+	protected static boolean isGzip(URL filename) {
+		return filename.getPath().toLowerCase(Locale.ROOT).endsWith(".gz");
+	}
+	
+	/**
+	 * Opens the file, and creates a reader of its features.
+	 * Please remind closing it.
+	 * @return
+	 * @throws InvalidSettingsException
+	 * @throws IOException 
+	 */
+	protected GeoJSONStreamReader openReader(URL filename) throws InvalidSettingsException, IOException {
+	
         // open the file content
         InputStream inputStream;
 		try {
@@ -128,99 +205,272 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
 			throw new IllegalArgumentException("unable to open the URL "+filename+": "+e2.getMessage());
 		}
 	
+		if (isGzip(filename))
+			inputStream = new GZIPInputStream(inputStream, 1 << 16);
 		
-    	FeatureJSON io = new FeatureJSON();
-    	// TODO io.readCRS(inputStream)
-    	return io.streamFeatureCollection(inputStream);
-    	
+		return new GeoJSONStreamReader(new BufferedInputStream(inputStream, 1 << 16), isSequence(filename));
 	}
 	
 	/**
-	 * Decodes the first features from the GML, 
-	 * in order to detect what features are available there.
-	 * 
-	 * @throws InvalidSettingsException
-	 * @throws IOException 
+	 * Returns the local file behind this URL, or null if it is not a local file
 	 */
-	protected DataTableSpec decodeSpecsFromGeoJSON()
-					throws InvalidSettingsException, IOException {
-
-    	FeatureIterator<SimpleFeature> iter = getFeaturesIterator();
-		
-        // associate each property name with the corresponding column spec 
-        Map<String,DataColumnSpec> name2spec = new LinkedHashMap<>();
-        // add a column for id
-        name2spec.put(
-        		"id",
-        		new DataColumnSpecCreator(
-	    			"id", 
-	    			StringCell.TYPE
-	    			).createSpec()
-        		);
-
-        // CRS is always WGS84 for KML
-		CoordinateReferenceSystem crs;
+	protected File getLocalFile(URL filename) {
 		try {
-			crs = CRS.decode(m_crs.getStringValue()); 
+			File file = FileUtil.getFileFromURL(filename);
+			if (file != null && file.isFile())
+				return file;
+		} catch (IllegalArgumentException e) {
+			// not a local file
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the key of the specs of this file in the cache, 
+	 * or null if the file cannot be cached
+	 */
+	protected String getCacheKey(URL filename) {
+		File file = getLocalFile(filename);
+		if (file == null)
+			return null;
+		return file.getAbsolutePath()+"|"+file.lastModified()+"|"+m_crs.getStringValue()+"|"+isSequence(filename);
+	}
+	
+	protected CoordinateReferenceSystem getCRS() {
+		try {
+			return CRS.decode(m_crs.getStringValue()); 
 		} catch (FactoryException e) {
 			throw new RuntimeException("unable to find the Coordinate Reference System "+m_crs.getStringValue()+". This error should not happen. Please report this bug for solving.");
 		}      
-    	// we can now declare the geometry column
-    	DataColumnSpecCreator creatorGeom = new DataColumnSpecCreator(
-    			SpatialUtils.GEOMETRY_COLUMN_NAME, 
-    			StringCell.TYPE
-    			);
-		Map<String,String> properties = new HashMap<String, String>();
-		properties.put(SpatialUtils.PROPERTY_CRS_CODE, SpatialUtils.getStringForCRS(crs));
-		properties.put(SpatialUtils.PROPERTY_CRS_WKT, crs.toWKT());
-		DataColumnProperties propertiesKWT = new DataColumnProperties(properties);
-		creatorGeom.setProperties(propertiesKWT);
-		name2spec.put(SpatialUtils.GEOMETRY_COLUMN_NAME, creatorGeom.createSpec());
+	}
+	
+	/**
+	 * Reads the first features, which are used to detect the columns.
+	 */
+	protected List<Feature> readSample(GeoJSONStreamReader reader) throws IOException {
 		
-		int done = 0;
-		while( iter.hasNext() ){
-		    SimpleFeature feature = iter.next();
-		    
-		    CoordinateReferenceSystem currentCRS = feature.getType().getCoordinateReferenceSystem();
-		    if (currentCRS != null && !crs.equals(currentCRS)) {
-			    	throw new InvalidSettingsException("invalid GeoJSON file: found several different Coordinate Reference System for different features");
-		    }
-		    
-        	for (Property property: feature.getProperties()) {
-        		final String name = property.getName().toString();
+		List<Feature> sample = new ArrayList<>(SAMPLE_LINES_JSON+1);
+		Feature feature;
+		while (sample.size() <= SAMPLE_LINES_JSON && (feature = reader.next()) != null)
+			sample.add(feature);
+		return sample;
+	}
+	
+	/**
+	 * Returns the Java type able to store both types of values, 
+	 * or String if they are not compatible.
+	 */
+	protected static Class<?> mergeTypes(Class<?> previous, Class<?> current) {
+		if (previous == null || previous.equals(current))
+			return current;
+		if (current == null)
+			return previous;
+		if (Number.class.isAssignableFrom(previous) && Number.class.isAssignableFrom(current)) {
+			if (previous.equals(Double.class) || current.equals(Double.class))
+				return Double.class;
+			return Long.class;
+		}
+		return String.class;
+	}
+	
+	/**
+	 * Creates the specs of the table from a sample of features
+	 * in order to detect what features are available there.
+	 */
+	protected DataTableSpec createSpecs(List<Feature> sample, CoordinateReferenceSystem crs) {
+		
+        // associate each property name with the type of its values 
+        Map<String,Class<?>> name2type = new LinkedHashMap<>();
+        for (Feature feature: sample) {
+        	for (Map.Entry<String,Object> property: feature.properties.entrySet()) {
+        		final String name = property.getKey();
         		
         		// special case: the col name geometry is assumed to contain the geometry
-        		if ("geometry".equals(name))
+        		if ("geometry".equals(name) || "id".equals(name) || SpatialUtils.GEOMETRY_COLUMN_NAME.equals(name))
         			continue;
         		
-        		DataColumnSpec columnSpec = FeaturesDecodingUtils.getColumnSpecForFeatureProperty(
-						property,
-						name,
-						getLogger());
-        		
-        		DataColumnSpec previousSpec = name2spec.get(name);
-        		if (previousSpec != null) {
-        			if (!previousSpec.getType().equals(columnSpec.getType()))
-	        			throw new InvalidSettingsException(
-	        					"invalid GML file: the property "+name+" has different types "+
-	        					previousSpec.getType()+" and "+columnSpec.getType());
-        		} else {
-        			name2spec.put(name, columnSpec);
-        		}
-        		
+        		final Object value = property.getValue();
+        		final Class<?> previous = name2type.get(name);
+        		final Class<?> merged = mergeTypes(previous, value == null ? null : value.getClass());
+        		if (previous != null && merged != null && !previous.equals(merged) && merged.equals(String.class))
+        			logger.warn("the property "+name+" has values of types "+previous.getSimpleName()+" and "+
+        					value.getClass().getSimpleName()+"; it will be read as String");
+        		name2type.put(name, merged);
         	}
-		    if (done++ >= SAMPLE_LINES_JSON)
-		    	break;
-		}
-		iter.close();
-		
+        }
+        
+        List<DataColumnSpec> specs = new ArrayList<>(name2type.size()+2);
+        // add a column for id
+        specs.add(new DataColumnSpecCreator("id", StringCell.TYPE).createSpec());
+    	// we can now declare the geometry column
+        specs.add(FeaturesDecodingUtils.createDataColumnSpecForGeom(crs));
+        
+        for (Map.Entry<String,Class<?>> e: name2type.entrySet()) {
+        	final Class<?> type = e.getValue();
+        	DataType knimeType;
+        	if (Integer.class.equals(type))
+        		knimeType = IntCell.TYPE;
+        	else if (Long.class.equals(type))
+        		knimeType = LongCell.TYPE;
+        	else if (Double.class.equals(type))
+        		knimeType = DoubleCell.TYPE;
+        	else if (Boolean.class.equals(type))
+        		knimeType = BooleanCell.TYPE;
+        	else 
+        		// also when there was only null values in the sample
+        		knimeType = StringCell.TYPE;
+        	specs.add(new DataColumnSpecCreator(e.getKey(), knimeType).createSpec());
+        }
+        
         return new DataTableSpec(
         		"GeoJSON entities",
-        		name2spec.values().toArray(new DataColumnSpec[name2spec.size()])
+        		specs.toArray(new DataColumnSpec[specs.size()])
         		);
 	}
 	
+	/**
+	 * Decodes the first features from the GeoJSON, 
+	 * in order to detect what features are available there.
+	 * The specs are cached as long as the file is not modified.
+	 * 
+	 * @throws InvalidSettingsException
+	 * @throws IOException 
+	 */
+	protected DataTableSpec decodeSpecsFromGeoJSON()
+					throws InvalidSettingsException, IOException {
 
+		final URL filename = getURL();
+		final String key = getCacheKey(filename);
+		if (key != null) {
+			DataTableSpec cached = CACHE_SPECS.get(key);
+			if (cached != null)
+				return cached;
+		}
+		
+		GeoJSONStreamReader reader = openReader(filename);
+		try {
+			DataTableSpec specs = createSpecs(readSample(reader), getCRS());
+			if (key != null)
+				CACHE_SPECS.put(key, specs);
+			return specs;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Converts a value read from the file into a cell of the type of the column, 
+	 * or returns null if the value is missing or cannot be converted.
+	 */
+	protected static DataCell convertValue(Object value, DataType type) {
+		
+		if (value == null)
+			return null;
+		if (type.equals(StringCell.TYPE))
+			return StringCellFactory.create(value.toString());
+		if (type.equals(BooleanCell.TYPE))
+			return value instanceof Boolean ? BooleanCellFactory.create((Boolean)value) : null;
+		if (!(value instanceof Number))
+			return null;
+		final Number number = (Number)value;
+		if (type.equals(DoubleCell.TYPE))
+			return DoubleCellFactory.create(number.doubleValue());
+		if (number instanceof Double)
+			return null;
+		if (type.equals(LongCell.TYPE))
+			return LongCellFactory.create(number.longValue());
+		if (type.equals(IntCell.TYPE) && number instanceof Integer)
+			return IntCellFactory.create(number.intValue());
+		return null;
+	}
+	
+	/**
+	 * Converts a feature into the cells of a row, 
+	 * or returns null if the feature has no geometry.
+	 */
+	protected DataCell[] convertFeature(Feature feature, DataTableSpec tableSpec, int idxGeom, int idxId, DataCell missing) {
+		
+    	// skip empty geometries
+    	if (feature.geometry == null) {
+    		getLogger().warn("ignoring a feature which has no geometry: "+feature.id);
+    		return null;
+    	}
+    	
+    	// the columns were detected on the sample only
+    	for (String name: feature.properties.keySet()) {
+    		if (!tableSpec.containsName(name) && !"geometry".equals(name) && warnedProperties.add(name))
+    			getLogger().warn("the property "+name+" was not found in the first "+(SAMPLE_LINES_JSON+1)+
+    					" features used to detect the columns; its values will be ignored");
+    	}
+    	
+    	DataCell[] cells = new DataCell[tableSpec.getNumColumns()];
+	    // for each of the expected columns, try to find the corresponding cell
+	    for (int col = 0; col < cells.length; col++) {
+	    	DataCell cell;
+	    	if (col == idxGeom)
+	    		cell = StringCellFactory.create(feature.geometry);
+	    	else if (col == idxId)
+	    		cell = feature.id == null ? null : StringCellFactory.create(feature.id);
+	    	else {
+	    		final DataColumnSpec colSpec = tableSpec.getColumnSpec(col);
+	    		final Object value = feature.properties.get(colSpec.getName());
+	    		cell = convertValue(value, colSpec.getType());
+	    		if (cell == null && value != null && warnedProperties.add(colSpec.getName()))
+	    			getLogger().warn("the value "+value+" of the property "+colSpec.getName()+
+	    					" does not fit the type "+colSpec.getType()+" detected in the first "+(SAMPLE_LINES_JSON+1)+
+	    					" features; such values will be read as missing");
+	    	}
+	    	cells[col] = cell == null ? missing : cell;
+	    }
+	    return cells;
+	}
+	
+	/**
+	 * Returns the position of the start of the line following this position, 
+	 * or the length of the file if there is no other line.
+	 */
+	protected static long findNextLine(FileChannel channel, long position, long length) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		while (position < length) {
+			buffer.clear();
+			final int read = channel.read(buffer, position);
+			if (read < 0)
+				break;
+			for (int i=0; i<read; i++) {
+				if (buffer.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += read;
+		}
+		return length;
+	}
+	
+	/**
+	 * Reads and converts the features of the range of complete lines 
+	 * between these positions.
+	 */
+	protected List<DataCell[]> readLines(
+			FileChannel channel, long start, long end,
+			DataTableSpec tableSpec, int idxGeom, int idxId, DataCell missing) throws IOException {
+		
+		// positional reads, so several threads can share the channel
+		final byte[] bytes = new byte[(int)(end - start)];
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0)
+				throw new IOException("unexpected end of file at "+(start + buffer.position()));
+		}
+		
+		List<Feature> features = GeoJSONStreamReader.readSequence(bytes, 0, bytes.length);
+		List<DataCell[]> rows = new ArrayList<>(features.size());
+		for (Feature feature: features) {
+			DataCell[] cells = convertFeature(feature, tableSpec, idxGeom, idxId, missing);
+			if (cells != null)
+				rows.add(cells);
+		}
+		return rows;
+	}
     
 	/**
      * {@inheritDoc}
@@ -254,110 +504,140 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
     	
-    	// create the data table specs
-        final DataTableSpec tableSpec = decodeSpecsFromGeoJSON();
-        
-        // the container of read entities
-        final BufferedDataContainer container = exec.createDataContainer(tableSpec);
-
-        final DataCell missing = new MissingCell("was undefined in GML");
-        
-	    CoordinateReferenceSystem crs;
-	    try {
-			crs = CRS.decode(m_crs.getStringValue()); 
-		} catch (FactoryException e) {
-			throw new RuntimeException("unable to find the Coordinate Reference System "+m_crs.getStringValue()+". This error should not happen. Please report this bug for solving.");
-		}      
+	    final CoordinateReferenceSystem crs = getCRS();
 	    
-	    //PrecisionModel precisionGeom = new PrecisionModel(PrecisionModel.FLOATING);
+	    final URL filename = getURL();
+	    final File localFile = getLocalFile(filename);
+	    // the progress is unknown in compressed files
+	    final long length = localFile == null || isGzip(filename) ? -1 : localFile.length();
 	    
-	    FeatureIterator<SimpleFeature> iter = getFeaturesIterator();
-        int line = 0;
+	    // the file is read once: the sample is buffered to create the specs, then converted
+	    GeoJSONStreamReader reader = openReader(filename);
         try {
-        	String lastGeometryType = null;
-        	boolean errorGeomType = false;
-    		while( iter.hasNext() ) {
-    		    SimpleFeature feature = iter.next();
-   		    
-	        	ArrayList<DataCell> cells = new ArrayList<DataCell>(tableSpec.getNumColumns());
-
-    		    // each feature has its own CRS; let's check it is oK
-    		    CoordinateReferenceSystem currentCRS = feature.getType().getCoordinateReferenceSystem();
-    		    if (currentCRS != null && !crs.equals(currentCRS)) {
-    		    	throw new InvalidSettingsException("invalid GML file: found several different Coordinate Reference System for different features");
-    		    }
         	
-	        	// skip empty geometries
-	        	if (feature.getDefaultGeometry() == null) {
-	        		getLogger().warn("ignoring a feature which has no geometry: "+feature);
-	        		continue;
-	        	}
-	        	   
-    		    // for each of the expected columns, try to find the corresponding cell
-    		    for (int col = 0; col < tableSpec.getNumColumns(); col++) {
-    		    	DataColumnSpec colSpec = tableSpec.getColumnSpec(col);
-    		    	final String name = colSpec.getName();
-    		    	String givenName;
-            		// special case: the col name geometry is assumed to contain the geometry
-            		if ("geometry".equals(name))
-            			givenName = SpatialUtils.GEOMETRY_COLUMN_NAME;
-            		else 
-            			givenName = name;
-            		
-    		    	Property property = feature.getProperty(name);
-    		    	
-    		    	Geometry geom = (Geometry) feature.getDefaultGeometry();
-    		    	if (lastGeometryType == null)
-    		    		lastGeometryType = geom.getGeometryType();
-    		    	else if (!errorGeomType && !lastGeometryType.equals(geom.getGeometryType())) {
-    		    		setWarningMessage("There are several geometry types in this table. Some manipulations will not be available, such as shapefile exportation.");
-    		    		errorGeomType = true;
-    		    	}
-    		    	
-    		    	DataCell cell = null;
-    		    	
-    		    	if ("id".equals(givenName)) 
-    		        	cell = StringCellFactory.create(feature.getID());
-    		    	else if (SpatialUtils.GEOMETRY_COLUMN_NAME.equals(givenName)) 
-    		        	cell = StringCellFactory.create(geom.toString());
-    		    	else if (property != null) 
-    		    		cell = FeaturesDecodingUtils.getDataCellForProperty(property, feature);
-    		    	
-    		    	if (cell == null)
-    		    		cells.add(missing);
-    		    	else
-    		    		cells.add(cell);
-    		    }
-    		    
-				container.addRowToTable(
-	        			new DefaultRow(
-		        			new RowKey("Row_" + line), 
-		        			cells
-		        			)
-	        			);
-				
-				if (line++ % 10 == 0) {
-					exec.checkCanceled();
-					exec.setMessage("reading GML entity "+line);
-				}
-    		}
+        	final List<Feature> sample = readSample(reader);
+        	
+	    	// create the data table specs
+	        final DataTableSpec tableSpec = createSpecs(sample, crs);
+	        final String key = getCacheKey(filename);
+	        if (key != null)
+	        	CACHE_SPECS.put(key, tableSpec);
+	        
+	        // the container of read entities
+	        final BufferedDataContainer container = exec.createDataContainer(tableSpec);
+	        final int idxGeom = tableSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+	        final int idxId = tableSpec.findColumnIndex("id");
+	        
+	        final DataCell missing = new MissingCell("was undefined in GeoJSON");
+
+	        lastGeometryType = null;
+	        errorGeomType = false;
+	        warnedProperties.clear();
+	        int line = 0;
+	        
+	        if (localFile != null && isSequence(filename) && !isGzip(filename)) {
+	        	
+	        	// one feature per line: the lines are parsed by ranges in parallel,
+	        	// and the sample is read again with the first range
+	        	reader.close();
+	        	
+	        	final int threads = SpatialUtils.getParallelThreadsCount();
+	    		final int maxPending = threads * 2;
+	    		Deque<Future<List<DataCell[]>>> pending = new ArrayDeque<>(maxPending);
+	    		ExecutorService executor = Executors.newFixedThreadPool(threads);
+	    		FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+	    		try {
+	    			long start = 0;
+	    			while (start < length) {
+	    				final long from = start;
+	    				final long to = findNextLine(channel, Math.min(length, start + BYTES_PER_CHUNK), length);
+	    				pending.add(executor.submit(() -> readLines(channel, from, to, tableSpec, idxGeom, idxId, missing)));
+	    				start = to;
+	    				
+	    				// store the ranges already read
+		    			while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+		    				for (DataCell[] cells: SpatialUtils.waitForChunk(pending.poll()))
+		    					addRow(container, cells, idxGeom, line++);
+		    			}
+		    			exec.checkCanceled();
+		    			exec.setProgress((double)to / length, "reading GeoJSON entity "+line);
+	    			}
+	    			// store the last ranges
+	    			while (!pending.isEmpty()) {
+	    				for (DataCell[] cells: SpatialUtils.waitForChunk(pending.poll()))
+	    					addRow(container, cells, idxGeom, line++);
+	    				exec.checkCanceled();
+	    			}
+	    		} finally {
+	    			executor.shutdownNow();
+	    			channel.close();
+	    		}
+	    		
+	        } else {
+	        	
+	        	Iterator<Feature> itSample = sample.iterator();
+	        	while (true) {
+	        		
+	        		Feature feature;
+	        		if (itSample.hasNext()) 
+	        			feature = itSample.next();
+	        		else 
+	        			feature = reader.next();
+	        		if (feature == null)
+	        			break;
+	        		
+	        		DataCell[] cells = convertFeature(feature, tableSpec, idxGeom, idxId, missing);
+	        		if (cells == null)
+	        			continue;
+	        		addRow(container, cells, idxGeom, line);
+					
+					if (line++ % 100 == 0) {
+						exec.checkCanceled();
+						final long read = reader.getBytesRead();
+						if (length > 0 && read >= 0)
+							exec.setProgress((double)read / length, "reading GeoJSON entity "+line);
+						else
+							exec.setMessage("reading GeoJSON entity "+line);
+					}
+	    		}
+	        }
     		
+	        // once we are done, we close the container and return its table
+	        container.close();
+	        BufferedDataTable out = container.getTable();
+	        
+	        // add flow variables for the CRS
+	        pushFlowVariableString("CRS_code", SpatialUtils.getStringForCRS(crs));
+	        pushFlowVariableString("CRS_WKT", crs.toWKT());
+	        
+	        return new BufferedDataTable[]{ out };
+	        
         } finally {
-        	if (iter != null)
-        		iter.close();
+       		reader.close();
         }
-        	
-        // once we are done, we close the container and return its table
-        container.close();
-        BufferedDataTable out = container.getTable();
-        
-        // add flow variables for the CRS
-        pushFlowVariableString("CRS_code", SpatialUtils.getStringForCRS(crs));
-        pushFlowVariableString("CRS_WKT", crs.toWKT());
-        
-        return new BufferedDataTable[]{ out };
         
     }
+    
+    /**
+     * Adds a row to the table, and warns once if the geometries are of several types
+     */
+    protected void addRow(BufferedDataContainer container, DataCell[] cells, int idxGeom, int line) {
+    	
+    	final String geometryType = GeoJSONStreamReader.getGeometryType(cells[idxGeom].toString());
+    	if (lastGeometryType == null)
+    		lastGeometryType = geometryType;
+    	else if (!errorGeomType && !lastGeometryType.equals(geometryType)) {
+    		setWarningMessage("There are several geometry types in this table. Some manipulations will not be available, such as shapefile exportation.");
+    		errorGeomType = true;
+    	}
+    	
+		container.addRowToTable(
+    			new DefaultRow(
+        			new RowKey("Row_" + line), 
+        			cells
+        			)
+    			);
+    }
 
     
     /**
@@ -368,6 +648,7 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
         
     	m_file.saveSettingsTo(settings);
     	m_crs.saveSettingsTo(settings);
+    	m_format.saveSettingsTo(settings);
     	
     }
 
@@ -380,6 +661,11 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
             
         m_file.loadSettingsFrom(settings);
         m_crs.loadSettingsFrom(settings);
+        // added later; older workflows read GeoJSON documents
+        if (settings.containsKey(m_format.getKey()))
+        	m_format.loadSettingsFrom(settings);
+        else
+        	m_format.setStringValue(FORMAT_COLLECTION);
         
     }
 
@@ -392,6 +678,11 @@ public class ReadGeoJSONAsWKTNodeModel extends NodeModel {
 
     	m_file.validateSettings(settings);
     	m_crs.validateSettings(settings);
+    	if (settings.containsKey(m_format.getKey())) {
+    		final String format = settings.getString(m_format.getKey());
+    		if (!FORMATS.contains(format))
+    			throw new InvalidSettingsException("unknown format "+format);
+    	}
     	
     }
     
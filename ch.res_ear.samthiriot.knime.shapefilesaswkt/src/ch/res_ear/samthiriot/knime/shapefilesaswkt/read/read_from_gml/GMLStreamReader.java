@@ -0,0 +1,580 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_gml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.io.WKTWriter;
+
+/**
+ * Reads the features of a GML 2 or GML 3 document one by one with a StAX pull parser,
+ * so only the current feature is in memory.
+ * Every featureMember (or every child of featureMembers, or WFS member) is a feature;
+ * its first GML geometry becomes the geometry of the feature, and its other
+ * child elements become properties, kept as the text of the file.
+ *
+ * The coordinates of pos, posList and coordinates are parsed directly into
+ * arrays of doubles, from which the geometries are built.
+ * The properties which are not kept are skipped without reading their content.
+ *
+ * @author Samuel Thiriot
+ */
+public class GMLStreamReader implements Closeable {
+
+	/**
+	 * A feature as read from the file
+	 */
+	public static class Feature {
+
+		/**
+		 * The id of the feature (gml:id or fid), or null
+		 */
+		public final String id;
+
+		/**
+		 * The geometry as WKT, or null if the feature has no geometry
+		 */
+		public final String geometry;
+
+		/**
+		 * The name of the Coordinate Reference System of the geometry, or null
+		 */
+		public final String srsName;
+
+		/**
+		 * The text of the properties, in the order of the file.
+		 * Elements containing other elements have no text.
+		 */
+		public final Map<String,String> properties;
+
+		public Feature(String id, String geometry, String srsName, Map<String,String> properties) {
+			this.id = id;
+			this.geometry = geometry;
+			this.srsName = srsName;
+			this.properties = properties;
+		}
+	}
+
+	/**
+	 * Local names of the GML elements decoded as geometries
+	 */
+	private static final Set<String> GEOMETRIES = new LinkedHashSet<>(Arrays.asList(
+			"Point", "LineString", "LinearRing", "Curve", "Ring",
+			"Polygon", "Surface", "MultiPoint", "MultiLineString", "MultiCurve",
+			"MultiPolygon", "MultiSurface", "MultiGeometry"
+			));
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static {
+		// no external entity is ever needed to read features
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	private final InputStream inputStream;
+	private final XMLStreamReader reader;
+
+	private final GeometryFactory geometryFactory = new GeometryFactory();
+	private final WKTWriter wktWriter = new WKTWriter(3);
+
+	/**
+	 * Names of the properties to read, or null to read all of them
+	 */
+	private final Set<String> selected;
+
+	/**
+	 * Names of the properties skipped when all of them are read
+	 */
+	private final Set<String> ignored;
+
+	/**
+	 * Names of all the properties found so far, including the skipped ones
+	 */
+	private final Set<String> propertyNames = new LinkedHashSet<>();
+
+	/**
+	 * True when reading the children of featureMembers
+	 */
+	private boolean inMembers = false;
+
+	/**
+	 * Count of ordinates of the positions of the current geometry
+	 */
+	private int dimension = 2;
+
+	/**
+	 * Buffer of the ordinates of the positions being read
+	 */
+	private double[] ordinates = new double[256];
+	private int countOrdinates = 0;
+
+	/**
+	 * @param inputStream the GML document, which is closed with this reader
+	 * @param selected the names of the properties to read, or null to read all of them
+	 * @param ignored the names of the properties to skip when all of them are read
+	 * @throws IOException
+	 */
+	public GMLStreamReader(InputStream inputStream, Set<String> selected, Set<String> ignored) throws IOException {
+
+		this.inputStream = inputStream;
+		this.selected = selected;
+		this.ignored = ignored == null ? Collections.emptySet() : ignored;
+		try {
+			this.reader = FACTORY.createXMLStreamReader(inputStream);
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+			throw new IOException("unable to read the file as XML: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the names of all the properties found in the features read so far,
+	 * including the ones which were skipped
+	 */
+	public Set<String> getPropertyNames() {
+		return propertyNames;
+	}
+
+	/**
+	 * Returns the next feature, or null at the end of the document
+	 */
+	public Feature next() throws IOException {
+
+		try {
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if (inMembers)
+						return readFeature();
+					if ("featureMember".equals(name) || "member".equals(name)) {
+						if (nextElement())
+							return readFeature();
+					} else if ("featureMembers".equals(name)) {
+						inMembers = true;
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if ("featureMembers".equals(reader.getLocalName()))
+						inMembers = false;
+				}
+			}
+			return null;
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+			throw new IOException("invalid GML: "+e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// closing the XML reader does not close the underlying stream
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Moves to the next child element and returns true,
+	 * or returns false if the current element ends before
+	 */
+	private boolean nextElement() throws XMLStreamException {
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				return true;
+			if (event == XMLStreamConstants.END_ELEMENT)
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Skips the current element and its content
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	private boolean isGeometry() {
+		final String namespace = reader.getNamespaceURI();
+		return namespace != null && namespace.startsWith("http://www.opengis.net/gml")
+				&& GEOMETRIES.contains(reader.getLocalName());
+	}
+
+	private boolean isKept(String name) {
+		if (selected != null)
+			return selected.contains(name);
+		return !ignored.contains(name);
+	}
+
+	/**
+	 * Reads a feature, the reader being on the start of its element
+	 */
+	protected Feature readFeature() throws XMLStreamException, IOException {
+
+		String id = reader.getAttributeValue(null, "id");
+		if (id == null)
+			id = reader.getAttributeValue(null, "fid");
+
+		String geometry = null;
+		String srsName = null;
+		Map<String,String> properties = new LinkedHashMap<>();
+
+		while (nextElement()) {
+			final String name = reader.getLocalName();
+			final boolean kept = isKept(name);
+
+			// the content is either text or one geometry;
+			// the geometry of the feature is read even if its property is not kept
+			StringBuilder text = null;
+			boolean isGeometryProperty = false;
+			int event;
+			while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					if (isGeometry() && (geometry == null || kept)) {
+						dimension = 2;
+						final String srs = reader.getAttributeValue(null, "srsName");
+						final String wkt = wktWriter.write(readGeometry());
+						if (geometry == null) {
+							geometry = wkt;
+							srsName = srs;
+							isGeometryProperty = true;
+						} else {
+							// other geometries are kept as text
+							properties.put(name, wkt);
+						}
+					} else {
+						skipElement();
+					}
+					if (!kept || isGeometryProperty) {
+						skipRemaining();
+						break;
+					}
+				} else if (kept && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+					if (text == null)
+						text = new StringBuilder();
+					text.append(reader.getText());
+				}
+			}
+			if (isGeometryProperty)
+				continue;
+			propertyNames.add(name);
+			if (kept && !properties.containsKey(name))
+				properties.put(name, text == null ? null : text.toString().trim());
+		}
+
+		return new Feature(id, geometry, srsName, properties);
+	}
+
+	/**
+	 * Skips the end of the current element, the reader being on the end of a child
+	 */
+	private void skipRemaining() throws XMLStreamException {
+		int event;
+		while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+			if (event == XMLStreamConstants.START_ELEMENT)
+				skipElement();
+		}
+	}
+
+	/**
+	 * Reads a geometry, the reader being on the start of its element
+	 */
+	protected Geometry readGeometry() throws XMLStreamException, IOException {
+
+		final String type = reader.getLocalName();
+		final String srsDimension = reader.getAttributeValue(null, "srsDimension");
+		if (srsDimension != null)
+			dimension = parseDimension(srsDimension);
+
+		switch (type) {
+		case "Point":
+			readPositions();
+			return geometryFactory.createPoint(createSequence());
+		case "LineString":
+		case "Curve":
+			readPositions();
+			return geometryFactory.createLineString(createSequence());
+		case "LinearRing":
+		case "Ring":
+			readPositions();
+			return geometryFactory.createLinearRing(createSequence());
+		case "Polygon":
+		case "Surface":
+			return readPolygons();
+		case "MultiGeometry":
+			return geometryFactory.createGeometryCollection(
+					readMembers().toArray(new Geometry[0]));
+		case "MultiPoint":
+			return geometryFactory.createMultiPoint(
+					GeometryFactory.toPointArray(flatten(readMembers())));
+		case "MultiLineString":
+		case "MultiCurve":
+			return geometryFactory.createMultiLineString(
+					GeometryFactory.toLineStringArray(flatten(readMembers())));
+		default:
+			return geometryFactory.createMultiPolygon(
+					GeometryFactory.toPolygonArray(flatten(readMembers())));
+		}
+	}
+
+	/**
+	 * Returns the members, the ones made of several parts (surfaces of several patches) being split
+	 */
+	private static List<Geometry> flatten(List<Geometry> members) {
+		List<Geometry> res = new ArrayList<>(members.size());
+		for (Geometry member: members) {
+			for (int i=0; i<member.getNumGeometries(); i++)
+				res.add(member.getGeometryN(i));
+		}
+		return res;
+	}
+
+	/**
+	 * Reads the member geometries until the end of the current element
+	 */
+	protected List<Geometry> readMembers() throws XMLStreamException, IOException {
+
+		List<Geometry> members = new ArrayList<>();
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (isGeometry())
+					members.add(readGeometry());
+				else
+					// pointMember, curveMembers, surfaceMember, polygonMember...
+					depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Reads the rings of a polygon or of the patches of a surface
+	 * until the end of the current element
+	 */
+	protected Geometry readPolygons() throws XMLStreamException, IOException {
+
+		List<Polygon> polygons = new ArrayList<>(1);
+		LinearRing shell = null;
+		List<LinearRing> holes = new ArrayList<>();
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				if ("exterior".equals(name) || "outerBoundaryIs".equals(name)) {
+					if (shell != null) {
+						// a new patch
+						polygons.add(geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[0])));
+						holes.clear();
+					}
+					readPositions();
+					shell = geometryFactory.createLinearRing(createSequence());
+				} else if ("interior".equals(name) || "innerBoundaryIs".equals(name)) {
+					readPositions();
+					holes.add(geometryFactory.createLinearRing(createSequence()));
+				} else {
+					// patches, PolygonPatch
+					depth++;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		if (shell != null)
+			polygons.add(geometryFactory.createPolygon(shell, holes.toArray(new LinearRing[0])));
+
+		if (polygons.isEmpty())
+			return geometryFactory.createPolygon();
+		if (polygons.size() == 1)
+			return polygons.get(0);
+		return geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+	}
+
+	/**
+	 * Reads into the buffer the positions found until the end of the current element,
+	 * whatever the nesting (segments of curves, members of rings, ...).
+	 * The end position of a list is not repeated as the start of the next one.
+	 */
+	protected void readPositions() throws XMLStreamException, IOException {
+
+		countOrdinates = 0;
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				final int start = countOrdinates;
+				switch (name) {
+				case "pos":
+				case "posList":
+					final String srsDimension = reader.getAttributeValue(null, "srsDimension");
+					if (srsDimension != null)
+						dimension = parseDimension(srsDimension);
+					final int count = parseOrdinates(reader.getElementText(), ' ', ' ');
+					if ("pos".equals(name) && srsDimension == null && count > 1)
+						// a single position tells its own dimension
+						dimension = count;
+					else
+						removeRepeatedPosition(start);
+					break;
+				case "coordinates":
+					final String cs = reader.getAttributeValue(null, "cs");
+					final String ts = reader.getAttributeValue(null, "ts");
+					final String text = reader.getElementText();
+					dimension = countDimension(text, cs == null ? ',' : cs.charAt(0), ts == null ? ' ' : ts.charAt(0));
+					parseOrdinates(text, cs == null ? ',' : cs.charAt(0), ts == null ? ' ' : ts.charAt(0));
+					removeRepeatedPosition(start);
+					break;
+				case "X":
+				case "Y":
+				case "Z":
+					// coord of GML 2
+					parseOrdinates(reader.getElementText(), ' ', ' ');
+					dimension = "Z".equals(name) ? 3 : 2;
+					break;
+				default:
+					depth++;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Removes the first position appended after this index if it repeats the previous position
+	 */
+	private void removeRepeatedPosition(int start) {
+		if (start < dimension || countOrdinates - start < dimension)
+			return;
+		for (int i=0; i<dimension; i++) {
+			if (ordinates[start - dimension + i] != ordinates[start + i])
+				return;
+		}
+		System.arraycopy(ordinates, start + dimension, ordinates, start, countOrdinates - start - dimension);
+		countOrdinates -= dimension;
+	}
+
+	private static int parseDimension(String srsDimension) throws IOException {
+		try {
+			final int dimension = Integer.parseInt(srsDimension.trim());
+			if (dimension < 1 || dimension > 4)
+				throw new IOException("invalid GML: unsupported srsDimension "+srsDimension);
+			return dimension;
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid GML: invalid srsDimension "+srsDimension);
+		}
+	}
+
+	/**
+	 * Returns the count of ordinates of the first tuple of coordinates
+	 */
+	private static int countDimension(String text, char cs, char ts) {
+		text = text.trim();
+		int count = 1;
+		for (int i=0; i<text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c == ts || (ts == ' ' && Character.isWhitespace(c)))
+				break;
+			if (c == cs)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Parses the numbers of this text into the buffer of ordinates,
+	 * without splitting the text into strings.
+	 *
+	 * @param text the ordinates
+	 * @param cs the separator of the ordinates in a tuple
+	 * @param ts the separator of the tuples
+	 * @return the count of ordinates parsed
+	 */
+	protected int parseOrdinates(String text, char cs, char ts) throws IOException {
+
+		final int before = countOrdinates;
+		final int length = text.length();
+		int i = 0;
+		while (i < length) {
+			char c = text.charAt(i);
+			if (c == cs || c == ts || Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			final int start = i;
+			while (i < length) {
+				c = text.charAt(i);
+				if (c == cs || c == ts || Character.isWhitespace(c))
+					break;
+				i++;
+			}
+			if (countOrdinates == ordinates.length)
+				ordinates = Arrays.copyOf(ordinates, ordinates.length * 2);
+			try {
+				ordinates[countOrdinates++] = Double.parseDouble(text.substring(start, i));
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid GML: invalid coordinate "+text.substring(start, i)+" at "+reader.getLocation());
+			}
+		}
+		return countOrdinates - before;
+	}
+
+	/**
+	 * Creates a sequence of coordinates from the buffer of ordinates
+	 */
+	protected CoordinateSequence createSequence() throws IOException {
+		if (countOrdinates % dimension != 0)
+			throw new IOException("invalid GML: "+countOrdinates+" ordinates cannot make positions of dimension "+dimension+" at "+reader.getLocation());
+		return new PackedCoordinateSequence.Double(
+				Arrays.copyOf(ordinates, countOrdinates),
+				dimension,
+				dimension == 4 ? 1 : 0);
+	}
+
+}
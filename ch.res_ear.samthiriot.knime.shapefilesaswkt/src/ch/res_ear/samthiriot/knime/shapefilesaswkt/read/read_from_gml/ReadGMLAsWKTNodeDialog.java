@@ -13,6 +13,7 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_gml;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
@@ -37,6 +38,13 @@ public class ReadGMLAsWKTNodeDialog extends DefaultNodeSettingsPane {
         		new SettingsModelBoolean("skip_standard", true),
         		"skip standard columns"
         		));
+
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("columns", ""),
+        		"columns to read (comma separated, empty for all)",
+        		false,
+        		30
+        		));
         
     }
 }
@@ -10,6 +10,7 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_gml;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,23 +19,30 @@ import java.net.URL;
 import java.nio.file.InvalidPathException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.wfs.GML;
-import org.geotools.wfs.GML.Version;
 import org.knime.core.data.DataCell;
-import org.knime.core.data.DataColumnProperties;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
 import org.knime.core.data.MissingCell;
 import org.knime.core.data.RowKey;
+import org.knime.core.data.def.BooleanCell;
+import org.knime.core.data.def.BooleanCell.BooleanCellFactory;
 import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.DoubleCell.DoubleCellFactory;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.IntCell.IntCellFactory;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.LongCell.LongCellFactory;
 import org.knime.core.data.def.StringCell;
 import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.node.BufferedDataContainer;
@@ -49,13 +57,11 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.util.FileUtil;
-import org.locationtech.jts.geom.Geometry;
-import org.opengis.feature.Property;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.FeaturesDecodingUtils;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_gml.GMLStreamReader.Feature;
 
 
 /**
@@ -79,6 +85,11 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 
     protected final SettingsModelBoolean m_skipStandardColumns = new SettingsModelBoolean("skip_standard", true);
 
+    /**
+     * Names of the properties to read, separated by commas; empty to read all of them
+     */
+    protected final SettingsModelString m_columns = new SettingsModelString("columns", "");
+
     /**
      * There are properties which are automatically added by geotools; 
      * its better to ignore them.
@@ -93,6 +104,18 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 																		"name"
     																				));
     
+    /**
+     * Specs inferred from the files, keyed by the path, the modification time and the settings,
+     * so the frequent calls to configure do not parse the file again
+     */
+    private static final Map<String,DataTableSpec> CACHE_SPECS = Collections.synchronizedMap(
+    		new LinkedHashMap<String,DataTableSpec>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,DataTableSpec> eldest) {
+					return size() > 20;
+				}
+    		});
     
 	/**
 	 * Constructor for the node model.
@@ -102,13 +125,10 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 	}
 	
 	/**
-	 * Opens the file, and creates an iterator; return this iterator.
-	 * Please remind closing it.
-	 * @return
-	 * @throws InvalidSettingsException
+	 * Returns the URL of the file (possibly with knime:// protocol)
 	 */
-	protected SimpleFeatureIterator getFeaturesIterator() throws InvalidSettingsException {
-	
+	protected URL getURL() throws InvalidSettingsException {
+		
     	// fail if no file
     	if (m_file.getStringValue() == null)
     		throw new IllegalArgumentException("No filename provided");
@@ -123,7 +143,33 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
         
         if (filename == null)
         	throw new InvalidSettingsException("no file defined");
-       
+        
+        return filename;
+	}
+	
+    /**
+     * Returns the names of the columns to read, or null to read all of them
+     */
+    protected Set<String> getSelectedColumns() {
+    	Set<String> res = new HashSet<>();
+    	for (String name: m_columns.getStringValue().split(",")) {
+    		name = name.trim();
+    		if (!name.isEmpty())
+    			res.add(name);
+    	}
+    	return res.isEmpty() ? null : res;
+    }
+	
+	/**
+	 * Opens the file, and creates a reader of its features 
+	 * which skips the properties not selected.
+	 * Please remind closing it.
+	 * @return
+	 * @throws InvalidSettingsException
+	 * @throws IOException 
+	 */
+	protected GMLStreamReader openReader(URL filename) throws InvalidSettingsException, IOException {
+	       
         InputStream inputStream;
 		try {
 			inputStream = FileUtil.openStreamWithTimeout(filename);
@@ -132,140 +178,246 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 			throw new IllegalArgumentException("unable to open the URL "+filename+": "+e2.getMessage());
 		}
 		
-		/*
-		String filenameSchema = null;
-        try {
-			filenameSchema = FilenameUtils.removeExtension(
-					new File(filename.toURI()).getCanonicalPath()
-					) +".xsd";
-		} catch (IOException | URISyntaxException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-			throw new RuntimeException("error when trying to search for the schema file");
+		return new GMLStreamReader(
+				new BufferedInputStream(inputStream, 1 << 16), 
+				getSelectedColumns(), 
+				m_skipStandardColumns.getBooleanValue() ? IGNORED_PROPERTIES : null);
+	}
+	
+	/**
+	 * Returns the key of the specs of this file in the cache, 
+	 * or null if the file cannot be cached
+	 */
+	protected String getCacheKey(URL filename) {
+		File file;
+		try {
+			file = FileUtil.getFileFromURL(filename);
+		} catch (IllegalArgumentException e) {
+			// not a local file
+			return null;
 		}
-        File schemaFile = new File(filenameSchema);
-        if (schemaFile.exists() && schemaFile.isFile() && schemaFile.canRead()) {
-        	// TODO load 
-    	   final QName featureName = new QName(typeName.getNamespaceURI(), typeName.getLocalPart());
-
-           String namespaceURI = featureName.getNamespaceURI();
-           String uri = schemaLocation.toExternalForm();
-
-           Configuration wfsConfiguration =
-                   new org.geotools.gml3.ApplicationSchemaConfiguration(namespaceURI, uri);
-
-           FeatureType parsed = GTXML.parseFeatureType(wfsConfiguration, featureName, crs);
-           // safely cast down to SimpleFeatureType
-           SimpleFeatureType schema = DataUtilities.simple(parsed);
-        }
-        */
+		if (file == null || !file.isFile())
+			return null;
+		return file.getAbsolutePath()+"|"+file.lastModified()+"|"+
+				m_skipStandardColumns.getBooleanValue()+"|"+m_columns.getStringValue();
+	}
+	
+	/**
+	 * Reads the first features, which are used to detect the columns.
+	 */
+	protected List<Feature> readSample(GMLStreamReader reader) throws IOException {
 		
-		/*
-		GML gml = new GML(Version.WFS1_0);
-		gml.setCoordinateReferenceSystem( DefaultGeographicCRS.WGS84 );
-
-		Name typeName = new NameImpl("http://www.openplans.org/topp", "states");
-		SimpleFeatureType featureType = gml.decodeSimpleFeatureType(schemaLocation, typeName );
-		*/
+		List<Feature> sample = new ArrayList<>(SAMPLE_LINES_GML+1);
+		Feature feature;
+		while (sample.size() <= SAMPLE_LINES_GML && (feature = reader.next()) != null)
+			sample.add(feature);
+		return sample;
+	}
+	
+	/**
+	 * Returns the Coordinate Reference System declared by the geometries of the sample, 
+	 * or the default one if none is declared.
+	 */
+	protected CoordinateReferenceSystem decodeCRS(List<Feature> sample) throws InvalidSettingsException {
 		
-		GML gml = new GML(Version.GML3); // Version.GML3
-		gml.setLegacy(true);
+		String srsName = null;
+		for (Feature feature: sample) {
+			if (feature.srsName == null)
+				continue;
+			if (srsName == null)
+				srsName = feature.srsName;
+			else if (!srsName.equals(feature.srsName))
+				throw new InvalidSettingsException("invalid GML file: found several different Coordinate Reference System for different features");
+		}
 		
-		SimpleFeatureIterator iter = null;
+		if (srsName == null) {
+			getLogger().warn("no Coordinate Reference System found in the GML file; assuming "+SpatialUtils.getDefaultCRSString());
+			return SpatialUtils.getCRSforString(SpatialUtils.getDefaultCRSString());
+		}
 		try {
-			iter = gml.decodeFeatureIterator(inputStream);
-		} catch (Exception e) { // IOException | ParserConfigurationException | SAXException
-			throw new InvalidSettingsException("unable to decode the file as GML: "+e.getMessage(), e);
+			CoordinateReferenceSystem crs = SpatialUtils.getCRSforString(srsName);
+			getLogger().info("detected Coordinate Reference System "+crs);
+			return crs;
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			throw new InvalidSettingsException("unable to decode the Coordinate Reference System "+srsName+" of the GML file: "+e.getMessage(), e);
 		}
+	}
+	
+	/**
+	 * Returns the type of the value written in this text: 
+	 * Integer, Long, Double, Boolean or String, or null if there is no value.
+	 */
+	protected static Class<?> detectType(String text) {
+		
+		if (text == null || text.isEmpty())
+			return null;
+		if ("true".equals(text) || "false".equals(text))
+			return Boolean.class;
 		
-		return iter;
+		final char c = text.charAt(0);
+		if (!(Character.isDigit(c) || c == '-' || c == '+' || c == '.'))
+			return String.class;
+		try {
+			Integer.parseInt(text);
+			return Integer.class;
+		} catch (NumberFormatException e) {
+		}
+		try {
+			Long.parseLong(text);
+			return Long.class;
+		} catch (NumberFormatException e) {
+		}
+		try {
+			Double.parseDouble(text);
+			return Double.class;
+		} catch (NumberFormatException e) {
+		}
+		return String.class;
 	}
 	
 	/**
-	 * Decodes the first features from the GML, 
+	 * Returns the Java type able to store both types of values, 
+	 * or String if they are not compatible.
+	 */
+	protected static Class<?> mergeTypes(Class<?> previous, Class<?> current) {
+		if (previous == null || previous.equals(current))
+			return current;
+		if (current == null)
+			return previous;
+		if (Number.class.isAssignableFrom(previous) && Number.class.isAssignableFrom(current)) {
+			if (previous.equals(Double.class) || current.equals(Double.class))
+				return Double.class;
+			return Long.class;
+		}
+		return String.class;
+	}
+	
+	/**
+	 * Creates the specs of the table from a sample of features
 	 * in order to detect what features are available there.
 	 * 
-	 * @throws InvalidSettingsException
+	 * @param sample the first features of the file
+	 * @param propertyNames the names of all the properties found in the sample
+	 * @param crs the Coordinate Reference System of the geometries
 	 */
-	protected DataTableSpec decodeSpecsFromGML()
-					throws InvalidSettingsException {
-
-		final boolean skipStandardColumns = m_skipStandardColumns.getBooleanValue();
+	protected DataTableSpec createSpecs(
+			List<Feature> sample, 
+			Set<String> propertyNames,
+			CoordinateReferenceSystem crs) throws InvalidSettingsException {
 		
-		SimpleFeatureIterator iter = getFeaturesIterator();
+		final Set<String> selected = getSelectedColumns();
+		if (selected != null) {
+			for (String name: selected) {
+				if (!propertyNames.contains(name))
+					throw new InvalidSettingsException("there is no column "+name+" in the first features of the GML file; available columns are: "+String.join(", ", propertyNames));
+			}
+		}
 		
-        // associate each property name with the corresponding column spec 
-        Map<String,DataColumnSpec> name2spec = new LinkedHashMap<>();
-        // add a column for id
-        name2spec.put(
-        		"id",
-        		new DataColumnSpecCreator(
-	    			"id", 
-	    			StringCell.TYPE
-	    			).createSpec()
-        		);
-
-	    CoordinateReferenceSystem crs = null;
-        
-		int done = 0;
-		while( iter.hasNext() ){
-		    SimpleFeature feature = iter.next();
-		    
-		    CoordinateReferenceSystem currentCRS = feature.getType().getCoordinateReferenceSystem();
-		    if (currentCRS != null) {
-			    if (crs == null) {
-			    	// use this CRS as the current CRS
-			    	crs = currentCRS;
-			    	// we can now declare the geometry column
-			    	DataColumnSpecCreator creatorGeom = new DataColumnSpecCreator(
-			    			SpatialUtils.GEOMETRY_COLUMN_NAME, 
-			    			StringCell.TYPE
-			    			);
-					Map<String,String> properties = new HashMap<String, String>();
-					properties.put(SpatialUtils.PROPERTY_CRS_CODE, SpatialUtils.getStringForCRS(crs));
-					properties.put(SpatialUtils.PROPERTY_CRS_WKT, crs.toWKT());
-					DataColumnProperties propertiesKWT = new DataColumnProperties(properties);
-					creatorGeom.setProperties(propertiesKWT);
-					name2spec.put(SpatialUtils.GEOMETRY_COLUMN_NAME, creatorGeom.createSpec());
-					getLogger().info("detected Coordinate Reference System "+crs);
-			    } else if (!crs.equals(currentCRS)) {
-			    	throw new InvalidSettingsException("invalid GML file: found several different Coordinate Reference System for different features");
-			    }
-		    }
-		    
-        	for (Property property: feature.getProperties()) {
-        		final String name = property.getName().toString();
-        		if (skipStandardColumns && IGNORED_PROPERTIES.contains(name)) {
-        			getLogger().info("will skip column "+name+" which is assumed to be automatically created but useless");
+        // associate each property name with the type of its values 
+        Map<String,Class<?>> name2type = new LinkedHashMap<>();
+        for (Feature feature: sample) {
+        	for (Map.Entry<String,String> property: feature.properties.entrySet()) {
+        		final String name = property.getKey();
+        		if ("id".equals(name) || SpatialUtils.GEOMETRY_COLUMN_NAME.equals(name))
         			continue;
-        		}
-        		
-        		DataColumnSpec columnSpec = FeaturesDecodingUtils.getColumnSpecForFeatureProperty(
-						property,
-						name,
-						getLogger());
-        		
-        		DataColumnSpec previousSpec = name2spec.get(name);
-        		if (previousSpec != null) {
-        			if (!previousSpec.getType().equals(columnSpec.getType()))
-	        			throw new InvalidSettingsException(
-	        					"invalid GML file: the property "+name+" has different types "+
-	        					previousSpec.getType()+" and "+columnSpec.getType());
-        		} else {
-        			name2spec.put(name, columnSpec);
-        		}
         		
+        		final Class<?> previous = name2type.get(name);
+        		final Class<?> current = detectType(property.getValue());
+        		final Class<?> merged = mergeTypes(previous, current);
+        		if (previous != null && merged != null && !previous.equals(merged) && merged.equals(String.class))
+        			getLogger().warn("the property "+name+" has values of types "+previous.getSimpleName()+" and "+
+        					current.getSimpleName()+"; it will be read as String");
+        		name2type.put(name, merged);
         	}
-		    if (done++ >= SAMPLE_LINES_GML)
-		    	break;
-		}
-		iter.close();
-		
+        }
+        
+        List<DataColumnSpec> specs = new ArrayList<>(name2type.size()+2);
+        // add a column for id
+        specs.add(new DataColumnSpecCreator("id", StringCell.TYPE).createSpec());
+    	// we can now declare the geometry column
+        specs.add(FeaturesDecodingUtils.createDataColumnSpecForGeom(crs));
+        
+        for (Map.Entry<String,Class<?>> e: name2type.entrySet()) {
+        	final Class<?> type = e.getValue();
+        	DataType knimeType;
+        	if (Integer.class.equals(type))
+        		knimeType = IntCell.TYPE;
+        	else if (Long.class.equals(type))
+        		knimeType = LongCell.TYPE;
+        	else if (Double.class.equals(type))
+        		knimeType = DoubleCell.TYPE;
+        	else if (Boolean.class.equals(type))
+        		knimeType = BooleanCell.TYPE;
+        	else 
+        		// also when there was only empty values in the sample
+        		knimeType = StringCell.TYPE;
+        	specs.add(new DataColumnSpecCreator(e.getKey(), knimeType).createSpec());
+        }
+        
         return new DataTableSpec(
         		"GML entities",
-        		name2spec.values().toArray(new DataColumnSpec[name2spec.size()])
+        		specs.toArray(new DataColumnSpec[specs.size()])
         		);
 	}
+	
+	/**
+	 * Decodes the first features from the GML, 
+	 * in order to detect what features are available there.
+	 * The specs are cached as long as the file is not modified.
+	 * 
+	 * @throws InvalidSettingsException
+	 * @throws IOException 
+	 */
+	protected DataTableSpec decodeSpecsFromGML()
+					throws InvalidSettingsException, IOException {
+
+		final URL filename = getURL();
+		final String key = getCacheKey(filename);
+		if (key != null) {
+			DataTableSpec cached = CACHE_SPECS.get(key);
+			if (cached != null)
+				return cached;
+		}
+		
+		GMLStreamReader reader = openReader(filename);
+		try {
+			final List<Feature> sample = readSample(reader);
+			DataTableSpec specs = createSpecs(sample, reader.getPropertyNames(), decodeCRS(sample));
+			if (key != null)
+				CACHE_SPECS.put(key, specs);
+			return specs;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Converts a text read from the file into a cell of the type of the column, 
+	 * or returns null if the value is missing or cannot be converted.
+	 */
+	protected static DataCell convertValue(String text, DataType type) {
+		
+		if (text == null)
+			return null;
+		if (type.equals(StringCell.TYPE))
+			return StringCellFactory.create(text);
+		if (text.isEmpty())
+			return null;
+		try {
+			if (type.equals(IntCell.TYPE))
+				return IntCellFactory.create(Integer.parseInt(text));
+			if (type.equals(LongCell.TYPE))
+				return LongCellFactory.create(Long.parseLong(text));
+			if (type.equals(DoubleCell.TYPE))
+				return DoubleCellFactory.create(Double.parseDouble(text));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (type.equals(BooleanCell.TYPE) && ("true".equals(text) || "false".equals(text)))
+			return BooleanCellFactory.create("true".equals(text));
+		return null;
+	}
 
 	/**
      * {@inheritDoc}
@@ -277,9 +429,13 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
     	// attempts to read the file and create the corresponding specs
     	// will fail if the file is not defined, 
     	// or not valid
-    	DataTableSpec specs = decodeSpecsFromGML();
-    	
-        return new DataTableSpec[]{ specs };
+    	try {
+	    	DataTableSpec specs = decodeSpecsFromGML();
+	        return new DataTableSpec[]{ specs };
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new InvalidSettingsException("unable to decode the file as GML: "+e.getMessage(), e);
+		}
     }
 
 
@@ -290,64 +446,84 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
    
-    	// create the data table specs
-        final DataTableSpec tableSpec = decodeSpecsFromGML();
-        
-        // the container of read entities
-        final BufferedDataContainer container = exec.createDataContainer(tableSpec);
+	    final URL filename = getURL();
 
-        final DataCell missing = new MissingCell("was undefined in GML");
-        
-	    CoordinateReferenceSystem crs = null;
-
-	    //PrecisionModel precisionGeom = new PrecisionModel(PrecisionModel.FLOATING);
-	    
-        SimpleFeatureIterator iter = getFeaturesIterator();
-        int line = 0;
+	    // the file is read once: the sample is buffered to create the specs, then converted
+        GMLStreamReader reader = openReader(filename);
         try {
-    		while( iter.hasNext() ) {
-    		    SimpleFeature feature = iter.next();
-   		    
-	        	ArrayList<DataCell> cells = new ArrayList<DataCell>(tableSpec.getNumColumns());
-
-    		    // each feature has its own CRS; let's check it is oK
-    		    CoordinateReferenceSystem currentCRS = feature.getType().getCoordinateReferenceSystem();
-    		    if (crs == null) {
-    		    	// use this CRS as the current CRS
-    		    	crs = currentCRS;
-    		    	getLogger().info("detected as Coordinate Reference System: "+currentCRS);
-    		    } else if (!crs.equals(currentCRS)) {
-    		    	throw new InvalidSettingsException("invalid GML file: found several different Coordinate Reference System for different features");
-    		    }
         	
+        	final List<Feature> sample = readSample(reader);
+        	final CoordinateReferenceSystem crs = decodeCRS(sample);
+        	
+	    	// create the data table specs
+	        final DataTableSpec tableSpec = createSpecs(sample, reader.getPropertyNames(), crs);
+	        final String key = getCacheKey(filename);
+	        if (key != null)
+	        	CACHE_SPECS.put(key, tableSpec);
+        	
+	        // the container of read entities
+	        final BufferedDataContainer container = exec.createDataContainer(tableSpec);
+	        final int idxGeom = tableSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+	        final int idxId = tableSpec.findColumnIndex("id");
+	
+	        final DataCell missing = new MissingCell("was undefined in GML");
+	        
+	        // the columns were detected on the sample only; 
+	        // we warn once per property about the values we cannot read
+	        final Set<String> warned = new HashSet<>();
+	        
+	        String srsName = null;
+	        int line = 0;
+	        
+	        Iterator<Feature> itSample = sample.iterator();
+	        while (true) {
+	        	
+        		Feature feature;
+        		if (itSample.hasNext()) 
+        			feature = itSample.next();
+        		else 
+        			feature = reader.next();
+        		if (feature == null)
+        			break;
+        		
+        		for (String name: feature.properties.keySet()) {
+        			if (!tableSpec.containsName(name) && warned.add(name))
+        				getLogger().warn("the property "+name+" was not found in the first "+sample.size()+
+        						" features used to detect the columns; its values will be ignored");
+        		}
+        		
+    		    // each feature has its own CRS; let's check it is oK
+        		if (feature.srsName != null) {
+        			if (srsName == null)
+        				srsName = feature.srsName;
+        			else if (!srsName.equals(feature.srsName))
+        				throw new InvalidSettingsException("invalid GML file: found several different Coordinate Reference System for different features");
+        		}
+        		
 	        	// skip empty geometries
-	        	if (feature.getDefaultGeometry() == null) {
-	        		getLogger().warn("ignoring a feature which has no geometry: "+feature);
+	        	if (feature.geometry == null) {
+	        		getLogger().warn("ignoring a feature which has no geometry: "+feature.id);
 	        		continue;
 	        	}
-	        	   
+	        	
+	        	DataCell[] cells = new DataCell[tableSpec.getNumColumns()];
     		    // for each of the expected columns, try to find the corresponding cell
-    		    for (int col = 0; col < tableSpec.getNumColumns(); col++) {
-    		    	DataColumnSpec colSpec = tableSpec.getColumnSpec(col);
-    		    	final String name = colSpec.getName();
-    		    	Property property = feature.getProperty(name);
-    		    	
-    		    	Geometry geom = (Geometry) feature.getDefaultGeometry();
-    		    	//Geometry geomPrecise = GeometryPrecisionReducer.reduce(geom, precisionGeom);
-    		    		
-    		    	DataCell cell = null;
-    		    	
-    		    	if ("id".equals(name)) 
-    		        	cell = StringCellFactory.create(feature.getID());
-    		    	else if (SpatialUtils.GEOMETRY_COLUMN_NAME.equals(name)) 
-    		        	cell = StringCellFactory.create(geom.toString());
-    		    	else if (property != null) 
-    		    		cell = FeaturesDecodingUtils.getDataCellForProperty(property, feature);
-    		    	
-    		    	if (cell == null)
-    		    		cells.add(missing);
-    		    	else
-    		    		cells.add(cell);
+    		    for (int col = 0; col < cells.length; col++) {
+    		    	DataCell cell;
+    		    	if (col == idxGeom)
+    		    		cell = StringCellFactory.create(feature.geometry);
+    		    	else if (col == idxId)
+    		    		cell = feature.id == null ? null : StringCellFactory.create(feature.id);
+    		    	else {
+    		    		final DataColumnSpec colSpec = tableSpec.getColumnSpec(col);
+    		    		final String text = feature.properties.get(colSpec.getName());
+    		    		cell = convertValue(text, colSpec.getType());
+    		    		if (cell == null && text != null && !text.isEmpty() && warned.add(colSpec.getName()))
+    		    			getLogger().warn("the value \""+text+"\" of the property "+colSpec.getName()+
+    		    					" does not fit the type "+colSpec.getType()+" detected in the first "+sample.size()+
+    		    					" features; such values will be read as missing");
+    		    	}
+    		    	cells[col] = cell == null ? missing : cell;
     		    }
     		    
 				container.addRowToTable(
@@ -357,20 +533,20 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 		        			)
 	        			);
 				
-				if (line++ % 10 == 0) {
+				if (line++ % 100 == 0) {
 					exec.checkCanceled();
 					exec.setMessage("reading GML entity "+line);
 				}
-    		}
+	        }
+	        
+	        // once we are done, we close the container and return its table
+	        container.close();
+	        BufferedDataTable out = container.getTable();
+	        return new BufferedDataTable[]{ out };
+	        
         } finally {
-        	if (iter != null)
-        		iter.close();
+        	reader.close();
         }
-        	
-        // once we are done, we close the container and return its table
-        container.close();
-        BufferedDataTable out = container.getTable();
-        return new BufferedDataTable[]{ out };
     }
 
     
@@ -382,6 +558,7 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
         
     	m_file.saveSettingsTo(settings);
     	m_skipStandardColumns.saveSettingsTo(settings);
+    	m_columns.saveSettingsTo(settings);
 
     }
 
@@ -394,6 +571,11 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
             
         m_file.loadSettingsFrom(settings);
         m_skipStandardColumns.loadSettingsFrom(settings);
+        // added later; older workflows read all the columns
+        if (settings.containsKey(m_columns.getKey()))
+        	m_columns.loadSettingsFrom(settings);
+        else
+        	m_columns.setStringValue("");
     }
 
     /**
@@ -405,6 +587,8 @@ public class ReadGMLAsWKTNodeModel extends NodeModel {
 
     	m_file.validateSettings(settings);
     	m_skipStandardColumns.validateSettings(settings);
+    	if (settings.containsKey(m_columns.getKey()))
+    		m_columns.validateSettings(settings);
     }
     
     
@@ -14,6 +14,10 @@ import java.nio.charset.Charset;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentMultiLineString;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 import ch.res_ear.samthiriot.knime.dialogs.DialogComponentEncodingSelection;
@@ -50,6 +54,35 @@ public class ReadShapefileAsWKTNodeDialog extends DefaultNodeSettingsPane {
         		false
         		));
         
+        createNewGroup("Query");
+        
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("query area", ""),
+        		"area (minx,miny,maxx,maxy or WKT)",
+        		false,
+        		30
+        		));
+        
+        addDialogComponent(new DialogComponentMultiLineString(
+        		new SettingsModelString("query filter", ""),
+        		"filter (ECQL)",
+        		false,
+        		30,
+        		3
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("query max features", 0, 0, Integer.MAX_VALUE),
+        		"maximum count of features (0 for no limit)",
+        		1000
+        		));
+        
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString("columns", ""),
+        		"columns to read (comma separated, empty for all)",
+        		false,
+        		30
+        		));
 
     }
 }
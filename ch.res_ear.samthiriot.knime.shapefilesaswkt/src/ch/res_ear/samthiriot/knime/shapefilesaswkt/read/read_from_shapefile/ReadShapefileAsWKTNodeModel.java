@@ -17,18 +17,28 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.shapefile.ShapefileDataStore;
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeLogger;
@@ -40,8 +50,10 @@ import org.knime.core.node.util.CheckUtils;
 import org.knime.core.util.FileUtil;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.AbstractReadWKTFromDatastoreNodeModel;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
 
 
 /**
@@ -59,6 +71,11 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
     private final SettingsModelString m_file = new SettingsModelString("filename", null);
     private final SettingsModelString m_charset = new SettingsModelString("charset", Charset.defaultCharset().name());
 
+    /**
+     * Count of records read together by one thread
+     */
+    public static final int RECORDS_PER_CHUNK = 10000;
+
     /**
      * Constructor for the node model.
      */
@@ -67,10 +84,14 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
         super();
     }
     
-    @Override
-    protected DataStore openDataStore(final PortObject[] inObjects, ExecutionContext exec) throws InvalidSettingsException {
+    /**
+     * Returns the path of the shapefile defined in the settings.
+     * 
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected Path getFilePath() throws InvalidSettingsException {
 
-    	
     	// retrieve parameters
         CheckUtils.checkSourceFile(m_file.getStringValue());
         
@@ -93,6 +114,14 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
 			throw new InvalidSettingsException("unable to resolve this URL to a path: "+filename);
 		}
         
+        return filePath;
+    }
+    
+    @Override
+    protected DataStore openDataStore(final PortObject[] inObjects, ExecutionContext exec) throws InvalidSettingsException {
+
+        final Path filePath = getFilePath();
+        
         String charset = m_charset.getStringValue();
 
 
@@ -114,7 +143,7 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
 		}
 		
 		if (datastore == null)
-			throw new InvalidSettingsException("unable to open the shapefile from path "+filename);
+			throw new InvalidSettingsException("unable to open the shapefile from path "+filePath);
 
 		// set the charset
 		try {
@@ -152,6 +181,158 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
 	}
     
 
+    /**
+     * Creates the mappers for the geometry, then for every attribute 
+     * selected by the user, in the order of the schema. 
+     * If fields is not null, it receives the index in the .dbf file
+     * of each selected attribute.
+     * 
+     * @param type
+     * @param fields
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected List<GeotoolsToDataTableMapper> createSelectedMappers(
+    		SimpleFeatureType type, 
+    		List<Integer> fields) throws InvalidSettingsException {
+    	
+    	final List<String> selected = getSelectedColumns();
+    	
+    	List<GeotoolsToDataTableMapper> mappers = new ArrayList<>();
+    	mappers.add(new GeotoolsToDataTableMapper(type.getGeometryDescriptor(), type.getCoordinateReferenceSystem(), logger));
+    	
+    	int field = 0;
+    	for (AttributeDescriptor descriptor: type.getAttributeDescriptors()) {
+    		if (descriptor instanceof GeometryDescriptor)
+    			continue;
+    		if (selected.isEmpty() || selected.contains(descriptor.getLocalName())) {
+    			mappers.add(new GeotoolsToDataTableMapper(descriptor, type.getCoordinateReferenceSystem(), logger));
+    			if (fields != null)
+    				fields.add(field);
+    		}
+    		field++;
+    	}
+    	
+    	for (String name: selected) {
+    		if (type.getDescriptor(name) == null)
+    			throw new InvalidSettingsException(
+    					"there is no column "+name+" in the shapefile; available columns are: "+
+    					type.getAttributeDescriptors().stream()
+    						.filter(d -> !(d instanceof GeometryDescriptor))
+    						.map(AttributeDescriptor::getLocalName)
+    						.collect(Collectors.joining(", ")));
+    	}
+    	
+    	return mappers;
+    }
+    
+    /**
+     * Adds the rows read to the container, numbering them from rowIdx
+     * as the datastore does, so the deleted records leave no gap in the keys.
+     * Returns the index of the next row.
+     */
+    private static long addRows(List<DataCell[]> rows, BufferedDataContainer container, long rowIdx) {
+    	for (DataCell[] cells: rows) 
+    		container.addRowToTable(new DefaultRow(new RowKey("Row " + rowIdx++), cells));
+    	return rowIdx;
+    }
+    
+    /**
+     * Reads the records of the shapefile directly from the memory mapped files, 
+     * decoding ranges of records in parallel. The rows are created in the order of the file.
+     * If the features are restricted by an area, a filter or a maximum count, 
+     * the reading is delegated to the datastore so its spatial index is used.
+     * 
+     * {@inheritDoc}
+     */
+    @Override
+    protected BufferedDataTable[] execute(final PortObject[] inObjects,
+            final ExecutionContext exec) throws Exception {
+    	
+    	if (hasQueryRestrictions())
+    		return super.execute(inObjects, exec);
+    	
+    	// read the schema from the datastore
+    	final DataStore datastore = openDataStore(inObjects, exec);
+    	final SimpleFeatureType type;
+    	try {
+    		type = datastore.getSchema(getSchemaName(datastore));
+    	} catch (IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException("Unable to decode the schema from the file: "+e, e);
+		} finally {
+			datastore.dispose();
+		}
+    	
+    	// find the fields to read in the dbf file
+    	List<Integer> fields = new ArrayList<>();
+    	List<GeotoolsToDataTableMapper> mappers = createSelectedMappers(type, fields);
+    	List<GeotoolsToDataTableMapper> fieldMappers = mappers.subList(1, mappers.size());
+    	
+        DataTableSpec outputSpec = new DataTableSpec(
+        		mappers.stream()
+					   .map(GeotoolsToDataTableMapper::getKnimeColumnSpec)
+					   .toArray(DataColumnSpec[]::new));
+        final BufferedDataContainer container = exec.createDataContainer(outputSpec);
+
+        exec.setMessage("reading the index");
+    	final ShapefileRangeReader reader = new ShapefileRangeReader(
+    			getFilePath().toFile(), 
+    			Charset.forName(m_charset.getStringValue()), 
+    			mappers.get(0), 
+    			fields.stream().mapToInt(Integer::intValue).toArray(), 
+    			fieldMappers.toArray(new GeotoolsToDataTableMapper[fieldMappers.size()])
+    			);
+    	final int total = reader.getRecordCount();
+    	
+    	if (!reader.supportsRanges()) {
+    		// without index, we can only read the file from the beginning
+    		getLogger().warn("there is no .shx file along with the shapefile; the file will be read by one thread only");
+    		exec.setMessage("reading "+total+" records");
+    		addRows(reader.readRange(0, total), container, 0);
+    	} else {
+    		final int threads = SpatialUtils.getParallelThreadsCount();
+    		final int maxPending = threads * 2;
+    		Deque<Future<List<DataCell[]>>> pending = new ArrayDeque<>(maxPending);
+    		ExecutorService executor = Executors.newFixedThreadPool(threads);
+    		long rowIdx = 0;
+    		int stored = 0; // count of records of the chunks stored
+    		try {
+	    		for (int start=0; start<total; start+=RECORDS_PER_CHUNK) {
+	    			final int from = start;
+	    			final int to = Math.min(total, start+RECORDS_PER_CHUNK);
+	    			pending.add(executor.submit(() -> reader.readRange(from, to)));
+	    			
+	    			// store the chunks already read
+	    			while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+	    				rowIdx = addRows(SpatialUtils.waitForChunk(pending.poll()), container, rowIdx);
+	    				stored = Math.min(total, stored + RECORDS_PER_CHUNK);
+	    				exec.setProgress((double)stored/total, "reading record "+stored);
+	    			}
+	    			exec.checkCanceled();
+	    		}
+	    		// store the last chunks
+	    		while (!pending.isEmpty()) {
+	    			rowIdx = addRows(SpatialUtils.waitForChunk(pending.poll()), container, rowIdx);
+	    			stored = Math.min(total, stored + RECORDS_PER_CHUNK);
+	    			exec.setProgress((double)stored/total, "reading record "+stored);
+	    			exec.checkCanceled();
+	    		}
+    		} finally {
+    			executor.shutdownNow();
+    		}
+    	}
+    	
+        container.close();
+        BufferedDataTable out = container.getTable();
+        
+        // add flow variables for the CRS
+        pushFlowVariableString("CRS_code", SpatialUtils.getStringForCRS(type.getCoordinateReferenceSystem()));
+        pushFlowVariableString("CRS_WKT", type.getCoordinateReferenceSystem().toWKT());
+        
+        return new BufferedDataTable[]{ out };
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -177,21 +358,12 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
 			throw new RuntimeException("Unable to decode the schema "+schemaName+" from the file: "+e, e);
 		}
 		
-		List<AttributeDescriptor> descriptors = new ArrayList<>(type.getAttributeDescriptors());
+		datastore.dispose();
 		
-		// create mappers
-		Map<AttributeDescriptor,GeotoolsToDataTableMapper> gtAttribute2mapper = 
-				descriptors.stream()
-							.collect(Collectors.toMap( 
-									ad -> ad, 
-									ad -> new GeotoolsToDataTableMapper(ad, type.getCoordinateReferenceSystem(), logger))
-							);
-	
-		// prepare the output
-		DataColumnSpec[] dataColSpecs = descriptors.stream()
-				   .map( d -> gtAttribute2mapper.get(d).getKnimeColumnSpec() )
-				   .toArray(DataColumnSpec[]::new);
-        DataTableSpec outputSpec = new DataTableSpec(dataColSpecs);
+		DataTableSpec outputSpec = new DataTableSpec(
+				createSelectedMappers(type, null).stream()
+								   .map(GeotoolsToDataTableMapper::getKnimeColumnSpec)
+								   .toArray(DataColumnSpec[]::new));
             	
         return new DataTableSpec[]{ outputSpec };
     }
@@ -204,6 +376,7 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
         
     	m_file.saveSettingsTo(settings);
     	m_charset.saveSettingsTo(settings);
+    	saveQuerySettingsTo(settings);
 
     }
 
@@ -216,6 +389,7 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
             
         m_file.loadSettingsFrom(settings);
         m_charset.loadSettingsFrom(settings);
+        loadQuerySettingsFrom(settings);
     }
 
     /**
@@ -227,6 +401,7 @@ public class ReadShapefileAsWKTNodeModel extends AbstractReadWKTFromDatastoreNod
 
     	m_file.validateSettings(settings);
     	m_charset.validateSettings(settings);
+    	validateQuerySettings(settings);
 
     }
 
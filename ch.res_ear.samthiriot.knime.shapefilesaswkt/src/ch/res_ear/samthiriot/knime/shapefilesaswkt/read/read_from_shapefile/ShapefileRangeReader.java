@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.read.read_from_shapefile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.shapefile.dbf.DbaseFileReader;
+import org.geotools.data.shapefile.dbf.IndexedDbaseFileReader;
+import org.geotools.data.shapefile.files.ShpFileType;
+import org.geotools.data.shapefile.files.ShpFiles;
+import org.geotools.data.shapefile.shp.IndexFile;
+import org.geotools.data.shapefile.shp.ShapefileReader;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.knime.core.data.DataCell;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Reads ranges of records of a shapefile directly from the .shp and .dbf files,
+ * which are memory mapped. The offsets of the records found in the .shx file
+ * make it possible to read several ranges in parallel, each range
+ * opening its own readers.
+ * Only the selected fields of the .dbf file are decoded.
+ *
+ * @author Samuel Thiriot
+ */
+public class ShapefileRangeReader {
+
+	private final File file;
+	private final Charset charset;
+
+	/**
+	 * Mapper for the geometry, or null if the geometry should not be read
+	 */
+	private final GeotoolsToDataTableMapper geometryMapper;
+
+	/**
+	 * Indices of the fields to read in the .dbf file
+	 */
+	private final int[] fields;
+	private final GeotoolsToDataTableMapper[] fieldMappers;
+
+	/**
+	 * Offsets of the records in the .shp file, or null if there is no .shx file
+	 */
+	private final int[] offsets;
+	private final int count;
+	private final boolean hasDbf;
+
+	private final GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
+
+	public ShapefileRangeReader(
+			File file,
+			Charset charset,
+			GeotoolsToDataTableMapper geometryMapper,
+			int[] fields,
+			GeotoolsToDataTableMapper[] fieldMappers
+			) throws IOException {
+
+		this.file = file;
+		this.charset = charset;
+		this.geometryMapper = geometryMapper;
+		this.fields = fields;
+		this.fieldMappers = fieldMappers;
+
+		ShpFiles files = new ShpFiles(file);
+		try {
+			this.hasDbf = files.exists(ShpFileType.DBF);
+
+			if (files.exists(ShpFileType.SHX)) {
+				IndexFile index = new IndexFile(files, true);
+				try {
+					count = index.getRecordCount();
+					offsets = new int[count];
+					for (int i=0; i<count; i++)
+						offsets[i] = index.getOffsetInBytes(i);
+				} finally {
+					index.close();
+				}
+			} else {
+				offsets = null;
+				if (!hasDbf)
+					throw new IOException("there is neither a .shx nor a .dbf file to count the records of "+file);
+				DbaseFileReader dbf = new DbaseFileReader(files, true, charset);
+				try {
+					count = dbf.getHeader().getNumRecords();
+				} finally {
+					dbf.close();
+				}
+			}
+		} finally {
+			files.dispose();
+		}
+	}
+
+	public int getRecordCount() {
+		return count;
+	}
+
+	/**
+	 * Returns true if the records can be read by ranges in parallel
+	 */
+	public boolean supportsRanges() {
+		return offsets != null;
+	}
+
+	/**
+	 * Reads the records from start (included) to end (excluded)
+	 * and returns the cells of their rows, in the order of the file.
+	 * Deleted records are skipped, so the rows are numbered by the caller
+	 * once the ranges are put back in order.
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public List<DataCell[]> readRange(int start, int end) throws IOException {
+
+		if (start > 0 && offsets == null)
+			throw new IllegalStateException("the records cannot be read by ranges without a .shx file");
+
+		List<DataCell[]> rows = new ArrayList<>(end - start);
+
+		ShpFiles files = new ShpFiles(file);
+		ShapefileReader shp = null;
+		IndexedDbaseFileReader dbf = null;
+		try {
+			if (geometryMapper != null) {
+				shp = new ShapefileReader(files, false, true, geometryFactory);
+				if (start > 0)
+					shp.goTo(offsets[start]);
+			}
+			if (hasDbf) {
+				dbf = new IndexedDbaseFileReader(files, true, charset);
+				if (start > 0)
+					dbf.goTo(start + 1); // records of the .dbf are numbered from 1
+			}
+
+			final int columns = fields.length + (geometryMapper == null ? 0 : 1);
+
+			for (int i=start; i<end; i++) {
+
+				DataCell[] cells = new DataCell[columns];
+				int c = 0;
+
+				if (shp != null) {
+					if (!shp.hasNext())
+						throw new IOException("the shapefile contains less geometries than announced ("+i+" instead of "+count+")");
+					cells[c++] = geometryMapper.convert(shp.nextRecord().shape());
+				}
+
+				if (dbf != null) {
+					DbaseFileReader.Row row = dbf.readRow();
+					if (row.isDeleted())
+						continue;
+					for (int f=0; f<fields.length; f++)
+						cells[c++] = fieldMappers[f].convert(row.read(fields[f]));
+				}
+
+				rows.add(cells);
+			}
+
+		} finally {
+			if (shp != null)
+				shp.close();
+			if (dbf != null)
+				dbf.close();
+			files.dispose();
+		}
+
+		return rows;
+	}
+
+}
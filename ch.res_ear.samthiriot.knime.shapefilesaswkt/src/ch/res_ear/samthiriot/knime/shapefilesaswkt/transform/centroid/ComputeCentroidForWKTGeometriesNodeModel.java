@@ -18,7 +18,6 @@ import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DefaultRow;
-import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -28,9 +27,18 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
-import org.locationtech.jts.io.WKTWriter;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -69,8 +77,43 @@ public class ComputeCentroidForWKTGeometriesNodeModel extends NodeModel {
 		return new DataTableSpec[] { spec };
 	}
 
-	long done = 0;
+	/**
+	 * Creates the function which changes the geometry of a row 
+	 * into its centroid. 
+	 * 
+	 * @param inputSpec
+	 * @return
+	 */
+	protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) {
+		
+		final int numberOfCells = inputSpec.getNumColumns();
+
+		final int idxGeomCol = inputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+		
+		final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputSpec);
 
+		return (geomAndRow, output) -> {
+		     																	
+			    // create the row
+				DataCell[] cells = new DataCell[numberOfCells];
+				for (int i=0; i<numberOfCells; i++) {
+					if (i == idxGeomCol)
+						// convert geometry
+						cells[i] = SpatialUtils.createGeometryCell(geomAndRow.geometry.getCentroid(), binaryGeometry);
+					else 
+						cells[i] = geomAndRow.row.getCell(i);
+					
+				}
+											
+				DataRow row = new DefaultRow(
+		    		  geomAndRow.row.getKey(), 
+		    		  cells
+		    		  );
+				output.accept(row);
+		
+			};
+	}
+	
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -87,47 +130,12 @@ public class ComputeCentroidForWKTGeometriesNodeModel extends NodeModel {
 		DataTableSpec outputSpec = inputTable.getDataTableSpec();
 		BufferedDataContainer container = exec.createDataContainer(outputSpec);
 
-		final double total = inputTable.size();
-				
-		final int numberOfCells = inputTable.getDataTableSpec().getNumColumns();
-
-		//CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputTable.getDataTableSpec());
-
-		//CRSAuthorityFactory factory = ReferencingFactoryFinder.getCRSAuthorityFactory("AUTO", null);
-
-		final int idxGeomCol = inputTable.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
-		
-		WKTWriter writer = new WKTWriter();
-
 		// iterate each geometry of each row
-		done = 0;
-		SpatialUtils.applyToEachGeometry(
+		SpatialUtils.applyToEachGeometryParallel(
 				inputTable, 
-				geomAndRow -> {
-		     																	
-				    // create the row
-					DataCell[] cells = new DataCell[numberOfCells];
-					for (int i=0; i<numberOfCells; i++) {
-						if (i == idxGeomCol)
-							// convert geometry
-							cells[i] = StringCellFactory.create(writer.write(geomAndRow.geometry.getCentroid()));
-						else 
-							cells[i] = geomAndRow.row.getCell(i);
-						
-					}
-												
-					DataRow row = new DefaultRow(
-			    		  geomAndRow.row.getKey(), 
-			    		  cells
-			    		  );
-					container.addRowToTable(row);
-					  
-					if (done++ % 100 == 0) {
-						exec.checkCanceled();
-						exec.setProgress(done/total, "computing centroid of row "+done);
-					}
-			
-				}
+				container::addRowToTable, 
+				exec, 
+				createMapper(inputTable.getDataTableSpec())
 				);
 
 		container.close();
@@ -136,6 +144,46 @@ public class ComputeCentroidForWKTGeometriesNodeModel extends NodeModel {
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -97,6 +97,17 @@ public class ComputeECQLNodeDialog extends DefaultNodeSettingsPane {
         		"create multi geometries"
         		));
         
+        addDialogComponent(new DialogComponentMultiLineString(
+        		new SettingsModelString(
+        				"other_expressions",
+        				""
+        				),
+        		"other expressions (one per line, name:Type=expression)",
+        		false,
+        		50,
+        		5
+        		));
+        
         m_type.addChangeListener(new ChangeListener() {
 			
 			@Override
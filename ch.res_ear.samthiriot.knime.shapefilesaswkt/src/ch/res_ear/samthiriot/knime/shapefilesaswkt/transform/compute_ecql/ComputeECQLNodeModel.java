@@ -13,26 +13,22 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.compute_ecql;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.geotools.data.DataStore;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.filter.text.cql2.CQLException;
 import org.geotools.filter.text.ecql.ECQL;
-import org.geotools.geometry.jts.GeometryBuilder;
 import org.knime.base.util.flowvariable.FlowVariableProvider;
 import org.knime.base.util.flowvariable.FlowVariableResolver;
 import org.knime.core.data.DataCell;
-import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
-import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataTableSpecCreator;
 import org.knime.core.data.DataType;
 import org.knime.core.data.MissingCell;
-import org.knime.core.data.container.CloseableRowIterator;
 import org.knime.core.data.def.BooleanCell;
 import org.knime.core.data.def.BooleanCell.BooleanCellFactory;
 import org.knime.core.data.def.DefaultRow;
@@ -55,14 +51,25 @@ import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LineString;
 import org.locationtech.jts.geom.Polygon;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.filter.expression.Expression;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.NodeWarningWriter;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.RowFeatureAdapter;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -73,6 +80,12 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
  */
 public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvider {
     
+	public static final String TYPE_GEOMETRY = "Geometry";
+	
+	/**
+	 * Additional expressions are defined one per line as "name:Type=expression"
+	 */
+	protected static final Pattern PATTERN_EXPRESSION = Pattern.compile("^\\s*([^:=]+?)\\s*:\\s*(\\w+)\\s*=\\s*(.+?)\\s*$");
 
 	private SettingsModelString m_query = new SettingsModelString(
 			"query",
@@ -94,6 +107,32 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
 			true
 			);
 
+	private SettingsModelString m_otherExpressions = new SettingsModelString(
+			"other_expressions",
+			""
+			);
+
+	/**
+	 * An expression to evaluate, with the name and 
+	 * the type of the column receiving its result.
+	 */
+	protected static class NamedExpression {
+		
+		public final String colname;
+		public final String typeName;
+		public final Expression expression;
+		
+		public NamedExpression(String colname, String typeName, Expression expression) {
+			this.colname = colname;
+			this.typeName = typeName;
+			this.expression = expression;
+		}
+		
+		public boolean isGeometry() {
+			return typeName.equalsIgnoreCase(TYPE_GEOMETRY);
+		}
+	}
+	
     /**
      * Constructor for the node model.
      */
@@ -102,43 +141,71 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
         super(1, 1);
     }
 
-    
     /**
-     * Returns a column spec for the novel column,
-     * or null if the column to be created is the geometry
+     * Returns the KNIME type for this type name.
+     * 
+     * @param typeName
+     * @param binaryGeometry
      * @return
      * @throws InvalidSettingsException
      */
-    protected DataColumnSpec createColumnSpec() throws InvalidSettingsException {
-    	
+    protected DataType getCellType(String typeName, boolean binaryGeometry) throws InvalidSettingsException {
     	
-    	final String typeName = m_type.getStringValue().toLowerCase();
-    	
-    	DataType type = null;
-
     	if (typeName.equalsIgnoreCase("string"))
-    		type = StringCell.TYPE;
+    		return StringCell.TYPE;
     	else if (typeName.equalsIgnoreCase("double"))
-    		type = DoubleCell.TYPE;
+    		return DoubleCell.TYPE;
     	else if (typeName.equalsIgnoreCase("integer"))
-    		type = IntCell.TYPE;
+    		return IntCell.TYPE;
     	else if (typeName.equalsIgnoreCase("long"))
-    		type = LongCell.TYPE;
+    		return LongCell.TYPE;
     	else if (typeName.equalsIgnoreCase("boolean"))
-    		type = BooleanCell.TYPE;
-    	else if (typeName.equalsIgnoreCase("geometry"))
-    		type = null;
+    		return BooleanCell.TYPE;
+    	else if (typeName.equalsIgnoreCase(TYPE_GEOMETRY))
+    		return SpatialUtils.getGeometryCellType(binaryGeometry);
     	else
     		throw new InvalidSettingsException("unknown type "+typeName);
+    }
+
+    /**
+     * Creates the output spec: the columns of the input, 
+     * plus one column per expression. If the main expression 
+     * is a geometry, it replaces the original geometry.
+     * The other geometry columns get the CRS of the original geometry.
+     *  
+     * @param spec
+     * @param expressions
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected DataTableSpec createOutputSpec(DataTableSpec spec, List<NamedExpression> expressions) throws InvalidSettingsException {
     	
-    	if (type == null)
-    		return null;
-    	
-    	final String colname = m_colname.getStringValue();
+    	final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(spec);
     	
-    	return new DataColumnSpecCreator(colname, type).createSpec();
+    	DataTableSpecCreator specCreator = new DataTableSpecCreator(spec);
+    	Set<String> names = new HashSet<>();
     	
+    	for (int i=0; i<expressions.size(); i++) {
+    		
+    		final NamedExpression exp = expressions.get(i);
+    		
+    		if (i == 0 && exp.isGeometry())
+    			continue;
+    		
+    		if (spec.containsName(exp.colname))
+        		throw new InvalidSettingsException("There is already a column named "+exp.colname+" in the input table");
+    		if (!names.add(exp.colname))
+        		throw new InvalidSettingsException("Several expressions create a column named "+exp.colname);
+    		
+    		DataColumnSpecCreator creator = new DataColumnSpecCreator(exp.colname, getCellType(exp.typeName, binaryGeometry));
+    		if (exp.isGeometry()) {
+    			// the geometries are in the CRS of the input geometry, which the spatial nodes read from the column
+    			creator.setProperties(spec.getColumnSpec(SpatialUtils.GEOMETRY_COLUMN_NAME).getProperties());
+    		}
+    		specCreator.addColumns(creator.createSpec());
+    	}
     	
+    	return specCreator.createSpec();
     }
 
     /**
@@ -154,34 +221,14 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     		throw new InvalidSettingsException("the input table does not contains WKT spatial data");
     	}
     	
-    	// ensure the query can be decoded
-    	getExpression();
-
-    	final String typeName = m_type.getStringValue().toLowerCase();
-
-    	final String colname = m_colname.getStringValue();
-    	if (spec.getColumnSpec(colname) != null && !typeName.equalsIgnoreCase("geometry"))
-    		throw new InvalidSettingsException("There is already a column named "+colname+" in the input table");
-    	
-    	
-    	DataColumnSpec addedColumn = createColumnSpec();
-    	
-    	DataTableSpecCreator specCreateor = new DataTableSpecCreator(spec);
-    	
-    	if (addedColumn != null)
-    		specCreateor.addColumns(addedColumn);
-    	
-        return new DataTableSpec[]{ specCreateor.createSpec() };
+    	// ensure the queries can be decoded
+        return new DataTableSpec[]{ createOutputSpec(spec, getExpressions()) };
     }
 
-    protected Expression getExpression() throws InvalidSettingsException {
-
-
-    	final String query = m_query.getStringValue();
+    protected Expression getExpression(String query) throws InvalidSettingsException {
 
         String queryWithVariableValues = FlowVariableResolver.parse(query, this);
         
-        
     	Expression exp = null;
     	try {
     		exp = ECQL.toExpression(queryWithVariableValues);
@@ -192,16 +239,50 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     	return exp;
     }
     
-    protected GeometryBuilder geometryBuilder = null;
+    /**
+     * Returns the expressions to evaluate: first the main one, 
+     * then the other ones defined one per line.
+     * 
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected List<NamedExpression> getExpressions() throws InvalidSettingsException {
+    	
+    	List<NamedExpression> expressions = new ArrayList<>();
+    	
+    	expressions.add(new NamedExpression(
+    			m_colname.getStringValue(), 
+    			m_type.getStringValue(), 
+    			getExpression(m_query.getStringValue())
+    			));
+    	
+    	for (String line: m_otherExpressions.getStringValue().split("\\r?\\n")) {
+    		
+    		if (line.trim().isEmpty() || line.trim().startsWith("#"))
+    			continue;
+    		
+    		Matcher matcher = PATTERN_EXPRESSION.matcher(line);
+    		if (!matcher.matches())
+    			throw new InvalidSettingsException("invalid expression \""+line+"\"; expecting name:Type=expression");
+    		
+    		expressions.add(new NamedExpression(
+    				matcher.group(1), 
+    				matcher.group(2), 
+    				getExpression(matcher.group(3))
+    				));
+    	}
+    	
+    	return expressions;
+    }
     
     protected Geometry createMultiGeometry(Object o) {
     	
-    	if (Polygon.class.isAssignableFrom(o.getClass())) {
-    		return geometryBuilder.multiPolygon((Polygon)o);
+    	if (o instanceof Polygon) {
+    		return ((Polygon)o).getFactory().createMultiPolygon(new Polygon[] { (Polygon)o });
     	}
     	
-    	if (LineString.class.isAssignableFrom(o.getClass())) {
-    		return geometryBuilder.multiLineString((LineString)o);
+    	if (o instanceof LineString) {
+    		return ((LineString)o).getFactory().createMultiLineString(new LineString[] { (LineString)o });
     	}
     	
     	return (Geometry)o;
@@ -209,146 +290,121 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     }
     
     /**
-     * {@inheritDoc}
+     * Converts the result of an expression into a cell of the given type.
+     * 
+     * @param res
+     * @param exp
+     * @param binaryGeometry
+     * @return
+     * @throws InvalidSettingsException
      */
-    @Override
-    protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
-            final ExecutionContext exec) throws Exception {
-
-    	final boolean createMultiGeom = m_createGeometriesMulti.getBooleanValue();
-    	final String typename = m_type.getStringValue();
-    	final boolean typeIsGeom = typename.equals("Geometry");
+    protected DataCell createCell(Object res, NamedExpression exp, boolean binaryGeometry) throws InvalidSettingsException {
     	
-    	final BufferedDataTable inputPopulation = inData[0];
+    	if (res == null)
+    		return new MissingCell("no data");
 
-    	DataColumnSpec addedColumn = createColumnSpec();
-    	
-    	DataTableSpecCreator specCreateor = new DataTableSpecCreator(inputPopulation.getDataTableSpec());
-    	if (addedColumn != null)
-    		specCreateor.addColumns(addedColumn);
-    	DataTableSpec newSpec = specCreateor.createSpec();
-    	
-    	Expression exp = getExpression();
-    	
-    	
-    	DataStore datastore = SpatialUtils.createTmpDataStore(false);
+    	final String typeName = exp.typeName;
+
+    	try {
+        	if (typeName.equalsIgnoreCase("string")) 
+        		return StringCellFactory.create(res.toString());
+        	else if (typeName.equalsIgnoreCase("integer")) 
+        		return IntCellFactory.create(((Number)res).intValue());
+        	else if (typeName.equalsIgnoreCase("double")) 
+        		return DoubleCellFactory.create(((Number)res).doubleValue());
+        	else if (typeName.equalsIgnoreCase("long")) 
+        		return LongCellFactory.create(((Number)res).longValue());
+        	else if (typeName.equalsIgnoreCase("boolean")) 
+        		return BooleanCellFactory.create((Boolean)res);
+        	else if (exp.isGeometry()) {
+        		if (res instanceof Geometry)
+        			return SpatialUtils.createGeometryCell((Geometry)res, binaryGeometry);
+        		return StringCellFactory.create(res.toString());
+        	} else
+        		throw new InvalidSettingsException("unknown type "+typeName);
+    	} catch (ClassCastException e) {
+    		throw new InvalidSettingsException("the type you selected for "+exp.colname+" is not compliant with the result of the expression; try "+res.getClass().getSimpleName());
+    	}
+    }
+    
+    /**
+     * Creates the function which evaluates all the expressions
+     * on the feature of each row, and creates the resulting row.
+     * 
+     * @param inputSpec
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) throws InvalidSettingsException {
     	
-    	ExecutionContext execSpatialize = exec.createSubExecutionContext(0.5);
-    	ExecutionContext execFilter = exec.createSubExecutionContext(0.5);
+    	final List<NamedExpression> expressions = getExpressions();
+    	final NamedExpression[] exps = expressions.toArray(new NamedExpression[expressions.size()]);
 
-    	final CoordinateReferenceSystem crs = SpatialUtils.decodeCRS(inputPopulation.getDataTableSpec());
-    	    	
-    	exec.setMessage("spatializing features");
-    	SpatialUtils.decodeAsFeatures(
-    			inputPopulation, 
-    			SpatialUtils.GEOMETRY_COLUMN_NAME, 
-    			execSpatialize, 
-    			datastore, 
+    	final boolean createMultiGeom = m_createGeometriesMulti.getBooleanValue();
+    	final boolean replaceGeometry = exps[0].isGeometry();
+    	final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputSpec);
+        final int idxGeom = inputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+    	final int numberOfCells = inputSpec.getNumColumns();
+    	final int numberOfAdded = replaceGeometry ? exps.length - 1 : exps.length;
+    	
+    	final NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
+    	final RowFeatureAdapter adapter = new RowFeatureAdapter(
+    			inputSpec, 
     			"entities", 
-    			crs
+    			SpatialUtils.decodeCRS(inputSpec), 
+    			warnings
     			);
+    	if (warnings.buildWarnings() != null)
+    		setWarningMessage(warnings.buildWarnings());
     	
-    	geometryBuilder = new GeometryBuilder();
+    	return (geomAndRow, output) -> {
+    		
+    		final SimpleFeature feature = adapter.createFeature(geomAndRow);
+    		
+    		DataCell[] cells = new DataCell[numberOfCells+numberOfAdded];
+    		for (int i=0; i<numberOfCells; i++)
+    			cells[i] = geomAndRow.row.getCell(i);
+    		
+    		int idxCell = numberOfCells;
+    		for (int i=0; i<exps.length; i++) {
+    			
+    			Object res = exps[i].expression.evaluate(feature);
+    			if (createMultiGeom && exps[i].isGeometry() && res != null)
+    				res = createMultiGeometry(res);
+    			
+    			final DataCell cell = createCell(res, exps[i], binaryGeometry);
+    			if (i == 0 && replaceGeometry)
+    				cells[idxGeom] = cell;
+    			else
+    				cells[idxCell++] = cell;
+    		}
+    		
+    		output.accept(new DefaultRow(geomAndRow.row.getKey(), cells));
+    	};
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
+            final ExecutionContext exec) throws Exception {
+    	
+    	final BufferedDataTable inputPopulation = inData[0];
+    	final DataTableSpec inputSpec = inputPopulation.getDataTableSpec();
+    	
+    	BufferedDataContainer container = exec.createDataContainer(
+    			createOutputSpec(inputSpec, getExpressions()));
 
     	exec.setMessage("computing "+m_colname.getStringValue());
     	
-        SimpleFeatureCollection features = datastore.getFeatureSource(datastore.getNames().get(0)).getFeatures();
-
-    	BufferedDataContainer container = exec.createDataContainer(newSpec);
-        CloseableRowIterator itRow = inputPopulation.iterator();
-
-        MissingCell missing = new MissingCell("no data");
-        
-        final int idxGeom = newSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
-        
-        SimpleFeatureIterator itFeatures = features.features();
-        double total = inputPopulation.size();
-        int done = 0;
-        try {
-
-	        while (itRow.hasNext()) {
-
-	        	if (!itFeatures.hasNext())
-	        		throw new RuntimeException("error during the spatialization: less features than lines. This should not happen and reveals a problem in the program.");
-	        	final SimpleFeature feature = itFeatures.next();
-	        	
-	        	final DataRow row = itRow.next();
-
-	        	if (done++ % 10 == 0) {
-	        		exec.checkCanceled();
-	        		execFilter.setProgress(done/total);
-	        	}
-
-	        	String rowid = (String) feature.getAttribute("rowid");
-	        	
-	        	if (!row.getKey().getString().equals(rowid)) {
-	        		throw new RuntimeException("The features were not returned in the right order. please report a bug..."); 
-	        	}
-	        	
-	        	List<DataCell> cells = null;
-	        	Object res = exp.evaluate(feature);
-	        	
-	        	if (createMultiGeom && typeIsGeom) {
-	        		res = createMultiGeometry(res);
-	        	}
-
-	        	if (addedColumn == null) {
-	        		
-	        		cells = new ArrayList<>(row.getNumCells());
-		        	
-	        		for (int col=0; col < idxGeom; col++)
-	        			cells.add(row.getCell(col));
-	        		
-	        		cells.add(StringCellFactory.create(res.toString()));
-	        		
-	        		for (int col=idxGeom+1; col < row.getNumCells(); col++)
-	        			cells.add(row.getCell(col));
-	        		
-		        	
-	        	} else {
-		        	
-		        	DataCell newCell = null;
-		        	try {
-			        	if (res == null)
-			        		newCell = missing;
-			        	else if (addedColumn.getType().equals(StringCell.TYPE)) {
-			        		newCell = StringCellFactory.create(res.toString());
-			        	} else if (addedColumn.getType().equals(IntCell.TYPE)) {
-			        		newCell = IntCellFactory.create(((Number)res).intValue());
-			        	} else if (addedColumn.getType().equals(DoubleCell.TYPE)) {
-			        		newCell = DoubleCellFactory.create(((Number)res).doubleValue());
-			        	} else if (addedColumn.getType().equals(LongCell.TYPE)) {
-			        		newCell = LongCellFactory.create(((Number)res).longValue());
-			        	} else if (addedColumn.getType().equals(BooleanCell.TYPE)) {
-			        		newCell = BooleanCellFactory.create((Boolean)res);
-			        	} else
-			        		throw new RuntimeException("unknown type "+addedColumn.getType());
-			        	
-		        	} catch (ClassCastException e) {
-		        		throw new InvalidSettingsException("the type you selected is not compliant with the result of the expression; try "+res.getClass().getSimpleName());
-		        	}
-		        	
-		        	cells = new ArrayList<>(row.getNumCells()+1);
-		        	cells.addAll(row.stream().collect(Collectors.toList()));
-		        	cells.add(newCell);
-		        	
-	        	}
-	        	
-	        	
-	        	container.addRowToTable(new DefaultRow(row.getKey(), cells));
-	        	 
-	        }
-        } finally {
-	        if (itRow != null)
-	        	itRow.close();
-	        
-	        if (itFeatures != null)
-	        	itFeatures.close();
-	        
-	        if (datastore != null)
-	        	datastore.dispose();
-
-        }
+    	// evaluate all the expressions in one pass
+    	SpatialUtils.applyToEachGeometryParallel(
+    			inputPopulation, 
+    			container::addRowToTable, 
+    			exec, 
+    			createMapper(inputSpec)
+    			);
         
         // once we are done, we close the container and return its table
         container.close();
@@ -356,6 +412,46 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
         return new BufferedDataTable[]{ out };
     }
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
     /**
      * {@inheritDoc}
      */
@@ -375,6 +471,7 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     	m_type.saveSettingsTo(settings);
     	m_colname.saveSettingsTo(settings);
     	m_createGeometriesMulti.saveSettingsTo(settings);
+    	m_otherExpressions.saveSettingsTo(settings);
     }
 
     /**
@@ -389,6 +486,11 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     	m_type.loadSettingsFrom(settings);
     	m_colname.loadSettingsFrom(settings);
     	m_createGeometriesMulti.loadSettingsFrom(settings);
+    	// workflows created before the other expressions were introduced
+    	if (settings.containsKey(m_otherExpressions.getKey()))
+    		m_otherExpressions.loadSettingsFrom(settings);
+    	else
+    		m_otherExpressions.setStringValue("");
     	
     }
 
@@ -403,6 +505,8 @@ public class ComputeECQLNodeModel extends NodeModel implements FlowVariableProvi
     	m_type.validateSettings(settings);
     	m_colname.validateSettings(settings);
     	m_createGeometriesMulti.validateSettings(settings);
+    	if (settings.containsKey(m_otherExpressions.getKey()))
+    		m_otherExpressions.validateSettings(settings);
     	
     }
     
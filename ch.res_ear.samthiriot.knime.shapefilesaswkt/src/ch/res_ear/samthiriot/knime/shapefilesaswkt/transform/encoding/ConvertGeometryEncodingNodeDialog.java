@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.encoding;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * Dialog of the "ConvertGeometryEncoding" node.
+ * 
+ * @author Samuel Thiriot
+ */
+public class ConvertGeometryEncodingNodeDialog extends DefaultNodeSettingsPane {
+
+	/**
+	 * New dialog pane for configuring the node. The dialog created here
+	 * will show up when double clicking on a node in KNIME Analytics Platform.
+	 */
+    protected ConvertGeometryEncodingNodeDialog() {
+        super();
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				ConvertGeometryEncodingNodeModel.MODEL_KEY_ENCODING, 
+        				ConvertGeometryEncodingNodeModel.ENCODING_BINARY),
+        		"encoding", 
+        		ConvertGeometryEncodingNodeModel.ENCODING_BINARY,
+        		ConvertGeometryEncodingNodeModel.ENCODING_WKT
+        		));
+    }
+}
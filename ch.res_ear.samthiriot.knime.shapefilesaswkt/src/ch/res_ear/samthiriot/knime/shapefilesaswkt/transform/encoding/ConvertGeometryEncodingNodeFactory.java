@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.encoding;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * This is an example implementation of the node factory of the
+ * "ConvertGeometryEncoding" node.
+ *
+ * @author Samuel Thiriot
+ */
+public class ConvertGeometryEncodingNodeFactory 
+        extends NodeFactory<ConvertGeometryEncodingNodeModel> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConvertGeometryEncodingNodeModel createNodeModel() {
+		// Create and return a new node model.
+        return new ConvertGeometryEncodingNodeModel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrNodeViews() {
+		// The number of views the node should have, in this cases there is none.
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeView<ConvertGeometryEncodingNodeModel> createNodeView(final int viewIndex,
+            final ConvertGeometryEncodingNodeModel nodeModel) {
+		// We return null as this example node does not provide a view. Also see "getNrNodeViews()".
+		return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasDialog() {
+		// Indication whether the node has a dialog or not.
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeDialogPane createNodeDialogPane() {
+		// This example node has a dialog, hence we create and return it here. Also see "hasDialog()".
+        return new ConvertGeometryEncodingNodeDialog();
+    }
+
+}
+
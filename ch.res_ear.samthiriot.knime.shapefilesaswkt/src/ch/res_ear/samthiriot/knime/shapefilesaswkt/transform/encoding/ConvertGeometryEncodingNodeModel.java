@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.encoding;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataTableSpecCreator;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+
+
+/**
+ * Converts the geometries of a table between WKT strings 
+ * and binary geometry cells (WKB). 
+ * Binary geometries are quicker to decode by the following nodes
+ * and take less space on disk; WKT is readable by any node.
+ *
+ * @author Samuel Thiriot
+ */
+public class ConvertGeometryEncodingNodeModel extends NodeModel {
+    
+	public static final String MODEL_KEY_ENCODING = "encoding";
+	
+	public static final String ENCODING_BINARY = "binary (WKB)";
+	public static final String ENCODING_WKT = "text (WKT)";
+
+	private final SettingsModelString m_encoding = new SettingsModelString(MODEL_KEY_ENCODING, ENCODING_BINARY);
+
+	/**
+	 * Constructor for the node model.
+	 */
+	protected ConvertGeometryEncodingNodeModel() {
+		super(1, 1);
+	}
+
+	protected boolean isTargetBinary() throws InvalidSettingsException {
+		final String encoding = m_encoding.getStringValue();
+		if (ENCODING_BINARY.equals(encoding))
+			return true;
+		else if (ENCODING_WKT.equals(encoding))
+			return false;
+		else
+			throw new InvalidSettingsException("unknown encoding "+encoding);
+	}
+	
+	/**
+	 * Creates the output spec, which is the input spec with 
+	 * the geometry column changed to the target type.
+	 * The properties of the column (Coordinate Reference System) are kept.
+	 * 
+	 * @param inputSpec
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	protected DataTableSpec createOutputSpec(DataTableSpec inputSpec) throws InvalidSettingsException {
+		
+		final int idxGeomCol = inputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+		
+		DataColumnSpecCreator creator = new DataColumnSpecCreator(inputSpec.getColumnSpec(idxGeomCol));
+		creator.setType(SpatialUtils.getGeometryCellType(isTargetBinary()));
+		
+		DataTableSpecCreator specCreator = new DataTableSpecCreator(inputSpec);
+		specCreator.replaceColumn(idxGeomCol, creator.createSpec());
+		return specCreator.createSpec();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final DataTableSpec spec = inSpecs[0];
+		if (spec == null)
+			throw new InvalidSettingsException("no table as input");
+		
+		if (!SpatialUtils.hasGeometry(spec))
+			throw new InvalidSettingsException("the input table contains no WKT geometry");
+					
+		return new DataTableSpec[] { createOutputSpec(spec) };
+	}
+
+	/**
+	 * 
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+			throws Exception {
+		
+		BufferedDataTable inputTable = inData[0];
+
+		final boolean binary = isTargetBinary();
+		
+		DataTableSpec outputSpec = createOutputSpec(inputTable.getDataTableSpec());
+		BufferedDataContainer container = exec.createDataContainer(outputSpec);
+
+		final double total = inputTable.size();
+		final int numberOfCells = outputSpec.getNumColumns();
+		final int idxGeomCol = outputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+
+		WKTReader reader = new WKTReader(JTSFactoryFinder.getGeometryFactory(null));
+
+		long done = 0;
+		CloseableRowIterator itRow = inputTable.iterator();
+		try {
+			while (itRow.hasNext()) {
+				final DataRow row = itRow.next();
+				
+				DataCell[] cells = new DataCell[numberOfCells];
+				for (int i=0; i<numberOfCells; i++) {
+					final DataCell cell = row.getCell(i);
+					if (i == idxGeomCol && !cell.isMissing()) {
+						// convert geometry
+						try {
+							Geometry geom = SpatialUtils.readGeometry(cell, reader);
+							cells[i] = SpatialUtils.createGeometryCell(geom, binary);
+						} catch (ParseException e) {
+							e.printStackTrace();
+							throw new IllegalArgumentException(
+									"Invalid WKT geometry on row "+
+									row.getKey()+":"+
+									e.getMessage(), 
+									e
+									);
+						}
+					} else 
+						cells[i] = cell;
+				}
+				container.addRowToTable(new DefaultRow(row.getKey(), cells));
+				
+				if (done++ % 100 == 0) {
+					exec.checkCanceled();
+					exec.setProgress(done/total, "converting row "+done);
+				}
+			}
+		} finally {
+			itRow.close();
+		}
+
+		container.close();
+		BufferedDataTable out = container.getTable();
+		return new BufferedDataTable[] { out };
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+		
+		m_encoding.saveSettingsTo(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+	
+		m_encoding.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+		
+		m_encoding.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+		
+		// nothing to do
+	}
+
+	@Override
+	protected void saveInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+	
+		// nothing to do
+	}
+
+	@Override
+	protected void reset() {
+		
+		// nothing to do
+	}
+}
@@ -13,16 +13,11 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.filter_ecql;
 import java.io.File;
 import java.io.IOException;
 
-import org.geotools.data.DataStore;
-import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.filter.text.cql2.CQLException;
 import org.geotools.filter.text.ecql.ECQL;
 import org.knime.base.util.flowvariable.FlowVariableProvider;
 import org.knime.base.util.flowvariable.FlowVariableResolver;
-import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.data.container.CloseableRowIterator;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -33,11 +28,21 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
-import org.opengis.feature.simple.SimpleFeature;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.opengis.filter.Filter;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.NodeWarningWriter;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.RowFeatureAdapter;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -98,6 +103,35 @@ public class FilterECQLNodeModel extends NodeModel implements FlowVariableProvid
     	return filter;
     }
     
+    /**
+     * Creates the function which keeps the rows 
+     * for which the filter is true. 
+     * 
+     * @param inputSpec
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) throws InvalidSettingsException {
+
+    	final Filter filter = getFilter();
+
+    	final NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
+    	final RowFeatureAdapter adapter = new RowFeatureAdapter(
+    			inputSpec, 
+    			"entities", 
+    			SpatialUtils.decodeCRS(inputSpec), 
+    			warnings
+    			);
+    	if (warnings.buildWarnings() != null)
+    		setWarningMessage(warnings.buildWarnings());
+    	
+    	return (geomAndRow, output) -> {
+    		
+    		if (filter.evaluate(adapter.createFeature(geomAndRow)))
+    			output.accept(geomAndRow.row);
+    	};
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -105,80 +139,17 @@ public class FilterECQLNodeModel extends NodeModel implements FlowVariableProvid
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
 
-    	
     	final BufferedDataTable inputPopulation = inData[0];
     	
-    	DataStore datastore = SpatialUtils.createTmpDataStore(false);
-    	
-    	ExecutionContext execSpatialize = exec.createSubExecutionContext(0.5);
-    	ExecutionContext execFilter = exec.createSubExecutionContext(0.5);
+    	BufferedDataContainer container = exec.createDataContainer(inputPopulation.getDataTableSpec());
 
-    	final CoordinateReferenceSystem crs = SpatialUtils.decodeCRS(inputPopulation.getDataTableSpec());
-    	
-    	final Filter filter = getFilter();
-    	
-    	exec.setMessage("spatializing features");
-    	SpatialUtils.decodeAsFeatures(
+    	exec.setMessage("filtering");
+    	SpatialUtils.applyToEachGeometryParallel(
     			inputPopulation, 
-    			SpatialUtils.GEOMETRY_COLUMN_NAME, 
-    			execSpatialize, 
-    			datastore, 
-    			"entities", 
-    			crs
+    			container::addRowToTable, 
+    			exec, 
+    			createMapper(inputPopulation.getDataTableSpec())
     			);
-    	
-    	exec.setMessage("filtering");
-        SimpleFeatureCollection features = datastore.getFeatureSource(datastore.getNames().get(0)).getFeatures(
-        		filter
-        		);
-
-    	BufferedDataContainer container = exec.createDataContainer(inputPopulation.getDataTableSpec());
-        CloseableRowIterator itRow = inputPopulation.iterator();
-
-        SimpleFeatureIterator itFeatures = features.features();
-        double total = inputPopulation.size();
-        int done = 0;
-        try {
-        	String rowid = null;
-
-	        while (itRow.hasNext()) {
-	        	
-	        	if (done++ % 10 == 0) {
-	        		exec.checkCanceled();
-	        		execFilter.setProgress(done/total);
-	        	}
-	        	
-	        	if (rowid == null) {
-		        	// we might have less features as they were filtered
-		        	if (!itFeatures.hasNext()) {
-		        		System.out.println("skipping the last rows");
-		        		break;
-		        	}
-		        	final SimpleFeature feature = itFeatures.next();
-		        	rowid = (String) feature.getAttribute("rowid");
-		        	
-	        	}
-	        	
-	        	
-	        	
-	        	final DataRow row = itRow.next();
-	        	
-	        	if (row.getKey().getString().equals(rowid)) {
-	        		container.addRowToTable(row);
-	        		rowid = null; // shift next 
-	        	} 
-	        }
-        } finally {
-	        if (itRow != null)
-	        	itRow.close();
-	        
-	        if (itFeatures != null)
-	        	itFeatures.close();
-	        
-	        if (datastore != null)
-	        	datastore.dispose();
-
-        }
         
         // once we are done, we close the container and return its table
         container.close();
@@ -186,6 +157,46 @@ public class FilterECQLNodeModel extends NodeModel implements FlowVariableProvid
         return new BufferedDataTable[]{ out };
     }
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
     /**
      * {@inheritDoc}
      */
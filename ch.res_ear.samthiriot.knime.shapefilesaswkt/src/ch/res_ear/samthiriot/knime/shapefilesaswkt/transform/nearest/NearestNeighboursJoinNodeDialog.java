@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.nearest;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumberEdit;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDouble;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * Dialog of the "NearestNeighboursJoin" node.
+ * 
+ * @author Samuel Thiriot
+ */
+public class NearestNeighboursJoinNodeDialog extends DefaultNodeSettingsPane {
+
+	/**
+	 * New dialog pane for configuring the node. The dialog created here
+	 * will show up when double clicking on a node in KNIME Analytics Platform.
+	 */
+    protected NearestNeighboursJoinNodeDialog() {
+        super();
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded(
+        				"k",
+        				1,
+        				1, Integer.MAX_VALUE
+        				),
+        		"count of neighbours (k)", 
+        		1
+        		));
+
+        addDialogComponent(new DialogComponentNumberEdit(
+        		new SettingsModelDouble(
+        				"max distance",
+        				0.0
+        				),
+        		"maximum distance (0 for no limit)"
+        		));
+
+        addDialogComponent(new DialogComponentBoolean(
+        		new SettingsModelBoolean(
+        				"keep unmatched",
+        				false
+        				),
+        		"keep the rows without neighbour"
+        		));
+
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString(
+        				"colname distance",
+        				"distance"
+        				),
+        		"distance column name",
+        		true,
+        		20
+        		));
+
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString(
+        				"colname rank",
+        				"rank"
+        				),
+        		"rank column name",
+        		true,
+        		20
+        		));
+
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString(
+        				"suffix",
+        				" (right)"
+        				),
+        		"suffix for duplicate column names",
+        		false,
+        		20
+        		));
+    }
+}
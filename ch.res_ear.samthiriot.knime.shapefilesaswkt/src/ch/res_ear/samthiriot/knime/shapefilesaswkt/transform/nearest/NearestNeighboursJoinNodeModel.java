@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.nearest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.DoubleCell.DoubleCellFactory;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.IntCell.IntCellFactory;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDouble;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.NearestNeighbourIndex;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.NearestNeighbourIndex.Neighbour;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
+
+
+/**
+ * Joins each row of the top table with the k rows of the bottom table
+ * whom geometries are the nearest.
+ * The geometries of the bottom table are indexed in a STRtree,
+ * which is queried in parallel for each geometry of the top table.
+ *
+ * @author Samuel Thiriot
+ */
+public class NearestNeighboursJoinNodeModel extends NodeModel {
+
+	private final SettingsModelIntegerBounded m_k = new SettingsModelIntegerBounded(
+			"k",
+			1,
+			1, Integer.MAX_VALUE
+			);
+
+	private final SettingsModelDouble m_maxDistance = new SettingsModelDouble(
+			"max distance",
+			0.0
+			);
+
+	private final SettingsModelBoolean m_keepUnmatched = new SettingsModelBoolean(
+			"keep unmatched",
+			false
+			);
+
+	private final SettingsModelString m_colnameDistance = new SettingsModelString(
+			"colname distance",
+			"distance"
+			);
+
+	private final SettingsModelString m_colnameRank = new SettingsModelString(
+			"colname rank",
+			"rank"
+			);
+
+	private final SettingsModelString m_suffix = new SettingsModelString(
+			"suffix",
+			" (right)"
+			);
+
+	/**
+	 * Constructor for the node model.
+	 */
+	protected NearestNeighboursJoinNodeModel() {
+		super(2, 1);
+	}
+
+	/**
+	 * Creates the spec of the joined table: the columns of the top table,
+	 * the columns of the bottom table renamed with the suffix if they
+	 * already exist, then the distance and the rank of the neighbour.
+	 *
+	 * @param specLeft
+	 * @param specRight
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	protected DataTableSpec createOutputSpec(DataTableSpec specLeft, DataTableSpec specRight) throws InvalidSettingsException {
+
+		final String suffix = m_suffix.getStringValue();
+
+		List<DataColumnSpec> specs = new ArrayList<>(specLeft.getNumColumns()+specRight.getNumColumns()+2);
+		Set<String> names = new HashSet<>();
+
+		for (int i=0; i<specLeft.getNumColumns(); i++) {
+			specs.add(specLeft.getColumnSpec(i));
+			names.add(specLeft.getColumnSpec(i).getName());
+		}
+
+		for (int i=0; i<specRight.getNumColumns(); i++) {
+			final DataColumnSpec spec = specRight.getColumnSpec(i);
+			String name = spec.getName();
+			while (names.contains(name)) {
+				if (suffix.isEmpty())
+					throw new InvalidSettingsException("the column "+name+" exists in both tables; please define a suffix");
+				name = name + suffix;
+			}
+			names.add(name);
+			DataColumnSpecCreator creator = new DataColumnSpecCreator(spec);
+			creator.setName(name);
+			specs.add(creator.createSpec());
+		}
+
+		final String colnameDistance = m_colnameDistance.getStringValue();
+		final String colnameRank = m_colnameRank.getStringValue();
+		if (names.contains(colnameDistance))
+			throw new InvalidSettingsException("there is already a column named "+colnameDistance);
+		if (names.contains(colnameRank) || colnameRank.equals(colnameDistance))
+			throw new InvalidSettingsException("there is already a column named "+colnameRank);
+
+		specs.add(new DataColumnSpecCreator(colnameDistance, DoubleCell.TYPE).createSpec());
+		specs.add(new DataColumnSpecCreator(colnameRank, IntCell.TYPE).createSpec());
+
+		return new DataTableSpec(specs.toArray(new DataColumnSpec[specs.size()]));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+
+		final DataTableSpec spec1 = inSpecs[0];
+		if (spec1 == null)
+			throw new InvalidSettingsException("no top table as input");
+
+		if (!SpatialUtils.hasGeometry(spec1))
+			throw new InvalidSettingsException("the top input table contains no WKT geometry");
+
+		final DataTableSpec spec2 = inSpecs[1];
+		if (spec2 == null)
+			throw new InvalidSettingsException("no bottom table as input");
+
+		if (!SpatialUtils.hasGeometry(spec2))
+			throw new InvalidSettingsException("the bottom input table contains no WKT geometry");
+
+		CoordinateReferenceSystem crs1 = SpatialUtils.decodeCRS(spec1);
+		CoordinateReferenceSystem crs2 = SpatialUtils.decodeCRS(spec2);
+		if (!crs1.equals(crs2))
+			throw new InvalidSettingsException("the two tables are not spatialized on the same Coordinate Reference Sytems; please reproject them first");
+
+		if (m_maxDistance.getDoubleValue() < 0)
+			throw new InvalidSettingsException("the maximum distance should be positive, or 0 for no limit");
+
+		return new DataTableSpec[] { createOutputSpec(spec1, spec2) };
+	}
+
+	/**
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+			throws Exception {
+
+		final BufferedDataTable tableLeft = inData[0];
+		final BufferedDataTable tableRight = inData[1];
+
+		final int k = m_k.getIntValue();
+		final double maxDistance = m_maxDistance.getDoubleValue();
+		final boolean keepUnmatched = m_keepUnmatched.getBooleanValue();
+
+		final int numberOfCellsLeft = tableLeft.getDataTableSpec().getNumColumns();
+		final int numberOfCellsRight = tableRight.getDataTableSpec().getNumColumns();
+
+		ExecutionMonitor execIndex = exec.createSubProgress(0.1);
+		ExecutionMonitor execJoin = exec.createSubProgress(0.9);
+
+		// index the geometries of the bottom table
+		exec.setMessage("indexing geometries");
+		final NearestNeighbourIndex<DataRow> index = new NearestNeighbourIndex<>();
+		final double totalIndexed = tableRight.size();
+		SpatialUtils.applyToEachGeometry(
+				tableRight,
+				geomAndRow -> {
+					index.add(geomAndRow.geometry, geomAndRow.row);
+					if (index.size() % 1000 == 0) {
+						exec.checkCanceled();
+						execIndex.setProgress(index.size()/totalIndexed);
+					}
+				});
+		index.build();
+
+		final IRowAndGeometryMapper mapper = (geomAndRow, output) -> {
+
+			// a row without geometry has no neighbour
+			List<Neighbour<DataRow>> neighbours = geomAndRow.geometry == null ? 
+					Collections.emptyList() : 
+					index.nearest(geomAndRow.geometry, k, maxDistance);
+
+			if (neighbours.isEmpty() && keepUnmatched) {
+				DataCell[] cells = new DataCell[numberOfCellsLeft+numberOfCellsRight+2];
+				for (int i=0; i<numberOfCellsLeft; i++)
+					cells[i] = geomAndRow.row.getCell(i);
+				for (int i=numberOfCellsLeft; i<cells.length; i++)
+					cells[i] = DataType.getMissingCell();
+				output.accept(new DefaultRow(geomAndRow.row.getKey(), cells));
+				return;
+			}
+
+			int rank = 1;
+			for (Neighbour<DataRow> neighbour: neighbours) {
+
+				DataCell[] cells = new DataCell[numberOfCellsLeft+numberOfCellsRight+2];
+				for (int i=0; i<numberOfCellsLeft; i++)
+					cells[i] = geomAndRow.row.getCell(i);
+				for (int i=0; i<numberOfCellsRight; i++)
+					cells[numberOfCellsLeft+i] = neighbour.item.getCell(i);
+				cells[numberOfCellsLeft+numberOfCellsRight] = DoubleCellFactory.create(neighbour.distance);
+				cells[numberOfCellsLeft+numberOfCellsRight+1] = IntCellFactory.create(rank++);
+
+				output.accept(new DefaultRow(geomAndRow.row.getKey(), cells));
+			}
+		};
+
+		// search the neighbours in parallel
+		exec.setMessage("searching neighbours");
+		BufferedDataContainer container = exec.createDataContainer(
+				createOutputSpec(tableLeft.getDataTableSpec(), tableRight.getDataTableSpec()));
+		// the keys built from the keys of the joined rows might collide;
+		// the rows arrive in order, so they are numbered as they come
+		final long[] countRows = new long[] { 0 };
+		final Consumer<DataRow> output = row -> {
+			DataCell[] cells = new DataCell[row.getNumCells()];
+			for (int i=0; i<cells.length; i++)
+				cells[i] = row.getCell(i);
+			container.addRowToTable(new DefaultRow(RowKey.createRowKey(countRows[0]++), cells));
+		};
+		if (keepUnmatched)
+			// the rows with a missing geometry are kept too
+			SpatialUtils.applyToEachRowParallel(
+					tableLeft,
+					output,
+					execJoin,
+					mapper
+					);
+		else
+			SpatialUtils.applyToEachGeometryParallel(
+					tableLeft,
+					output,
+					execJoin,
+					mapper
+					);
+
+		container.close();
+		BufferedDataTable out = container.getTable();
+		return new BufferedDataTable[] { out };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+
+		m_k.saveSettingsTo(settings);
+		m_maxDistance.saveSettingsTo(settings);
+		m_keepUnmatched.saveSettingsTo(settings);
+		m_colnameDistance.saveSettingsTo(settings);
+		m_colnameRank.saveSettingsTo(settings);
+		m_suffix.saveSettingsTo(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_k.loadSettingsFrom(settings);
+		m_maxDistance.loadSettingsFrom(settings);
+		m_keepUnmatched.loadSettingsFrom(settings);
+		m_colnameDistance.loadSettingsFrom(settings);
+		m_colnameRank.loadSettingsFrom(settings);
+		m_suffix.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_k.validateSettings(settings);
+		m_maxDistance.validateSettings(settings);
+		m_keepUnmatched.validateSettings(settings);
+		m_colnameDistance.validateSettings(settings);
+		m_colnameRank.validateSettings(settings);
+		m_suffix.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void saveInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void reset() {
+
+		// nothing to do
+	}
+}
+
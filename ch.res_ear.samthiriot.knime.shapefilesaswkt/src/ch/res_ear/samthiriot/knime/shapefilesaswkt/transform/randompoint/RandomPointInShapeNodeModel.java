@@ -21,7 +21,6 @@ import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.MissingCell;
 import org.knime.core.data.RowKey;
 import org.knime.core.data.def.DefaultRow;
-import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -43,7 +42,6 @@ import org.locationtech.jts.geom.MultiPoint;
 import org.locationtech.jts.geom.MultiPolygon;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.io.WKTWriter;
 
 import cern.jet.random.Uniform;
 import cern.jet.random.engine.MersenneTwister;
@@ -275,7 +273,7 @@ public class RandomPointInShapeNodeModel extends NodeModel {
 
 		final int idxGeomCol = inputTable.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
 		
-		WKTWriter writer = new WKTWriter();
+		final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(outputSpec);
 
 		// iterate each geometry of each row
 		done = 0;
@@ -294,7 +292,7 @@ public class RandomPointInShapeNodeModel extends NodeModel {
 									cells[i] = missing;
 								} else 
 									// convert geometry
-									cells[i] = StringCellFactory.create(writer.write(getRandomPointOnGeometry(geomAndRow.geometry)));
+									cells[i] = SpatialUtils.createGeometryCell(getRandomPointOnGeometry(geomAndRow.geometry), binaryGeometry);
 							} else 
 								cells[i] = geomAndRow.row.getCell(i);
 							
@@ -17,8 +17,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.CRS;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnProperties;
 import org.knime.core.data.DataColumnSpec;
@@ -26,8 +24,6 @@ import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.def.DefaultRow;
-import org.knime.core.data.def.StringCell;
-import org.knime.core.data.def.StringCell.StringCellFactory;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -38,14 +34,27 @@ import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 import org.locationtech.jts.geom.Geometry;
 import org.opengis.geometry.MismatchedDimensionException;
+import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.OperationNotFoundException;
 import org.opengis.referencing.operation.TransformException;
 
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.BatchCoordinateTransformer;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IGeometryChunkMapper;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.RowAndGeometry;
 
 
 /**
@@ -68,8 +77,75 @@ public class ReprojectNodeModel extends NodeModel {
     
         super(1, 1);
     }
+    
+    /**
+     * Creates the function which reprojects the geometries of a chunk of rows 
+     * into the target Coordinate Reference System. 
+     * The coordinates of all the geometries of the chunk are transformed together.
+     * 
+     * @param inputSpec
+     * @return
+     * @throws InvalidSettingsException
+     */
+    protected IGeometryChunkMapper createMapper(DataTableSpec inputSpec) throws InvalidSettingsException {
+    	
+    	final int idxColumnGeom = inputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+    	final int colCount = inputSpec.getNumColumns();
+    	final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputSpec);
 
-    long done = 0;
+    	CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputSpec);
+    	CoordinateReferenceSystem crsTarget = SpatialUtils.getCRSforString(m_crs.getStringValue());
+
+		MathTransform transform = null;
+		try {
+			try {
+				transform = SpatialUtils.findMathTransform(crsOrig, crsTarget, false);
+			} catch (OperationNotFoundException e) {
+				e.printStackTrace();
+				setWarningMessage("unable to find a math transform without being lenient; the result will be a bit approximated ("+e.getLocalizedMessage()+")");
+				transform = SpatialUtils.findMathTransform(crsOrig, crsTarget, true);
+			}
+		} catch (FactoryException e) {
+			e.printStackTrace();
+			throw new InvalidSettingsException("unable to find a transformation from "+crsOrig+" to "+crsTarget+": "+e.getMessage());
+		}
+		final BatchCoordinateTransformer transformer = new BatchCoordinateTransformer(transform);
+		
+		return (chunk, output) -> {
+			
+				List<Geometry> geometries = new ArrayList<>(chunk.size());
+				for (RowAndGeometry geomAndRow: chunk)
+					geometries.add(geomAndRow.geometry);
+				
+				List<Geometry> projected;
+				try {
+					projected = transformer.transform(geometries);
+				} catch (MismatchedDimensionException | TransformException  e) {
+					e.printStackTrace();
+					throw new InvalidSettingsException("unable to reproject: "+e.getMessage());
+				} 
+				
+				for (int r=0; r<chunk.size(); r++) {
+					
+					final DataRow original = chunk.get(r).row;
+					
+					DataCell[] cells = new DataCell[colCount];
+					for (int i=0; i<colCount; i++) {
+						if (i == idxColumnGeom) 
+							// replace the cell by the reprojected geometry
+							cells[i] = SpatialUtils.createGeometryCell(projected.get(r), binaryGeometry);
+						else 
+							cells[i] = original.getCell(i);
+					}
+					
+					output.accept(new DefaultRow(
+			    		  original.getKey(), 
+			    		  cells
+			    		  ));
+				}
+		
+			};
+    }
     
     /**
      * {@inheritDoc}
@@ -92,8 +168,6 @@ public class ReprojectNodeModel extends NodeModel {
     	
     	int idxColumnGeom = inputPopulation.getSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
     	
-    	CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputPopulation.getSpec());
-    	
     	CoordinateReferenceSystem crsTarget = SpatialUtils.getCRSforString(m_crs.getStringValue());
     	
 
@@ -107,9 +181,10 @@ public class ReprojectNodeModel extends NodeModel {
 		Map<String,String> properties = new HashMap<String, String>();
 		properties.put(SpatialUtils.PROPERTY_CRS_CODE, SpatialUtils.getStringForCRS(crsTarget));
 		properties.put(SpatialUtils.PROPERTY_CRS_WKT, crsTarget.toWKT());
+    	final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputPopulation.getDataTableSpec());
     	DataColumnSpecCreator creator = new DataColumnSpecCreator(
     			inputPopulation.getDataTableSpec().getColumnSpec(idxColumnGeom).getName(), 
-    			StringCell.TYPE
+    			SpatialUtils.getGeometryCellType(binaryGeometry)
     			);
     	creator.setProperties(new DataColumnProperties(properties));
     	novelsSpecs[idxColumnGeom] = creator.createSpec();
@@ -120,54 +195,11 @@ public class ReprojectNodeModel extends NodeModel {
     	DataTableSpec novelSpec = new DataTableSpec("spatial entities", novelsSpecs);
         BufferedDataContainer container = exec.createDataContainer(novelSpec);
         
-        int colCount = novelSpec.getNumColumns();
-		done = 0;
-		final double total = inputPopulation.size();
-		MathTransform transform = null;
-		try {
-			transform = CRS.findMathTransform(crsOrig, crsTarget, false);
-		} catch (OperationNotFoundException e) {
-			e.printStackTrace();
-			setWarningMessage("unable to find a math transform without being lenient; the result will be a bit approximated ("+e.getLocalizedMessage()+")");
-			transform = CRS.findMathTransform(crsOrig, crsTarget, true);
-		}
-		final MathTransform transform2 = transform;
-		
-    	SpatialUtils.applyToEachGeometry(
+    	SpatialUtils.applyToEachGeometryChunkParallel(
     			inputPopulation, 
-    			geomAndRow -> {
-						
-					List<DataCell> cells = new ArrayList<>();
-					
-					for (int i=0; i<colCount; i++) {
-						if (i == idxColumnGeom) {
-							// replace the cell by the reprojected geometry
-							Geometry projected;
-							try {
-								projected = JTS.transform(geomAndRow.geometry, transform2);
-							} catch (MismatchedDimensionException | TransformException  e) {
-								e.printStackTrace();
-								throw new InvalidSettingsException("unable to reproject: "+e.getMessage());
-							} 
-							cells.add(StringCellFactory.create(projected.toString()));
-							
-						} else {
-							cells.add(geomAndRow.row.getCell(i));
-						}
-					}
-					
-					DataRow row = new DefaultRow(
-			    		  geomAndRow.row.getKey(), 
-			    		  cells
-			    		  );
-					container.addRowToTable(row);
-					  
-					if (done++ % 10 == 0) {
-						exec.checkCanceled();
-						exec.setProgress(done/total, "reprojecting row "+done);
-					}
-			
-				}
+    			container::addRowToTable, 
+    			exec, 
+    			createMapper(inputPopulation.getDataTableSpec())
     			);
     	
          
@@ -214,7 +246,7 @@ public class ReprojectNodeModel extends NodeModel {
 		properties.put(SpatialUtils.PROPERTY_CRS_WKT, crsTarget.toWKT());
     	DataColumnSpecCreator creator = new DataColumnSpecCreator(
     			inSpecs[0].getColumnSpec(idxColumnGeom).getName(), 
-    			StringCell.TYPE
+    			SpatialUtils.getGeometryCellType(SpatialUtils.hasBinaryGeometry(inSpecs[0]))
     			);
     	creator.setProperties(new DataColumnProperties(properties));
     	novelsSpecs[idxColumnGeom] = creator.createSpec();
@@ -225,6 +257,51 @@ public class ReprojectNodeModel extends NodeModel {
         return new DataTableSpec[]{ new DataTableSpec("recoded", novelsSpecs) };
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+    	return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+    	return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(
+    		final PartitionInfo partitionInfo, 
+    		final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+    	
+    	final IGeometryChunkMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+    	
+    	return new StreamableOperator() {
+    		
+    		@Override
+    		public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+    			
+    			SpatialUtils.applyToEachGeometryChunk(
+    					(RowInput)inputs[0], 
+    					(RowOutput)outputs[0], 
+    					exec, 
+    					mapper);
+    			
+    	        // add flow variables for the CRS
+    	    	CoordinateReferenceSystem crsTarget = SpatialUtils.getCRSforString(m_crs.getStringValue());
+    	        pushFlowVariableString("CRS_code", SpatialUtils.getStringForCRS(crsTarget));
+    	        pushFlowVariableString("CRS_WKT", crsTarget.toWKT());
+    		}
+    	};
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.spatialjoin;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * Dialog of the "SpatialJoin" node.
+ * 
+ * @author Samuel Thiriot
+ */
+public class SpatialJoinNodeDialog extends DefaultNodeSettingsPane {
+
+	/**
+	 * New dialog pane for configuring the node. The dialog created here
+	 * will show up when double clicking on a node in KNIME Analytics Platform.
+	 */
+    protected SpatialJoinNodeDialog() {
+        super();
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				"relationship",
+        				"intersects"
+        				),
+        		"relationship",
+        		"disjoint",
+        		"intersects",
+        		"touches",
+        		"crosses",
+        		"within",
+        		"contains",
+        		"overlaps",
+        		"equals"
+        		));
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString(
+        				"join",
+        				SpatialJoinNodeModel.JOIN_INNER
+        				),
+        		"join",
+        		SpatialJoinNodeModel.JOIN_INNER,
+        		SpatialJoinNodeModel.JOIN_LEFT
+        		));
+
+        addDialogComponent(new DialogComponentString(
+        		new SettingsModelString(
+        				"suffix",
+        				" (right)"
+        				),
+        		"suffix for duplicate column names",
+        		false,
+        		20
+        		));
+    }
+}
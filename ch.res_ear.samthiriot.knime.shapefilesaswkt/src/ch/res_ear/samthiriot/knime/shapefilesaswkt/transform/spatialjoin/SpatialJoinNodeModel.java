@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.spatialjoin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.ReadOnlySTRtree;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
+
+
+/**
+ * Joins the rows of two tables according to the spatial
+ * relationship of their geometries.
+ * The geometries of one table are indexed in a STRtree; the
+ * geometries of the other table are used in parallel to query
+ * the candidates whom envelope intersects, and the relationship
+ * is then checked on a prepared geometry.
+ *
+ * @author Samuel Thiriot
+ */
+public class SpatialJoinNodeModel extends NodeModel {
+
+	public static final String JOIN_INNER = "inner join";
+	public static final String JOIN_LEFT = "left join";
+
+	private final SettingsModelString m_relationship = new SettingsModelString(
+			"relationship",
+			"intersects"
+			);
+
+	private final SettingsModelString m_join = new SettingsModelString(
+			"join",
+			JOIN_INNER
+			);
+
+	private final SettingsModelString m_suffix = new SettingsModelString(
+			"suffix",
+			" (right)"
+			);
+
+	/**
+	 * Constructor for the node model.
+	 */
+	protected SpatialJoinNodeModel() {
+		super(2, 1);
+	}
+
+	/**
+	 * Creates the spec of the joined table: the columns of the left table
+	 * followed by the columns of the right table, renamed with the suffix
+	 * if a column with the same name already exists.
+	 *
+	 * @param specLeft
+	 * @param specRight
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	protected DataTableSpec createOutputSpec(DataTableSpec specLeft, DataTableSpec specRight) throws InvalidSettingsException {
+
+		final String suffix = m_suffix.getStringValue();
+
+		List<DataColumnSpec> specs = new ArrayList<>(specLeft.getNumColumns()+specRight.getNumColumns());
+		Set<String> names = new HashSet<>();
+
+		for (int i=0; i<specLeft.getNumColumns(); i++) {
+			specs.add(specLeft.getColumnSpec(i));
+			names.add(specLeft.getColumnSpec(i).getName());
+		}
+
+		for (int i=0; i<specRight.getNumColumns(); i++) {
+			final DataColumnSpec spec = specRight.getColumnSpec(i);
+			String name = spec.getName();
+			while (names.contains(name)) {
+				if (suffix.isEmpty())
+					throw new InvalidSettingsException("the column "+name+" exists in both tables; please define a suffix");
+				name = name + suffix;
+			}
+			names.add(name);
+			DataColumnSpecCreator creator = new DataColumnSpecCreator(spec);
+			creator.setName(name);
+			specs.add(creator.createSpec());
+		}
+
+		return new DataTableSpec(specs.toArray(new DataColumnSpec[specs.size()]));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected DataTableSpec[] configure(final DataTableSpec[] inSpecs) throws InvalidSettingsException {
+
+		final DataTableSpec spec1 = inSpecs[0];
+		if (spec1 == null)
+			throw new InvalidSettingsException("no top table as input");
+
+		if (!SpatialUtils.hasGeometry(spec1))
+			throw new InvalidSettingsException("the top input table contains no WKT geometry");
+
+		final DataTableSpec spec2 = inSpecs[1];
+		if (spec2 == null)
+			throw new InvalidSettingsException("no bottom table as input");
+
+		if (!SpatialUtils.hasGeometry(spec2))
+			throw new InvalidSettingsException("the bottom input table contains no WKT geometry");
+
+		CoordinateReferenceSystem crs1 = SpatialUtils.decodeCRS(spec1);
+		CoordinateReferenceSystem crs2 = SpatialUtils.decodeCRS(spec2);
+		if (!crs1.equals(crs2))
+			throw new InvalidSettingsException("the two tables are not spatialized on the same Coordinate Reference Sytems; please reproject them first");
+
+		// ensure the relationship is known
+		getRelationship();
+
+		return new DataTableSpec[] { createOutputSpec(spec1, spec2) };
+	}
+
+	/**
+	 * Tests a relationship between a prepared geometry
+	 * and another geometry.
+	 */
+	private static interface IPreparedRelationComputer {
+		public boolean compute(PreparedGeometry prepared, Geometry geom);
+	}
+
+	/**
+	 * Returns the computer for the relationship "prepared relationship geom";
+	 * if inverse, returns the computer for "geom relationship prepared".
+	 *
+	 * @param relationship
+	 * @param inverse
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	protected static IPreparedRelationComputer getComputer(String relationship, boolean inverse) throws InvalidSettingsException {
+
+		if (relationship.equals("disjoint"))
+			return (prepared, geom) -> prepared.disjoint(geom);
+		else if (relationship.equals("intersects"))
+			return (prepared, geom) -> prepared.intersects(geom);
+		else if (relationship.equals("touches"))
+			return (prepared, geom) -> prepared.touches(geom);
+		else if (relationship.equals("crosses"))
+			return (prepared, geom) -> prepared.crosses(geom);
+		else if (relationship.equals("within"))
+			return inverse ?
+					(prepared, geom) -> prepared.contains(geom) :
+					(prepared, geom) -> prepared.within(geom);
+		else if (relationship.equals("contains"))
+			return inverse ?
+					(prepared, geom) -> prepared.within(geom) :
+					(prepared, geom) -> prepared.contains(geom);
+		else if (relationship.equals("overlaps"))
+			return (prepared, geom) -> prepared.overlaps(geom);
+		else if (relationship.equals("equals"))
+			return (prepared, geom) -> prepared.getGeometry().equalsTopo(geom);
+		else
+			throw new InvalidSettingsException("Unknown relationship: "+relationship);
+	}
+
+	protected String getRelationship() throws InvalidSettingsException {
+		final String relationship = m_relationship.getStringValue();
+		getComputer(relationship, false);
+		return relationship;
+	}
+
+	/**
+	 *
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected BufferedDataTable[] execute(final BufferedDataTable[] inData, final ExecutionContext exec)
+			throws Exception {
+
+		final BufferedDataTable tableLeft = inData[0];
+		final BufferedDataTable tableRight = inData[1];
+
+		final String relationship = getRelationship();
+		final boolean leftJoin = m_join.getStringValue().equals(JOIN_LEFT);
+
+		// index the smallest table, unless we have to keep every row of the left table
+		final boolean indexLeft = !leftJoin && tableLeft.size() < tableRight.size();
+		final BufferedDataTable tableIndexed = indexLeft ? tableLeft : tableRight;
+		final BufferedDataTable tableProbe = indexLeft ? tableRight : tableLeft;
+
+		// the relationship is defined as "left relationship right"; the probe is prepared
+		final IPreparedRelationComputer computer = getComputer(relationship, indexLeft);
+		final boolean disjoint = relationship.equals("disjoint");
+
+		final int numberOfCellsLeft = tableLeft.getDataTableSpec().getNumColumns();
+		final int numberOfCellsRight = tableRight.getDataTableSpec().getNumColumns();
+
+		ExecutionMonitor execIndex = exec.createSubProgress(0.1);
+		ExecutionMonitor execJoin = exec.createSubProgress(0.9);
+
+		// index the geometries
+		exec.setMessage("indexing geometries");
+		final List<Geometry> indexedGeometries = new ArrayList<>();
+		final List<DataRow> indexedRows = new ArrayList<>();
+		final STRtree index = new STRtree();
+		final double totalIndexed = tableIndexed.size();
+		SpatialUtils.applyToEachGeometry(
+				tableIndexed,
+				geomAndRow -> {
+					index.insert(geomAndRow.geometry.getEnvelopeInternal(), indexedRows.size());
+					indexedGeometries.add(geomAndRow.geometry);
+					indexedRows.add(geomAndRow.row);
+					if (indexedRows.size() % 1000 == 0) {
+						exec.checkCanceled();
+						execIndex.setProgress(indexedRows.size()/totalIndexed);
+					}
+				});
+		// build the tree now, so it is only read by the parallel threads, without lock
+		final ReadOnlySTRtree readIndex = new ReadOnlySTRtree(index);
+
+		final List<Integer> allIndices = new ArrayList<>(indexedRows.size());
+		for (int i=0; i<indexedRows.size(); i++)
+			allIndices.add(i);
+
+		final IRowAndGeometryMapper mapper = (geomAndRow, output) -> {
+
+			// a left row without geometry matches nothing, but is kept by a left join
+			if (geomAndRow.geometry == null) {
+				output.accept(joinRows(geomAndRow.row, null, numberOfCellsLeft, numberOfCellsRight));
+				return;
+			}
+			
+			final PreparedGeometry prepared = PreparedGeometryFactory.prepare(geomAndRow.geometry);
+			final Envelope envelope = geomAndRow.geometry.getEnvelopeInternal();
+
+			// candidates in the order of the indexed table;
+			// for disjoint, the candidates are all the geometries not intersecting
+			List<Integer> candidates;
+			if (disjoint) {
+				candidates = allIndices;
+			} else {
+				candidates = new ArrayList<>();
+				for (Object idx: readIndex.query(envelope))
+					candidates.add((Integer)idx);
+				Collections.sort(candidates);
+			}
+
+			boolean matched = false;
+			for (Integer idx: candidates) {
+				final Geometry other = indexedGeometries.get(idx);
+				final boolean related = disjoint && !envelope.intersects(other.getEnvelopeInternal()) ?
+						true : computer.compute(prepared, other);
+				if (!related)
+					continue;
+
+				matched = true;
+				final DataRow rowIndexed = indexedRows.get(idx);
+				output.accept(indexLeft ?
+						joinRows(rowIndexed, geomAndRow.row, numberOfCellsLeft, numberOfCellsRight) :
+						joinRows(geomAndRow.row, rowIndexed, numberOfCellsLeft, numberOfCellsRight)
+						);
+			}
+
+			if (!matched && leftJoin)
+				output.accept(joinRows(geomAndRow.row, null, numberOfCellsLeft, numberOfCellsRight));
+		};
+
+		// probe the index in parallel
+		exec.setMessage("joining");
+		BufferedDataContainer container = exec.createDataContainer(
+				createOutputSpec(tableLeft.getDataTableSpec(), tableRight.getDataTableSpec()));
+		// the keys built from the keys of the joined rows might collide;
+		// the rows arrive in order, so they are numbered as they come
+		final long[] countRows = new long[] { 0 };
+		final Consumer<DataRow> output = row -> {
+			DataCell[] cells = new DataCell[row.getNumCells()];
+			for (int i=0; i<cells.length; i++)
+				cells[i] = row.getCell(i);
+			container.addRowToTable(new DefaultRow(RowKey.createRowKey(countRows[0]++), cells));
+		};
+		if (leftJoin)
+			// the rows with a missing geometry are kept too
+			SpatialUtils.applyToEachRowParallel(
+					tableProbe,
+					output,
+					execJoin,
+					mapper
+					);
+		else
+			SpatialUtils.applyToEachGeometryParallel(
+					tableProbe,
+					output,
+					execJoin,
+					mapper
+					);
+
+		container.close();
+		BufferedDataTable out = container.getTable();
+		return new BufferedDataTable[] { out };
+	}
+
+	/**
+	 * Creates the row joining these two rows; if the right row
+	 * is null, its cells are missing. The key of the left row is kept 
+	 * until the rows are numbered in the output.
+	 */
+	private static DataRow joinRows(DataRow rowLeft, DataRow rowRight, int numberOfCellsLeft, int numberOfCellsRight) {
+
+		DataCell[] cells = new DataCell[numberOfCellsLeft+numberOfCellsRight];
+		for (int i=0; i<numberOfCellsLeft; i++)
+			cells[i] = rowLeft.getCell(i);
+		for (int i=0; i<numberOfCellsRight; i++)
+			cells[numberOfCellsLeft+i] = rowRight == null ? DataType.getMissingCell() : rowRight.getCell(i);
+
+		return new DefaultRow(rowLeft.getKey(), cells);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void saveSettingsTo(final NodeSettingsWO settings) {
+
+		m_relationship.saveSettingsTo(settings);
+		m_join.saveSettingsTo(settings);
+		m_suffix.saveSettingsTo(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_relationship.loadSettingsFrom(settings);
+		m_join.loadSettingsFrom(settings);
+		m_suffix.loadSettingsFrom(settings);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
+
+		m_relationship.validateSettings(settings);
+		m_join.validateSettings(settings);
+		m_suffix.validateSettings(settings);
+	}
+
+	@Override
+	protected void loadInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void saveInternals(File nodeInternDir, ExecutionMonitor exec)
+			throws IOException, CanceledExecutionException {
+
+		// nothing to do
+	}
+
+	@Override
+	protected void reset() {
+
+		// nothing to do
+	}
+}
+
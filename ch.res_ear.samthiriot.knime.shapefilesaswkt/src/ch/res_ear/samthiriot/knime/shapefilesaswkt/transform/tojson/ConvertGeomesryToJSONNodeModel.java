@@ -32,8 +32,18 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils.IRowAndGeometryMapper;
 
 
 /**
@@ -86,8 +96,41 @@ public class ConvertGeomesryToJSONNodeModel extends NodeModel {
 		return new DataTableSpec[] { createSpec(spec) };
 	}
 
-	long done = 0;
+	/**
+	 * Creates the function which appends to each row
+	 * its geometry as GeoJSON.
+	 * 
+	 * @param inputSpec
+	 * @return
+	 */
+	protected IRowAndGeometryMapper createMapper(DataTableSpec inputSpec) {
+		
+		final int numberOfCells = inputSpec.getNumColumns();
 
+		//final int idxGeomCol = inputSpec.findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
+		
+	    final GeometryJSON geometryJSON = new GeometryJSON();
+
+		return (geomAndRow, output) -> {
+	     																	
+			    // create the row
+				DataCell[] cells = new DataCell[numberOfCells+1];
+				int i;
+				for (i=0; i<numberOfCells; i++) {
+					cells[i] = geomAndRow.row.getCell(i);
+				}
+				
+				cells[i] = StringCellFactory.create(geometryJSON.toString(geomAndRow.geometry));
+						
+				DataRow row = new DefaultRow(
+		    		  geomAndRow.row.getKey(), 
+		    		  cells
+		    		  );
+				output.accept(row);
+		
+			};
+	}
+	
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -104,41 +147,12 @@ public class ConvertGeomesryToJSONNodeModel extends NodeModel {
 		DataTableSpec outputSpec = createSpec(inputTable.getDataTableSpec());
 		BufferedDataContainer container = exec.createDataContainer(outputSpec);
 
-		final double total = inputTable.size();
-				
-		final int numberOfCells = inputTable.getDataTableSpec().getNumColumns();
-
-		//final int idxGeomCol = inputTable.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
-		
-	    final GeometryJSON geometryJSON = new GeometryJSON();
-
 		// iterate each geometry of each row
-		done = 0;
-		SpatialUtils.applyToEachGeometry(
+		SpatialUtils.applyToEachGeometryParallel(
 				inputTable, 
-				geomAndRow -> {
-		     																	
-				    // create the row
-					DataCell[] cells = new DataCell[numberOfCells+1];
-					int i;
-					for (i=0; i<numberOfCells; i++) {
-						cells[i] = geomAndRow.row.getCell(i);
-					}
-					
-					cells[i] = StringCellFactory.create(geometryJSON.toString(geomAndRow.geometry));
-							
-					DataRow row = new DefaultRow(
-			    		  geomAndRow.row.getKey(), 
-			    		  cells
-			    		  );
-					container.addRowToTable(row);
-					  
-					if (done++ % 100 == 0) {
-						exec.checkCanceled();
-						exec.setProgress(done/total, "computing centroid of row "+done);
-					}
-			
-				}
+				container::addRowToTable, 
+				exec, 
+				createMapper(inputTable.getDataTableSpec())
 				);
 
 		container.close();
@@ -147,6 +161,46 @@ public class ConvertGeomesryToJSONNodeModel extends NodeModel {
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public InputPortRole[] getInputPortRoles() {
+		return new InputPortRole[] { InputPortRole.DISTRIBUTED_STREAMABLE };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputPortRole[] getOutputPortRoles() {
+		return new OutputPortRole[] { OutputPortRole.DISTRIBUTED };
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public StreamableOperator createStreamableOperator(
+			final PartitionInfo partitionInfo, 
+			final PortObjectSpec[] inSpecs) throws InvalidSettingsException {
+		
+		final IRowAndGeometryMapper mapper = createMapper((DataTableSpec)inSpecs[0]);
+		
+		return new StreamableOperator() {
+			
+			@Override
+			public void runFinal(PortInput[] inputs, PortOutput[] outputs, ExecutionContext exec) throws Exception {
+				
+				SpatialUtils.applyToEachGeometry(
+						(RowInput)inputs[0], 
+						(RowOutput)outputs[0], 
+						exec, 
+						mapper);
+			}
+		};
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
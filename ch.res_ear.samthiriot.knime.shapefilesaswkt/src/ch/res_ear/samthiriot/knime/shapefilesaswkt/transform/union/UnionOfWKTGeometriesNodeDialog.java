@@ -10,7 +10,14 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.union;
 
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentColumnFilter;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelFilterString;
 
 /**
  * This is an example implementation of the node dialog of the
@@ -32,7 +39,48 @@ public class UnionOfWKTGeometriesNodeDialog extends DefaultNodeSettingsPane {
 	 */
     protected UnionOfWKTGeometriesNodeDialog() {
         super();
-      
+        
+        SettingsModelBoolean m_dissolve = new SettingsModelBoolean("dissolve", false);
+        SettingsModelFilterString m_groupColumns = new SettingsModelFilterString("group_columns");
+        SettingsModelBoolean m_aggregateCount = new SettingsModelBoolean("aggregate_count", true);
+        SettingsModelBoolean m_aggregateSum = new SettingsModelBoolean("aggregate_sum", false);
+
+        addDialogComponent(new DialogComponentBoolean(
+        		m_dissolve, 
+        		"dissolve: one union per group"
+        		));
+        
+        createNewGroup("Groups");
+        addDialogComponent(new DialogComponentColumnFilter(
+        		m_groupColumns, 
+        		0, 
+        		false
+        		));
+        closeCurrentGroup();
+        
+        createNewGroup("Aggregates");
+        addDialogComponent(new DialogComponentBoolean(
+        		m_aggregateCount, 
+        		"count rows"
+        		));
+        addDialogComponent(new DialogComponentBoolean(
+        		m_aggregateSum, 
+        		"sum numeric columns"
+        		));
+        closeCurrentGroup();
+        
+        m_dissolve.addChangeListener(new ChangeListener() {
+			
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				m_groupColumns.setEnabled(m_dissolve.getBooleanValue());
+				m_aggregateCount.setEnabled(m_dissolve.getBooleanValue());
+				m_aggregateSum.setEnabled(m_dissolve.getBooleanValue());
+			}
+		});
+        m_groupColumns.setEnabled(false);
+        m_aggregateCount.setEnabled(false);
+        m_aggregateSum.setEnabled(false);
     }
 }
 
@@ -13,21 +13,31 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.transform.union;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.geotools.referencing.ReferencingFactoryFinder;
+import org.knime.core.data.DataCell;
 import org.knime.core.data.DataColumnProperties;
 import org.knime.core.data.DataColumnSpec;
 import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.MissingCell;
 import org.knime.core.data.RowKey;
 import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.DoubleCell.DoubleCellFactory;
 import org.knime.core.data.def.IntCell;
 import org.knime.core.data.def.IntCell.IntCellFactory;
-import org.knime.core.data.def.StringCell;
-import org.knime.core.data.def.StringCell.StringCellFactory;
+import org.knime.core.data.def.LongCell;
+import org.knime.core.data.def.LongCell.LongCellFactory;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
@@ -37,6 +47,8 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelFilterString;
 import org.locationtech.jts.geom.Geometry;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -55,6 +67,19 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
  */
 public class UnionOfWKTGeometriesNodeModel extends NodeModel {
     
+	public static final String COLUMN_COUNT = "count";
+
+	/**
+	 * If true, one union is computed for each group of rows
+	 */
+	private final SettingsModelBoolean m_dissolve = new SettingsModelBoolean("dissolve", false);
+	
+	private final SettingsModelFilterString m_groupColumns = new SettingsModelFilterString("group_columns");
+	
+	private final SettingsModelBoolean m_aggregateCount = new SettingsModelBoolean("aggregate_count", true);
+
+	private final SettingsModelBoolean m_aggregateSum = new SettingsModelBoolean("aggregate_sum", false);
+
 	/**
 	 * Constructor for the node model.
 	 */
@@ -62,16 +87,14 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 		super(1, 1);
 	}
 
-
 	/**
-	 * Creates the output table spec from the input spec. For each double column in
-	 * the input, one String column will be created containing the formatted double
-	 * value as String.
+	 * Creates the spec of the geometry column, 
+	 * with the same CRS and encoding as the input.
 	 * 
 	 * @param inputTableSpec
 	 * @return
 	 */
-	private DataTableSpec createOutputSpec(DataTableSpec inputTableSpec) {
+	private DataColumnSpec createGeometrySpec(DataTableSpec inputTableSpec) {
 		
 		CoordinateReferenceSystem crs = SpatialUtils.decodeCRS(inputTableSpec);
 		
@@ -81,17 +104,109 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 		
     	DataColumnSpecCreator creator = new DataColumnSpecCreator(
     			SpatialUtils.GEOMETRY_COLUMN_NAME, 
-    			StringCell.TYPE
+    			SpatialUtils.getGeometryCellType(SpatialUtils.hasBinaryGeometry(inputTableSpec))
     			);
     	creator.setProperties(new DataColumnProperties(properties));
     	
-		List<DataColumnSpec> newColumnSpecs = new ArrayList<>(2);
+    	return creator.createSpec();
+	}
+
+	/**
+	 * Returns the indices of the grouping columns.
+	 * 
+	 * @param inputTableSpec
+	 * @return
+	 * @throws InvalidSettingsException
+	 */
+	private int[] getGroupColumnIndices(DataTableSpec inputTableSpec) throws InvalidSettingsException {
 		
-		newColumnSpecs.add( creator.createSpec() );
-		newColumnSpecs.add( new DataColumnSpecCreator(
-    			"id", 
-    			IntCell.TYPE).createSpec()
-    			);
+		List<String> names = m_groupColumns.getIncludeList();
+		int[] indices = new int[names.size()];
+		for (int i=0; i<indices.length; i++) {
+			final String name = names.get(i);
+			if (name.equals(SpatialUtils.GEOMETRY_COLUMN_NAME))
+				throw new InvalidSettingsException("cannot group by the geometry column");
+			indices[i] = inputTableSpec.findColumnIndex(name);
+			if (indices[i] < 0)
+				throw new InvalidSettingsException("there is no column named "+name+" in the input table");
+		}
+		return indices;
+	}
+	
+	/**
+	 * Returns the indices of the numeric columns to sum, 
+	 * that is the numeric columns which are not used for grouping.
+	 * 
+	 * @param inputTableSpec
+	 * @param groupIndices
+	 * @return
+	 */
+	private int[] getSumColumnIndices(DataTableSpec inputTableSpec, int[] groupIndices) {
+		
+		if (!m_aggregateSum.getBooleanValue())
+			return new int[0];
+		
+		Set<Integer> groups = Arrays.stream(groupIndices).boxed().collect(Collectors.toSet());
+		
+		return IntStream.range(0, inputTableSpec.getNumColumns())
+				.filter(i -> !groups.contains(i))
+				.filter(i -> inputTableSpec.getColumnSpec(i).getType().isCompatible(DoubleValue.class))
+				.toArray();
+	}
+	
+	/**
+	 * Returns this name, or a variant of it if a column already has this name.
+	 * 
+	 * @param columnSpecs
+	 * @param name
+	 * @return
+	 */
+	private static String getUniqueColumnName(List<DataColumnSpec> columnSpecs, String name) {
+		return DataTableSpec.getUniqueColumnName(
+				new DataTableSpec(columnSpecs.toArray(new DataColumnSpec[columnSpecs.size()])), 
+				name);
+	}
+	
+	/**
+	 * Creates the output table spec from the input spec: 
+	 * either the geometry and an id, or when dissolving 
+	 * the grouping columns, the geometry and the aggregates.
+	 * 
+	 * @param inputTableSpec
+	 * @return
+	 * @throws InvalidSettingsException 
+	 */
+	private DataTableSpec createOutputSpec(DataTableSpec inputTableSpec) throws InvalidSettingsException {
+		
+		List<DataColumnSpec> newColumnSpecs = new ArrayList<>();
+		
+		if (!m_dissolve.getBooleanValue()) {
+			newColumnSpecs.add( createGeometrySpec(inputTableSpec) );
+			newColumnSpecs.add( new DataColumnSpecCreator(
+	    			"id", 
+	    			IntCell.TYPE).createSpec()
+	    			);
+		} else {
+			
+			final int[] groupIndices = getGroupColumnIndices(inputTableSpec);
+			for (int idx: groupIndices)
+				newColumnSpecs.add(inputTableSpec.getColumnSpec(idx));
+			
+			newColumnSpecs.add( createGeometrySpec(inputTableSpec) );
+
+			// the names of the aggregates might already be used by the grouping columns
+			if (m_aggregateCount.getBooleanValue())
+				newColumnSpecs.add( new DataColumnSpecCreator(
+						getUniqueColumnName(newColumnSpecs, COLUMN_COUNT), 
+		    			LongCell.TYPE).createSpec()
+		    			);
+			
+			for (int idx: getSumColumnIndices(inputTableSpec, groupIndices))
+				newColumnSpecs.add( new DataColumnSpecCreator(
+						getUniqueColumnName(newColumnSpecs, "sum("+inputTableSpec.getColumnSpec(idx).getName()+")"), 
+		    			DoubleCell.TYPE).createSpec()
+		    			);
+		}
 		
 		return new DataTableSpec(
 					newColumnSpecs.toArray(
@@ -114,9 +229,22 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 		return new DataTableSpec[] { createOutputSpec(spec) };
 	}
 
-	long done = 0;
-	Geometry merged = null;
-
+	/**
+	 * The rows sharing the same values for the grouping columns.
+	 */
+	private static class Group {
+		
+		final List<DataCell> key;
+		final List<Geometry> geometries = new ArrayList<>();
+		long count = 0;
+		final double[] sums;
+		
+		Group(List<DataCell> key, int countSums) {
+			this.key = key;
+			this.sums = new double[countSums];
+		}
+	}
+	
 	/**
 	 * 
 	 * {@inheritDoc}
@@ -129,27 +257,36 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 			throw new RuntimeException("No factory for autority AUTO");
 		
 		BufferedDataTable inputTable = inData[0];
+		
+		if (m_dissolve.getBooleanValue())
+			return new BufferedDataTable[] { dissolve(inputTable, exec) };
+		
+		final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputTable.getDataTableSpec());
 
     	exec.checkCanceled();
 	
+		ExecutionMonitor execRead = exec.createSubProgress(0.1);
+		ExecutionMonitor execUnion = exec.createSubProgress(0.9);
+
 		final double total = inputTable.size();
-		merged = null;
+		final List<Geometry> geometries = new ArrayList<>((int)Math.min(Integer.MAX_VALUE, inputTable.size()));
 	    
 		// iterate each geometry of each row
-    	exec.setMessage("computing the union");
+    	exec.setMessage("reading geometries");
     	SpatialUtils.applyToEachGeometry(
 				inputTable, 
 				geomAndRow -> {
-					if (done++ % 10 == 0) {
+					geometries.add(geomAndRow.geometry);
+					if (geometries.size() % 1000 == 0) {
 						exec.checkCanceled();
-						exec.setProgress(done/total);
+						execRead.setProgress(geometries.size()/total);
 					}
-					if (merged == null)
-						merged = geomAndRow.geometry;
-					else 
-						merged = merged.union(geomAndRow.geometry);
 				});
 
+    	// merge them as a tree in parallel
+    	exec.setMessage("computing the union");
+    	final Geometry merged = SpatialUtils.unionParallel(geometries, execUnion);
+
     	// add the union
 		// add one unique line with the result
 
@@ -158,7 +295,7 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
     	
 		container.addRowToTable(new DefaultRow(
 				new RowKey("union"), 
-				StringCellFactory.create(merged.toString()),
+				merged == null ? new MissingCell("no geometry") : SpatialUtils.createGeometryCell(merged, binaryGeometry),
 				IntCellFactory.create(0)
 				));
     	
@@ -167,6 +304,84 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 		return new BufferedDataTable[] { out };
 	}
 
+	/**
+	 * Computes one union per group of rows sharing the same values 
+	 * for the grouping columns, and returns one row per group
+	 * in the order the groups first appear in the input.
+	 * 
+	 * @param inputTable
+	 * @param exec
+	 * @return
+	 * @throws Exception
+	 */
+	private BufferedDataTable dissolve(BufferedDataTable inputTable, ExecutionContext exec) throws Exception {
+
+		final DataTableSpec inputSpec = inputTable.getDataTableSpec();
+		final boolean binaryGeometry = SpatialUtils.hasBinaryGeometry(inputSpec);
+		final int[] groupIndices = getGroupColumnIndices(inputSpec);
+		final int[] sumIndices = getSumColumnIndices(inputSpec, groupIndices);
+		final boolean addCount = m_aggregateCount.getBooleanValue();
+		
+		ExecutionMonitor execRead = exec.createSubProgress(0.1);
+		ExecutionMonitor execUnion = exec.createSubProgress(0.9);
+
+		final double total = inputTable.size();
+		final Map<List<DataCell>,Group> key2group = new LinkedHashMap<>();
+		final long[] done = new long[] { 0 };
+		
+		// dispatch the geometries in their groups
+    	exec.setMessage("grouping geometries");
+    	SpatialUtils.applyToEachGeometry(
+				inputTable, 
+				geomAndRow -> {
+					
+					List<DataCell> key = new ArrayList<>(groupIndices.length);
+					for (int idx: groupIndices)
+						key.add(geomAndRow.row.getCell(idx));
+					
+					Group group = key2group.computeIfAbsent(key, k -> new Group(k, sumIndices.length));
+					group.geometries.add(geomAndRow.geometry);
+					group.count++;
+					for (int i=0; i<sumIndices.length; i++) {
+						final DataCell cell = geomAndRow.row.getCell(sumIndices[i]);
+						if (!cell.isMissing())
+							group.sums[i] += ((DoubleValue)cell).getDoubleValue();
+					}
+					
+					if (++done[0] % 1000 == 0) {
+						exec.checkCanceled();
+						execRead.setProgress(done[0]/total);
+					}
+				});
+    	
+    	// merge each group in parallel
+    	exec.setMessage("computing the union of "+key2group.size()+" groups");
+    	List<Group> groups = new ArrayList<>(key2group.values());
+    	List<Geometry> merged = SpatialUtils.unionGroupsParallel(
+    			groups.stream().map(g -> g.geometries).collect(Collectors.toList()), 
+    			execUnion
+    			);
+
+		BufferedDataContainer container = exec.createDataContainer(createOutputSpec(inputSpec));
+    	for (int g=0; g<groups.size(); g++) {
+    		
+    		final Group group = groups.get(g);
+    		List<DataCell> cells = new ArrayList<>(group.key);
+    		cells.add(SpatialUtils.createGeometryCell(merged.get(g), binaryGeometry));
+    		if (addCount)
+    			cells.add(LongCellFactory.create(group.count));
+    		for (double sum: group.sums)
+    			cells.add(DoubleCellFactory.create(sum));
+    		
+    		container.addRowToTable(new DefaultRow(
+    				RowKey.createRowKey((long)g), 
+    				cells
+    				));
+    	}
+    	
+		container.close();
+		return container.getTable();
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -174,7 +389,10 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 	@Override
 	protected void saveSettingsTo(final NodeSettingsWO settings) {
 		
-		// nothing to do
+		m_dissolve.saveSettingsTo(settings);
+		m_groupColumns.saveSettingsTo(settings);
+		m_aggregateCount.saveSettingsTo(settings);
+		m_aggregateSum.saveSettingsTo(settings);
 	}
 
 	/**
@@ -183,7 +401,15 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 	@Override
 	protected void loadValidatedSettingsFrom(final NodeSettingsRO settings) throws InvalidSettingsException {
 	
-		// nothing to do
+		// workflows created before the dissolve mode have no settings
+		if (!settings.containsKey(m_dissolve.getKey())) {
+			m_dissolve.setBooleanValue(false);
+			return;
+		}
+		m_dissolve.loadSettingsFrom(settings);
+		m_groupColumns.loadSettingsFrom(settings);
+		m_aggregateCount.loadSettingsFrom(settings);
+		m_aggregateSum.loadSettingsFrom(settings);
 	}
 
 	/**
@@ -192,7 +418,12 @@ public class UnionOfWKTGeometriesNodeModel extends NodeModel {
 	@Override
 	protected void validateSettings(final NodeSettingsRO settings) throws InvalidSettingsException {
 		
-		// nothing to do
+		if (!settings.containsKey(m_dissolve.getKey()))
+			return;
+		m_dissolve.validateSettings(settings);
+		m_groupColumns.validateSettings(settings);
+		m_aggregateCount.validateSettings(settings);
+		m_aggregateSum.validateSettings(settings);
 	}
 
 	@Override
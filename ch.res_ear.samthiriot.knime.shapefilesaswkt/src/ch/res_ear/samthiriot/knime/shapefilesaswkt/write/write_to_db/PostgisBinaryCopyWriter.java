@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.data.GeometryValue;
+
+/**
+ * Streams KNIME rows into a PostGIS table with a binary COPY,
+ * which is much faster than inserting features one by one.
+ * The geometry is sent as EWKB, the attributes in the binary
+ * representation of the types of the columns created by GeoTools
+ * (int4, int8, float8, bool and varchar).
+ *
+ * @see https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4
+ * @author Samuel Thiriot
+ */
+public class PostgisBinaryCopyWriter {
+
+	private static final byte[] SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0xff, '\r', '\n', 0 };
+
+	/**
+	 * Flag of the EWKB type announcing a SRID after the type
+	 */
+	private static final int EWKB_SRID_FLAG = 0x20000000;
+
+	private final PGCopyOutputStream copy;
+	private final DataOutputStream out;
+
+	private final int srid;
+	private final int idxColGeom;
+	private final List<DataTableToGeotoolsMapper> mappers;
+
+	private final WKTReader wktReader = new WKTReader();
+	/**
+	 * Writers of EWKB; the Z is only written for geometries having a Z, 
+	 * so 2D geometries fit the 2D columns created by GeoTools
+	 */
+	private final WKBWriter wkbWriter2D = new WKBWriter(2, ByteOrderValues.BIG_ENDIAN, true);
+	private final WKBWriter wkbWriter3D = new WKBWriter(3, ByteOrderValues.BIG_ENDIAN, true);
+
+	/**
+	 * Starts the copy.
+	 *
+	 * @param connection the connection to use, which is busy until the end of the copy
+	 * @param table the quoted name of the table, with its schema
+	 * @param columns the quoted names of the columns, the geometry first, then the ones of the mappers
+	 * @param srid the SRID of the geometry column
+	 * @param idxColGeom the index of the geometry in the KNIME rows
+	 * @param mappers the mappers of the other KNIME columns, in order
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public PostgisBinaryCopyWriter(
+			PGConnection connection,
+			String table,
+			List<String> columns,
+			int srid,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers) throws SQLException, IOException {
+
+		this.srid = srid;
+		this.idxColGeom = idxColGeom;
+		this.mappers = mappers;
+
+		this.copy = new PGCopyOutputStream(
+				connection,
+				"COPY "+table+" ("+String.join(",", columns)+") FROM STDIN (FORMAT BINARY)",
+				1 << 16);
+		this.out = new DataOutputStream(new BufferedOutputStream(copy, 1 << 16));
+
+		// header: signature, flags, length of the header extension
+		out.write(SIGNATURE);
+		out.writeInt(0);
+		out.writeInt(0);
+	}
+
+	/**
+	 * Quotes an identifier for SQL
+	 */
+	public static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Writes one row. Rows without geometry are skipped.
+	 *
+	 * @return true if the row was written
+	 */
+	public boolean write(DataRow row) throws IOException {
+
+		final DataCell cellGeom = row.getCell(idxColGeom);
+		if (cellGeom.isMissing())
+			return false;
+
+		out.writeShort(1 + mappers.size());
+
+		final byte[] ewkb = toEWKB(cellGeom);
+		out.writeInt(ewkb.length);
+		out.write(ewkb);
+
+		int colId = 0;
+		for (int i=0; i<row.getNumCells(); i++) {
+			if (i == idxColGeom)
+				continue;
+			writeValue(mappers.get(colId++).getValue(row.getCell(i)));
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes the geometry as EWKB. The WKB of geometry cells is reused as is,
+	 * only the SRID is inserted after the type of the geometry.
+	 */
+	protected byte[] toEWKB(DataCell cell) throws IOException {
+
+		if (cell instanceof GeometryValue) {
+			final byte[] wkb = ((GeometryValue)cell).getWKB();
+			// the first byte of WKB is 0 for big endian, 1 for little endian
+			final int order = wkb[0] == 0 ? ByteOrderValues.BIG_ENDIAN : ByteOrderValues.LITTLE_ENDIAN;
+			final byte[] buf = new byte[4];
+			System.arraycopy(wkb, 1, buf, 0, 4);
+			final int type = ByteOrderValues.getInt(buf, order);
+
+			final byte[] ewkb = new byte[wkb.length + 4];
+			ewkb[0] = wkb[0];
+			ByteOrderValues.putInt(type | EWKB_SRID_FLAG, buf, order);
+			System.arraycopy(buf, 0, ewkb, 1, 4);
+			ByteOrderValues.putInt(srid, buf, order);
+			System.arraycopy(buf, 0, ewkb, 5, 4);
+			System.arraycopy(wkb, 5, ewkb, 9, wkb.length - 5);
+			return ewkb;
+		}
+
+		try {
+			Geometry geom = wktReader.read(cell.toString());
+			geom.setSRID(srid);
+			return (SpatialUtils.hasZ(geom) ? wkbWriter3D : wkbWriter2D).write(geom);
+		} catch (ParseException e) {
+			e.printStackTrace();
+			throw new IOException("unable to decode the geometry "+cell+": "+e.getMessage(), e);
+		}
+	}
+
+	protected void writeValue(Object value) throws IOException {
+
+		if (value == null) {
+			out.writeInt(-1);
+		} else if (value instanceof Integer) {
+			out.writeInt(4);
+			out.writeInt((Integer)value);
+		} else if (value instanceof Long) {
+			out.writeInt(8);
+			out.writeLong((Long)value);
+		} else if (value instanceof Double) {
+			out.writeInt(8);
+			out.writeDouble((Double)value);
+		} else if (value instanceof Boolean) {
+			out.writeInt(1);
+			out.writeByte((Boolean)value ? 1 : 0);
+		} else {
+			final byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Ends the copy, which is then committed by the database.
+	 *
+	 * @return the count of rows copied
+	 */
+	public long finish() throws IOException, SQLException {
+
+		// trailer
+		out.writeShort(-1);
+		out.flush();
+		return copy.endCopy();
+	}
+
+	/**
+	 * Cancels the copy; nothing is written into the table.
+	 * @throws SQLException if the copy could not be cancelled
+	 */
+	public void cancel() throws SQLException {
+
+		if (copy.isActive())
+			copy.cancelCopy();
+	}
+
+}
@@ -15,8 +15,10 @@ import java.util.Arrays;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.knime.core.data.DataValue;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
 import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
+import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentPasswordField;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
@@ -106,6 +108,54 @@ public class WriteWKTIntoDBNodeDialog extends DefaultNodeSettingsPane {
         		"check the results after writing"
         		));
         
+        createNewGroup("Loading");
+        
+        addDialogComponent(new DialogComponentStringSelection(
+        		new SettingsModelString("write mode", WriteWKTIntoDBNodeModel.MODE_APPEND),
+        		"existing entities",
+        		WriteWKTIntoDBNodeModel.MODES
+        		));
+        
+        addDialogComponent(new DialogComponentColumnNameSelection(
+        		new SettingsModelString("key column", ""),
+        		"key column (for updates)",
+        		0,
+        		false,
+        		DataValue.class
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("commit interval", 0, 0, Integer.MAX_VALUE),
+        		"commit every (entities per writer, 0 to commit at the end)",
+        		10000
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("writers", 1, 1, 16),
+        		"parallel writers",
+        		1
+        		));
+        
+        DialogComponentBoolean indexComponent = new DialogComponentBoolean(
+        		new SettingsModelBoolean("index after load", false),
+        		"create the spatial index and analyze after loading (PostGIS)"
+        		);
+        this.addDialogComponent(indexComponent);
+        
+        createNewGroup("Bulk loading (PostGIS)");
+        
+        DialogComponentBoolean bulkCopyComponent = new DialogComponentBoolean(
+        		new SettingsModelBoolean("bulk copy", false),
+        		"load with a binary COPY"
+        		);
+        this.addDialogComponent(bulkCopyComponent);
+        
+        DialogComponentBoolean stagingComponent = new DialogComponentBoolean(
+        		new SettingsModelBoolean("staging table", false),
+        		"copy through an unlogged staging table"
+        		);
+        this.addDialogComponent(stagingComponent);
+        
         ms.addChangeListener(new ChangeListener() {
 			
 			@Override
@@ -124,6 +174,15 @@ public class WriteWKTIntoDBNodeDialog extends DefaultNodeSettingsPane {
 				passwordComponent.getModel().setEnabled(
 						type.equals("postgis") || type.equals("mysql"));
 				
+				bulkCopyComponent.getModel().setEnabled(
+						type.equals("postgis"));
+				
+				stagingComponent.getModel().setEnabled(
+						type.equals("postgis"));
+				
+				indexComponent.getModel().setEnabled(
+						type.equals("postgis"));
+				
 				/*layerComponent.getModel().setEnabled(
 						type.equals("postgis")  || type.equals("mysql"))
 						);*/
@@ -12,26 +12,43 @@ package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_db;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.jdbc.JDBCDataStore;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
@@ -44,6 +61,7 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelPassword;
@@ -54,9 +72,14 @@ import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Expression;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.postgresql.PGConnection;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper.GeotoolTargetType;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.NodeWarningWriter;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
 
@@ -70,6 +93,11 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
 public class WriteWKTIntoDBNodeModel extends NodeModel {
     
 	final static String ENCRYPTION_KEY = "KnimeWKT";
+	
+	public final static String MODE_APPEND = "append to the existing entities";
+	public final static String MODE_REPLACE = "replace the existing entities";
+	public final static String MODE_UPSERT = "update the entities having the same key, insert the others";
+	public final static List<String> MODES = Arrays.asList(MODE_APPEND, MODE_REPLACE, MODE_UPSERT);
 
 	protected SettingsModelString m_dbtype = new SettingsModelString("dbtype", "postgis");
 	protected SettingsModelString m_host = new SettingsModelString("host", "127.0.0.1");
@@ -80,11 +108,60 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
 	protected SettingsModelString m_password = new SettingsModelPassword("password", ENCRYPTION_KEY, "postgres");
 	protected SettingsModelString m_layer = new SettingsModelString("layer", "my_geometries");
     protected SettingsModelBoolean m_checkWritten = new SettingsModelBoolean("check_written", true);
+    
+    /**
+     * For PostGIS, loads the entities with a binary COPY instead of INSERTs
+     */
+    protected SettingsModelBoolean m_bulkCopy = new SettingsModelBoolean("bulk copy", false);
+    
+    /**
+     * For the bulk copy, copies first into an unlogged staging table, 
+     * then moves the entities into the layer in one transaction
+     */
+    protected SettingsModelBoolean m_stagingTable = new SettingsModelBoolean("staging table", false);
+    
+    /**
+     * How to deal with the entities already in the layer
+     */
+    protected SettingsModelString m_mode = new SettingsModelString("write mode", MODE_APPEND);
+    
+    /**
+     * Column identifying the entities to update in the upsert mode
+     */
+    protected SettingsModelString m_keyColumn = new SettingsModelString("key column", "");
+    
+    /**
+     * Count of entities written by each writer between two commits; 0 to commit once at the end
+     */
+    protected SettingsModelIntegerBounded m_commitInterval = new SettingsModelIntegerBounded("commit interval", 0, 0, Integer.MAX_VALUE);
+    
+    /**
+     * Count of writers working in parallel, each on its own connection
+     */
+    protected SettingsModelIntegerBounded m_writers = new SettingsModelIntegerBounded("writers", 1, 1, 16);
+    
+    /**
+     * For PostGIS, drops the spatial index before loading, then creates it and analyzes the table 
+     */
+    protected SettingsModelBoolean m_indexAfterLoad = new SettingsModelBoolean("index after load", false);
 
     /**
      * Count of entities to write at once
      */
     final static int BUFFER = 5000;
+    
+    /**
+     * Types of the PostgreSQL columns which can be loaded in binary by the bulk copy
+     */
+    final static Map<GeotoolTargetType,List<String>> COPY_TYPES = new HashMap<>();
+    static {
+    	COPY_TYPES.put(GeotoolTargetType.Integer, Arrays.asList("int4"));
+    	COPY_TYPES.put(GeotoolTargetType.Long, Arrays.asList("int8"));
+    	COPY_TYPES.put(GeotoolTargetType.Double, Arrays.asList("float8"));
+    	COPY_TYPES.put(GeotoolTargetType.Boolean, Arrays.asList("bool"));
+    	COPY_TYPES.put(GeotoolTargetType.String, Arrays.asList("varchar", "text", "bpchar"));
+    	COPY_TYPES.put(GeotoolTargetType.Ignore, Arrays.asList("varchar", "text", "bpchar"));
+    }
 	
 	
 
@@ -108,6 +185,8 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
         params.put("database", 	m_database.getStringValue());
         params.put("user", 		m_user.getStringValue());
         params.put("passwd", 	m_password.getStringValue());
+        // each writer holds its own connection
+        params.put("max connections", Math.max(10, m_writers.getIntValue() + 2));
 
         //params.put(PostgisDataStoreFactory.LOOSEBBOX, true );
         //params.put(PostgisDataStoreFactory.PREPARED_STATEMENTS, true );
@@ -159,9 +238,607 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
 		if (!SpatialUtils.hasGeometry(inSpecs[0]))
 			throw new InvalidSettingsException("the input table contains no WKT geometry");
 		
+		if (MODE_UPSERT.equals(m_mode.getStringValue())) {
+			final String key = m_keyColumn.getStringValue();
+			if (key == null || key.trim().isEmpty())
+				throw new InvalidSettingsException("please select the key column used to update the existing entities");
+			if (!inSpecs[0].containsName(key))
+				throw new InvalidSettingsException("the key column "+key+" is not part of the input table");
+		}
+		
 		return new DataTableSpec[] {};
 	}
 
+	/**
+	 * Returns true if the entities should be loaded with a binary COPY
+	 */
+	protected boolean isBulkCopy(DataStore datastore) {
+		
+		if (!m_bulkCopy.getBooleanValue())
+			return false;
+		if (!isPostgis(datastore)) {
+			getLogger().warn("the bulk copy is only available for PostGIS; the entities will be inserted one by one");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if the datastore is PostGIS, and gives access to its connections
+	 */
+	protected boolean isPostgis(DataStore datastore) {
+		return "postgis".equals(m_dbtype.getStringValue()) && datastore instanceof JDBCDataStore;
+	}
+	
+	protected String getDatabaseSchema(JDBCDataStore datastore) {
+		return datastore.getDatabaseSchema() == null ? "public" : datastore.getDatabaseSchema();
+	}
+	
+	/**
+	 * Counts the entities of a layer; JDBC datastores run a COUNT(*) in the database.
+	 */
+	protected long count(SimpleFeatureSource source) throws IOException {
+		
+		long count = source.getCount(Query.ALL);
+		if (count < 0)
+			// the datastore cannot count cheaply
+			count = source.getFeatures().size();
+		return count;
+	}
+	
+	/**
+	 * Ensures the count of entities in the layer after writing is consistent
+	 * with the count before and the count of entities written.
+	 * Updates are not checked, as the count of entities replaced is unknown.
+	 */
+	protected void checkCount(String mode, long countBefore, long written, long countAfter) {
+		
+		final long expected;
+		if (MODE_REPLACE.equals(mode))
+			expected = written;
+		else if (MODE_APPEND.equals(mode))
+			expected = countBefore + written;
+		else
+			return;
+		
+		if (countAfter < expected)
+			throw new RuntimeException(
+					"we did not wrote the expected count of entities: there were "+
+							written+" entities to write, but the layer only contains "+countAfter+
+							" features instead of at least "+expected);
+	}
+	
+	/**
+	 * Drops the GiST indexes of the table, so they are not maintained during the loading.
+	 * The indexes are dropped in one transaction.
+	 * 
+	 * @return the definitions of the indexes dropped, to create them again after the loading
+	 */
+	protected List<String> dropSpatialIndexes(JDBCDataStore datastore, String layerName) throws IOException {
+		
+		final String schema = getDatabaseSchema(datastore);
+		
+		Connection connection = datastore.getConnection(Transaction.AUTO_COMMIT);
+		PreparedStatement st = null;
+		Statement drop = null;
+		try {
+			st = connection.prepareStatement(
+					"SELECT indexname, indexdef FROM pg_indexes WHERE schemaname = ? AND tablename = ? AND indexdef ILIKE '%USING gist%'");
+			st.setString(1, schema);
+			st.setString(2, layerName);
+			List<String> names = new ArrayList<>();
+			List<String> definitions = new ArrayList<>();
+			ResultSet rs = st.executeQuery();
+			try {
+				while (rs.next()) {
+					names.add(rs.getString(1));
+					definitions.add(rs.getString(2));
+				}
+			} finally {
+				rs.close();
+			}
+			
+			drop = connection.createStatement();
+			connection.setAutoCommit(false);
+			try {
+				for (String name: names) {
+					getLogger().info("dropping the spatial index "+name+" during the loading");
+					drop.execute("DROP INDEX "+PostgisBinaryCopyWriter.quote(schema)+"."+PostgisBinaryCopyWriter.quote(name));
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+			return definitions;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			throw new IOException("unable to remove the spatial index of "+layerName+": "+e.getMessage(), e);
+		} finally {
+			datastore.closeSafe(st);
+			datastore.closeSafe(drop);
+			datastore.closeSafe(connection);
+		}
+	}
+	
+	/**
+	 * Creates again the spatial indexes dropped before the loading, each in one pass, 
+	 * then updates the statistics of the table for the query planner.
+	 * 
+	 * @param definitions the definitions of the indexes, as returned by dropSpatialIndexes
+	 */
+	protected void restoreSpatialIndexesAndAnalyze(
+			JDBCDataStore datastore, String layerName, 
+			List<String> definitions) throws IOException {
+		
+		final String schema = getDatabaseSchema(datastore);
+		final String target = PostgisBinaryCopyWriter.quote(schema)+"."+PostgisBinaryCopyWriter.quote(layerName);
+		
+		Connection connection = datastore.getConnection(Transaction.AUTO_COMMIT);
+		Statement st = null;
+		try {
+			st = connection.createStatement();
+			for (String definition: definitions)
+				st.execute(definition);
+			st.execute("ANALYZE "+target);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			throw new IOException("unable to create again the spatial indexes of "+layerName+" ("+
+					String.join("; ", definitions)+"): "+e.getMessage(), e);
+		} finally {
+			datastore.closeSafe(st);
+			datastore.closeSafe(connection);
+		}
+	}
+	
+	/**
+	 * Writes the batches of features it receives into the layer,
+	 * in its own transaction, hence on its own connection.
+	 * The transaction is committed every commit interval, and at the end. 
+	 */
+	protected static class FeatureWriter implements Callable<Long> {
+		
+		/**
+		 * Batch marking the end of the data
+		 */
+		static final List<SimpleFeature> END = Collections.emptyList();
+		
+		final BlockingQueue<List<SimpleFeature>> queue = new ArrayBlockingQueue<>(2);
+		
+		private final DataStore datastore;
+		private final String layerName;
+		private final SimpleFeatureType type;
+		private final String keyColumn;
+		private final int commitInterval;
+		private final boolean removeAll;
+		
+		private final FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+
+		/**
+		 * @param keyColumn the column identifying the entities to replace, or null to only add entities
+		 * @param removeAll true to first remove all the entities, in the same transaction as the writing
+		 */
+		public FeatureWriter(
+				DataStore datastore, String layerName, SimpleFeatureType type, 
+				String keyColumn, int commitInterval, boolean removeAll) {
+			this.datastore = datastore;
+			this.layerName = layerName;
+			this.type = type;
+			this.keyColumn = keyColumn;
+			this.commitInterval = commitInterval;
+			this.removeAll = removeAll;
+		}
+		
+		@Override
+		public Long call() throws Exception {
+			
+			final SimpleFeatureStore store = (SimpleFeatureStore) datastore.getFeatureSource(layerName);
+			final Transaction transaction = new DefaultTransaction();
+			store.setTransaction(transaction);
+			
+			long written = 0;
+			long uncommitted = 0;
+			try {
+				if (removeAll)
+					store.removeFeatures(Filter.INCLUDE);
+				while (true) {
+					final List<SimpleFeature> batch = queue.take();
+					if (batch == END)
+						break;
+					if (keyColumn != null)
+						removeExisting(store, batch);
+					store.addFeatures(new ListFeatureCollection(type, batch));
+					written += batch.size();
+					uncommitted += batch.size();
+					if (commitInterval > 0 && uncommitted >= commitInterval) {
+						transaction.commit();
+						uncommitted = 0;
+					}
+				}
+				transaction.commit();
+			} catch (Exception e) {
+				try {
+					transaction.rollback();
+				} catch (IOException e2) {
+					e2.printStackTrace();
+				}
+				throw e;
+			} finally {
+				transaction.close();
+			}
+			return written;
+		}
+		
+		/**
+		 * Removes the entities having the same key as one of the features of the batch,
+		 * with one "key IN (...)" filter which the databases evaluate with the index of the key
+		 */
+		private void removeExisting(SimpleFeatureStore store, List<SimpleFeature> batch) throws IOException {
+			
+			List<Expression> parameters = new ArrayList<>(batch.size()+1);
+			parameters.add(ff.property(keyColumn));
+			for (SimpleFeature feature: batch) {
+				final Object key = feature.getAttribute(keyColumn);
+				if (key != null)
+					parameters.add(ff.literal(key));
+			}
+			if (parameters.size() == 1)
+				return;
+			store.removeFeatures(ff.equals(
+					ff.function("in", parameters.toArray(new Expression[parameters.size()])), 
+					ff.literal(true)));
+		}
+	}
+	
+	/**
+	 * Passes a batch to a writer, unless this writer failed
+	 */
+	private void dispatch(FeatureWriter writer, Future<Long> future, List<SimpleFeature> batch) throws Exception {
+		
+		while (!writer.queue.offer(batch, 200, TimeUnit.MILLISECONDS)) {
+			if (future.isDone()) {
+				getResult(future);
+				throw new IllegalStateException("a writer stopped before the end of the data");
+			}
+		}
+	}
+	
+	private long getResult(Future<Long> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Writes the rows as features through GeoTools. The features are built here, 
+	 * then passed by batches to parallel writers, each writer owning one batch out of N.
+	 * 
+	 * @return the count of entities written 
+	 */
+	protected long writeWithFeatureStores(
+			DataStore datastore, 
+			String layerName,
+			SimpleFeatureType type,
+			BufferedDataTable inputPopulation,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers,
+			NodeWarningWriter warnings,
+			ExecutionMonitor exec) throws Exception {
+		
+		final String mode = m_mode.getStringValue();
+		final String keyColumn = MODE_UPSERT.equals(mode) ? m_keyColumn.getStringValue() : null;
+		
+		// the existing entities are removed in the transaction of the writing, 
+		// so they remain if the writing fails: there is only one transaction
+		final boolean replace = MODE_REPLACE.equals(mode);
+		if (replace && (m_writers.getIntValue() > 1 || m_commitInterval.getIntValue() > 0))
+			getLogger().info("the existing entities are replaced in one transaction, so with one writer committing at the end");
+		// concurrent transactions updating the same keys would insert duplicates or deadlock
+		if (keyColumn != null && m_writers.getIntValue() > 1)
+			getLogger().info("the entities are updated by one writer, so the same key is never updated by concurrent transactions");
+		final int countWriters = replace || keyColumn != null ? 1 : m_writers.getIntValue();
+		final int commitInterval = replace ? 0 : m_commitInterval.getIntValue();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(countWriters);
+		List<FeatureWriter> writers = new ArrayList<>(countWriters);
+		List<Future<Long>> futures = new ArrayList<>(countWriters);
+		for (int i=0; i<countWriters; i++) {
+			FeatureWriter writer = new FeatureWriter(datastore, layerName, type, keyColumn, commitInterval, replace);
+			writers.add(writer);
+			futures.add(executor.submit(writer));
+		}
+		
+        // prepare classes to create Geometries from WKT
+        GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory( null );
+        WKTReader reader = new WKTReader(geomFactory);
+        
+        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
+        
+        // the buffer of spatial features to be added soon (it's quicker to add several lines than only one)
+		List<SimpleFeature> toStore = new ArrayList<>(BUFFER);
+		int nextWriter = 0;
+		
+        CloseableRowIterator itRow = inputPopulation.iterator();
+        boolean success = false;
+        try {
+	        int currentRow = 0;
+	        while (itRow.hasNext()) {
+	        	final DataRow row = itRow.next();
+	        	
+	        	// process the geom column
+	        	final DataCell cellGeom = row.getCell(idxColGeom);
+	        	if (cellGeom.isMissing()) {
+	        		// no geometry
+	        		continue; // skip lines without geom
+	        	}
+	        	try {
+		
+		        	Geometry geom = SpatialUtils.readGeometry(cellGeom, reader);
+		        	featureBuilder.add(geom);
+				} catch (ParseException e) {
+					e.printStackTrace();
+					throw new RuntimeException(e);
+				}
+	        	
+	        	int colId = 0;
+	        	for (int i=0; i<row.getNumCells(); i++) {
+	        		
+	        		if (i == idxColGeom) {
+	        			// skip the column with geom
+	        		} else {
+	        			// process as a standard column
+	        			featureBuilder.add(mappers.get(colId++).getValue(row.getCell(i)));
+	        		}
+	        	}
+	        	
+	        	// build this feature
+	            SimpleFeature feature = featureBuilder.buildFeature(Integer.toString(currentRow)); // row.getKey().getString()
+	            // add this feature to the buffer
+	            if (!toStore.add(feature))
+	            	warnings.warn("unknown problem when adding feature, it will be missing : "+feature);
+	            	
+	            if (toStore.size() >= BUFFER) {
+	        		exec.checkCanceled();
+	        		exec.setMessage("writing "+toStore.size()+" entities");
+	        		// each writer owns one batch out of countWriters 
+	        		dispatch(writers.get(nextWriter), futures.get(nextWriter), toStore);
+	        		nextWriter = (nextWriter + 1) % countWriters;
+	        		toStore = new ArrayList<>(BUFFER);
+	            }
+	            
+	            if (currentRow % 10 == 0) {
+	        		exec.setProgress((double)currentRow / inputPopulation.size(), "processing row "+currentRow);
+	        		exec.checkCanceled();
+	            }
+	            currentRow++;
+	            
+	        }
+
+	        // store last lines
+	        if (!toStore.isEmpty()) {
+        		exec.setMessage("writing "+toStore.size()+" entities (final)");
+        		dispatch(writers.get(nextWriter), futures.get(nextWriter), toStore);
+	        }
+	        
+	    	getLogger().info("commiting changes to database");
+	    	for (int i=0; i<countWriters; i++)
+	    		dispatch(writers.get(i), futures.get(i), FeatureWriter.END);
+	    	long written = 0;
+	    	for (Future<Long> future: futures)
+	    		written += getResult(future);
+	    	success = true;
+	    	
+	    	return written;
+	    	
+        } finally {
+        	itRow.close();
+        	if (success) {
+        		executor.shutdown();
+        	} else {
+        		// interrupts the writers, which roll back their changes
+        		getLogger().info("applying rollback to attempt remove our changes in the database");
+        		executor.shutdownNow();
+        	}
+        }
+	}
+	
+	
+	/**
+	 * Ensures the columns of the table have the types expected by the binary copy.
+	 */
+	protected void checkColumnTypes(
+			Connection connection, 
+			String schema, String table, 
+			List<DataTableToGeotoolsMapper> mappers) throws SQLException, InvalidSettingsException {
+		
+		Map<String,String> types = new HashMap<>();
+		ResultSet rs = connection.getMetaData().getColumns(null, schema, table, null);
+		try {
+			while (rs.next())
+				types.put(rs.getString("COLUMN_NAME"), rs.getString("TYPE_NAME"));
+		} finally {
+			rs.close();
+		}
+		
+		for (DataTableToGeotoolsMapper mapper: mappers) {
+			final String type = types.get(mapper.getName());
+			if (type == null)
+				throw new InvalidSettingsException("the table "+table+" has no column "+mapper.getName());
+			if (!COPY_TYPES.get(mapper.getTargetType()).contains(type))
+				throw new InvalidSettingsException(
+						"the column "+mapper.getName()+" of the table "+table+" is of type "+type+
+						", which cannot be loaded by the bulk copy from a "+mapper.getTargetType()+" column; "+
+						"please write into a novel layer or disable the bulk copy");
+		}
+	}
+	
+	/**
+	 * Returns the SRID declared for the geometry column of the table
+	 */
+	protected int findSRID(Connection connection, String schema, String table) throws SQLException {
+		
+		PreparedStatement st = connection.prepareStatement("SELECT Find_SRID(?, ?, 'geom')");
+		try {
+			st.setString(1, schema);
+			st.setString(2, table);
+			ResultSet rs = st.executeQuery();
+			try {
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			st.close();
+		}
+	}
+	
+	/**
+	 * Streams the rows of the table into PostGIS with a binary COPY,
+	 * optionally through an unlogged staging table. The staging table is always 
+	 * used to update entities by key. Without staging table, the existing entities
+	 * are removed in the transaction of the copy, so they remain if the copy fails.
+	 * 
+	 * @return the count of entities written
+	 */
+	protected long copyIntoPostgis(
+			JDBCDataStore datastore, 
+			String layerName,
+			BufferedDataTable inputPopulation,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers,
+			ExecutionMonitor exec) throws IOException, InvalidSettingsException, CanceledExecutionException {
+		
+		final String mode = m_mode.getStringValue();
+		final String schema = getDatabaseSchema(datastore);
+		final String target = PostgisBinaryCopyWriter.quote(schema)+"."+PostgisBinaryCopyWriter.quote(layerName);
+		
+		List<String> columns = new ArrayList<>(mappers.size()+1);
+		columns.add(PostgisBinaryCopyWriter.quote("geom"));
+		for (DataTableToGeotoolsMapper mapper: mappers)
+			columns.add(PostgisBinaryCopyWriter.quote(mapper.getName()));
+		
+		Connection connection = datastore.getConnection(Transaction.AUTO_COMMIT);
+		Statement st = null;
+		String staging = null;
+		PostgisBinaryCopyWriter writer = null;
+		CloseableRowIterator itRow = null;
+		try {
+			checkColumnTypes(connection, schema, layerName, mappers);
+			final int srid = findSRID(connection, schema, layerName);
+			
+			st = connection.createStatement();
+			String copyTable = target;
+			if (m_stagingTable.getBooleanValue() || MODE_UPSERT.equals(mode)) {
+				exec.setMessage("creating an unlogged staging table");
+				// a name of its own for this run, shorter than the 63 characters of PostgreSQL identifiers;
+				// the creation fails rather than replacing an existing table
+				final String stagingName = 
+						layerName.substring(0, Math.min(layerName.length(), 20))+
+						"_staging_"+UUID.randomUUID().toString().replace("-", "");
+				final String stagingTable = PostgisBinaryCopyWriter.quote(schema)+"."+PostgisBinaryCopyWriter.quote(stagingName);
+				st.execute("CREATE UNLOGGED TABLE "+stagingTable+" (LIKE "+target+" INCLUDING DEFAULTS)");
+				// only drop the table created by this run
+				staging = stagingTable;
+				copyTable = staging;
+			} else {
+				connection.setAutoCommit(false);
+				if (MODE_REPLACE.equals(mode)) {
+					exec.setMessage("removing the existing entities");
+					st.execute("TRUNCATE "+target);
+				}
+			}
+			
+			exec.setMessage("copying entities");
+			writer = new PostgisBinaryCopyWriter(
+					connection.unwrap(PGConnection.class), 
+					copyTable, columns, 
+					srid, idxColGeom, mappers);
+			
+			final long total = inputPopulation.size();
+			long currentRow = 0;
+			itRow = inputPopulation.iterator();
+			while (itRow.hasNext()) {
+				writer.write(itRow.next());
+				if (currentRow % 1000 == 0) {
+	        		exec.checkCanceled();
+	        		exec.setProgress((double)currentRow / total, "copying row "+currentRow);
+				}
+				currentRow++;
+			}
+			final long copied = writer.finish();
+			writer = null;
+			if (staging == null) {
+				connection.commit();
+				connection.setAutoCommit(true);
+			}
+			getLogger().info("copied "+copied+" entities into "+copyTable);
+			
+			if (staging != null) {
+				exec.setMessage("moving the entities from the staging table into "+layerName);
+				final String cols = String.join(",", columns);
+				connection.setAutoCommit(false);
+				try {
+					if (MODE_REPLACE.equals(mode))
+						st.execute("DELETE FROM "+target);
+					else if (MODE_UPSERT.equals(mode)) {
+						final String key = PostgisBinaryCopyWriter.quote(m_keyColumn.getStringValue());
+						st.execute("DELETE FROM "+target+" t USING "+staging+" s WHERE t."+key+" = s."+key);
+					}
+					st.execute("INSERT INTO "+target+" ("+cols+") SELECT "+cols+" FROM "+staging);
+					st.execute("DROP TABLE "+staging);
+					connection.commit();
+				} catch (SQLException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+				staging = null;
+			}
+			exec.setProgress(1.0);
+			
+			return copied;
+			
+		} catch (SQLException e) {
+			e.printStackTrace();
+			throw new IOException("error while copying the entities into the database: "+e.getMessage(), e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.cancel();
+				} catch (SQLException e) {
+					getLogger().warn("unable to cancel the copy into "+layerName+": "+e.getMessage(), e);
+				}
+			}
+			if (itRow != null)
+				itRow.close();
+			try {
+				if (!connection.getAutoCommit()) {
+					// the copy failed: removes nothing
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				getLogger().warn("error during rollback; maybe some garbage will remain in the database "+e.getMessage());
+			}
+			if (staging != null && st != null) {
+				try {
+					st.execute("DROP TABLE "+staging);
+				} catch (SQLException e) {
+					getLogger().warn("unable to drop the staging table "+staging+": "+e.getMessage());
+				}
+			}
+			datastore.closeSafe(st);
+			datastore.closeSafe(connection);
+		}
+	}
+	
     /**
      * {@inheritDoc}
      */
@@ -188,6 +865,15 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
         
     	NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
 
+    	final String mode = m_mode.getStringValue();
+    	final String keyColumn = m_keyColumn.getStringValue();
+    	if (MODE_UPSERT.equals(mode)) {
+    		if (keyColumn == null || keyColumn.trim().isEmpty())
+    			throw new InvalidSettingsException("please select the key column used to update the existing entities");
+    		if (SpatialUtils.GEOMETRY_COLUMN_NAME.equals(keyColumn) || !inputPopulation.getDataTableSpec().containsName(keyColumn))
+    			throw new InvalidSettingsException("the key column "+keyColumn+" is not an attribute of the input table");
+    	}
+    	
     	// open the resulting datastore
     	DataStore datastore = openDataStore(exec);
 
@@ -234,145 +920,68 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
         if (!(featureSource instanceof SimpleFeatureStore)) {
             throw new IllegalStateException("Modification not supported");
         }
-        SimpleFeatureStore featureStore = (SimpleFeatureStore) featureSource;
 
         // identify the id of the geom column, that we will not use as a standard one
         final int idxColGeom = inputPopulation.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
 		
-        // prepare classes to create Geometries from WKT
-        
-        GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory( null );
-        WKTReader reader = new WKTReader(geomFactory);
-        
-        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
-        
-        Transaction transaction = new DefaultTransaction();
-        featureStore.setTransaction(transaction);
-        
-        // the buffer of spatial features to be added soon (it's quicker to add several lines than only one)
-		List<SimpleFeature> toStore = new ArrayList<>(BUFFER);
-		
-        CloseableRowIterator itRow = inputPopulation.iterator();
+        long written = 0;
+        // the definitions of the spatial indexes dropped and not created again yet
+        List<String> droppedIndexes = null;
         try {
-	        int currentRow = 0;
-	        while (itRow.hasNext()) {
-	        	final DataRow row = itRow.next();
-	        	
-	        	// process the geom column
-	        	final DataCell cellGeom = row.getCell(idxColGeom);
-	        	if (cellGeom.isMissing()) {
-	        		// no geometry
-	        		continue; // skip lines without geom
-	        	}
-	        	try {
-		
-		        	Geometry geom = reader.read(cellGeom.toString());
-		        	featureBuilder.add(geom);
-				} catch (ParseException e) {
-					e.printStackTrace();
-					throw new RuntimeException(e);
-				}
-	        	
-	        	int colId = 0;
-	        	for (int i=0; i<row.getNumCells(); i++) {
-	        		
-	        		if (i == idxColGeom) {
-	        			// skip the column with geom
-	        		} else {
-	        			// process as a standard column
-	        			featureBuilder.add(mappers.get(colId++).getValue(row.getCell(i)));
-	        		}
-	        	}
-	        	
-	        	// build this feature
-	            SimpleFeature feature = featureBuilder.buildFeature(Integer.toString(currentRow)); // row.getKey().getString()
-	            // add this feature to the buffer
-	            if (!toStore.add(feature))
-	            	warnings.warn("unknown problem when adding feature, it will be missing : "+feature);
-	            	
-	            if (toStore.size() >= BUFFER) {
-	        		exec.checkCanceled();
-	        		exec.setMessage("writing "+toStore.size()+" entities");
-	            	featureStore.addFeatures( new ListFeatureCollection( type, toStore));
-	    	        //transaction.commit();
-	    	        //transaction.close();
-	            	toStore.clear();
-	            	
-
-	    	        transaction = new DefaultTransaction();
-	            }
-	            
-	            if (currentRow % 10 == 0) {
-	        		exec.setProgress((double)currentRow / inputPopulation.size(), "processing row "+currentRow);
-	        		exec.checkCanceled();
-	            }
-	            currentRow++;
-	            
+	        // the count before writing, to check the count after
+	        final long countBefore = m_checkWritten.getBooleanValue() ? count(featureSource) : 0;
+	        
+	        final boolean indexAfterLoad = m_indexAfterLoad.getBooleanValue() && isPostgis(datastore);
+	        if (m_indexAfterLoad.getBooleanValue() && !indexAfterLoad)
+	        	getLogger().warn("the spatial index can only be created after loading for PostGIS; it will be maintained during the loading");
+	        if (indexAfterLoad) {
+	        	exec.setMessage("removing the spatial index during the loading");
+	        	droppedIndexes = dropSpatialIndexes((JDBCDataStore)datastore, layerName);
 	        }
-
-	        // store last lines
-	        if (!toStore.isEmpty()) {
-        		exec.setMessage("writing "+toStore.size()+" entities (final)");
-	        	featureStore.addFeatures( new ListFeatureCollection( type, toStore));
+			
+	        if (isBulkCopy(datastore)) {
+	        	written = copyIntoPostgis(
+	        				(JDBCDataStore)datastore, layerName, 
+	        				inputPopulation, idxColGeom, mappers, 
+	        				exec.createSubProgress(0.9));
+	        } else {
+	        	written = writeWithFeatureStores(
+	        				datastore, layerName, type, 
+	        				inputPopulation, idxColGeom, mappers, 
+	        				warnings,
+	        				exec.createSubProgress(0.9));
+	        }
+	        
+	        if (droppedIndexes != null) {
+	        	exec.setMessage("creating the spatial index and analyzing the table");
+	        	final List<String> definitions = droppedIndexes;
+	        	droppedIndexes = null;
+	        	restoreSpatialIndexesAndAnalyze((JDBCDataStore)datastore, layerName, definitions);
+	        }
+	        
+	        // check the features were created (based on our tests, we got cases with no error but also nothing written!)
+	        if (m_checkWritten.getBooleanValue()) {
+	        	exec.setMessage("checking the count of entities in the database");
+	        	final long countAfter = count(datastore.getFeatureSource(layerName));
+	        	checkCount(mode, countBefore, written, countAfter);
 	        }
 	        
-	    	getLogger().info("commiting changes to database");
-	        transaction.commit();
-
-	        // clear mem
-        	toStore.clear();
-
-	    	getLogger().info("done");
-	    	exec.setProgress(1.0);
-	       
-        } catch (RuntimeException e) {
-        	if (transaction != null) {
-                try {
-                	getLogger().info("applying rollback to attempt remove our changes in the database");
-                	transaction.rollback();
-                } catch (IOException doubleEeek) {
-                    // rollback failed
-                	getLogger().warn("error during rollback; maybe some garbage will remain in the database "+e.getMessage());
-                }
-        	}
         } finally {
-
-        	if (transaction != null)
-        		transaction.close();
-        	
-        	if (itRow != null)
-        		itRow.close();
-        	
+        	if (droppedIndexes != null) {
+        		// the loading failed; the indexes should not be lost
+        		try {
+        			restoreSpatialIndexesAndAnalyze((JDBCDataStore)datastore, layerName, droppedIndexes);
+        		} catch (IOException e) {
+        			getLogger().error(e.getMessage());
+        		}
+        	}
             // close datastore
             datastore.dispose();
         }
+    	getLogger().info("done");
+    	exec.setProgress(1.0);
         
         setWarningMessage(warnings.buildWarnings());
-
-        
-        
-        // check the features were created (based on our tests, we got cases with no error but also nothing written!)
-        if (m_checkWritten.getBooleanValue()) {
-        	DataStore datastoreRead = openDataStore(exec);
-        	try {
-	        	if (datastore == datastoreRead)
-	        		getLogger().warn("got the same datastore, cannot test...");
-	        	else {
-		        	exec.setMessage("checking the count of entities in the database");
-		    		SimpleFeatureSource featureSourceRead = datastoreRead.getFeatureSource(layerName);
-		    		SimpleFeatureCollection collectionRead = featureSourceRead.getFeatures();
-		    		if (collectionRead.size() < inputPopulation.size())
-		    			throw new RuntimeException(
-		    					"we did not wrote the expected count of entities: there were "+
-		    							inputPopulation.size()+" lines, but only "+collectionRead.size()+
-		    							" features were created");
-	        	}
-        	} finally {
-        		if (datastoreRead != null)
-        			datastoreRead.dispose();
-        	}
-        }
-        
         
         return new BufferedDataTable[]{};
     }
@@ -386,6 +995,16 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
     	// nothing to do
     }
 
+	/**
+	 * Settings which might be missing in the workflows created by former versions 
+	 */
+	private SettingsModel[] getOptionalSettings() {
+		return new SettingsModel[] { 
+				m_bulkCopy, m_stagingTable, 
+				m_mode, m_keyColumn, m_commitInterval, m_writers, m_indexAfterLoad 
+				};
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -402,6 +1021,13 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
 		m_password.saveSettingsTo(settings);
 		m_layer.saveSettingsTo(settings);
 		m_checkWritten.saveSettingsTo(settings);
+		m_bulkCopy.saveSettingsTo(settings);
+		m_stagingTable.saveSettingsTo(settings);
+		m_mode.saveSettingsTo(settings);
+		m_keyColumn.saveSettingsTo(settings);
+		m_commitInterval.saveSettingsTo(settings);
+		m_writers.saveSettingsTo(settings);
+		m_indexAfterLoad.saveSettingsTo(settings);
 
 	}
 
@@ -420,6 +1046,11 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
 		m_password.loadSettingsFrom(settings);
 		m_layer.loadSettingsFrom(settings);
 		m_checkWritten.loadSettingsFrom(settings);
+		// settings added later; older workflows append the entities one by one
+		for (SettingsModel model: getOptionalSettings()) {
+			if (settings.containsKey(model.getKey()))
+				model.loadSettingsFrom(settings);
+		}
 		
 	}
 
@@ -438,6 +1069,10 @@ public class WriteWKTIntoDBNodeModel extends NodeModel {
 		m_password.validateSettings(settings);
 		m_layer.validateSettings(settings);
 		m_checkWritten.validateSettings(settings);
+		for (SettingsModel model: getOptionalSettings()) {
+			if (settings.containsKey(model.getKey()))
+				model.validateSettings(settings);
+		}
 	}
 
     /**
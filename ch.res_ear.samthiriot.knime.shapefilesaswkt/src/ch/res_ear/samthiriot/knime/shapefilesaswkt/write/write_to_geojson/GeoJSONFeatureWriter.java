@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_geojson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
+
+/**
+ * Writes KNIME rows as GeoJSON features with a streaming generator,
+ * so every feature is written as soon as it is converted
+ * and nothing is accumulated in memory.
+ * The features are written in one line each, which makes it possible
+ * to write GeoJSON lines (one feature per line).
+ * The key of the row is written as the id of the feature, and the coordinates
+ * are rounded to a count of decimals.
+ *
+ * @author Samuel Thiriot
+ */
+public class GeoJSONFeatureWriter implements Closeable {
+
+	private static final JsonFactory FACTORY = new JsonFactory();
+
+	private final JsonGenerator generator;
+
+	private final int idxColGeom;
+	private final List<DataTableToGeotoolsMapper> mappers;
+
+	/**
+	 * Factor of the rounding of the coordinates
+	 */
+	private final double scale;
+
+	/**
+	 * @param os the stream to write into, which is not closed by this writer
+	 * @param idxColGeom the index of the geometry in the KNIME rows
+	 * @param mappers the mappers of the other KNIME columns, in order
+	 * @param decimals the count of decimals of the coordinates
+	 * @throws IOException
+	 */
+	public GeoJSONFeatureWriter(
+			OutputStream os,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers,
+			int decimals) throws IOException {
+
+		this.idxColGeom = idxColGeom;
+		this.mappers = mappers;
+		this.scale = Math.pow(10, decimals);
+
+		generator = FACTORY.createGenerator(os, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		// the separators between features are written explicitly
+		generator.setRootValueSeparator(null);
+	}
+
+	/**
+	 * Returns the generator, to write the content around the features
+	 */
+	public JsonGenerator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Writes the feature of this row, with the geometry already decoded from the row
+	 */
+	public void writeFeature(DataRow row, Geometry geom) throws IOException {
+
+		generator.writeStartObject();
+		generator.writeStringField("type", "Feature");
+		generator.writeStringField("id", row.getKey().getString());
+
+		generator.writeFieldName("geometry");
+		writeGeometry(geom);
+
+		generator.writeObjectFieldStart("properties");
+		int colId = 0;
+		for (int i=0; i<row.getNumCells(); i++) {
+			if (i == idxColGeom)
+				continue;
+			final DataTableToGeotoolsMapper mapper = mappers.get(colId++);
+			final DataCell cell = row.getCell(i);
+			generator.writeFieldName(mapper.getName());
+			writeValue(cell.isMissing() ? null : mapper.getValueNoNull(cell));
+		}
+		generator.writeEndObject();
+
+		generator.writeEndObject();
+	}
+
+	/**
+	 * Writes the feature of this row followed by a new line
+	 */
+	public void writeLine(DataRow row, Geometry geom) throws IOException {
+		writeFeature(row, geom);
+		generator.writeRaw('\n');
+	}
+
+	protected void writeValue(Object value) throws IOException {
+
+		if (value == null)
+			generator.writeNull();
+		else if (value instanceof Integer)
+			generator.writeNumber((Integer)value);
+		else if (value instanceof Long)
+			generator.writeNumber((Long)value);
+		else if (value instanceof Double)
+			generator.writeNumber((Double)value);
+		else if (value instanceof Boolean)
+			generator.writeBoolean((Boolean)value);
+		else
+			generator.writeString(value.toString());
+	}
+
+	protected void writeGeometry(Geometry geom) throws IOException {
+
+		generator.writeStartObject();
+		generator.writeStringField("type", geom.getGeometryType());
+
+		if (geom instanceof GeometryCollection && !(geom instanceof MultiPoint
+				|| geom instanceof MultiLineString || geom instanceof MultiPolygon)) {
+			generator.writeArrayFieldStart("geometries");
+			for (int i=0; i<geom.getNumGeometries(); i++)
+				writeGeometry(geom.getGeometryN(i));
+			generator.writeEndArray();
+		} else {
+			generator.writeFieldName("coordinates");
+			writeCoordinates(geom);
+		}
+
+		generator.writeEndObject();
+	}
+
+	protected void writeCoordinates(Geometry geom) throws IOException {
+
+		if (geom instanceof Point) {
+			if (geom.isEmpty()) {
+				generator.writeStartArray();
+				generator.writeEndArray();
+			} else {
+				writePosition(((Point)geom).getCoordinateSequence(), 0);
+			}
+		} else if (geom instanceof LineString) {
+			writePositions(((LineString)geom).getCoordinateSequence());
+		} else if (geom instanceof Polygon) {
+			final Polygon polygon = (Polygon)geom;
+			generator.writeStartArray();
+			if (!polygon.isEmpty()) {
+				writePositions(polygon.getExteriorRing().getCoordinateSequence());
+				for (int i=0; i<polygon.getNumInteriorRing(); i++)
+					writePositions(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+			generator.writeEndArray();
+		} else {
+			// multi geometries
+			generator.writeStartArray();
+			for (int i=0; i<geom.getNumGeometries(); i++)
+				writeCoordinates(geom.getGeometryN(i));
+			generator.writeEndArray();
+		}
+	}
+
+	protected void writePositions(CoordinateSequence seq) throws IOException {
+
+		generator.writeStartArray();
+		for (int i=0; i<seq.size(); i++)
+			writePosition(seq, i);
+		generator.writeEndArray();
+	}
+
+	protected void writePosition(CoordinateSequence seq, int i) throws IOException {
+
+		generator.writeStartArray();
+		writeOrdinate(seq.getX(i));
+		writeOrdinate(seq.getY(i));
+		if (seq.hasZ()) {
+			final double z = seq.getOrdinate(i, CoordinateSequence.Z);
+			if (!Double.isNaN(z))
+				writeOrdinate(z);
+		}
+		generator.writeEndArray();
+	}
+
+	protected void writeOrdinate(double value) throws IOException {
+		final double scaled = value * scale;
+		if (Double.isInfinite(scaled) || Math.abs(scaled) >= 1e15)
+			// no decimals to remove within the precision of doubles
+			generator.writeNumber(value);
+		else
+			generator.writeNumber(Math.rint(scaled) / scale);
+	}
+
+	public void flush() throws IOException {
+		generator.flush();
+	}
+
+	/**
+	 * Flushes the features; the underlying stream is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		generator.close();
+	}
+
+}
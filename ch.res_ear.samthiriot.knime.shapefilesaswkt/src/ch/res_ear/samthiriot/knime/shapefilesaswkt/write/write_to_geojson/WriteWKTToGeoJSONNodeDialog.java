@@ -11,9 +11,16 @@
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_geojson;
 
 import javax.swing.JFileChooser;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 
 /**
@@ -44,6 +51,40 @@ public class WriteWKTToGeoJSONNodeDialog extends DefaultNodeSettingsPane {
         		false
         		));  
         
+        final SettingsModelString modelFormat = new SettingsModelString("format", WriteWKTToGeoJSONNodeModel.FORMAT_COLLECTION);
+        addDialogComponent(new DialogComponentStringSelection(
+        		modelFormat,
+        		"format",
+        		WriteWKTToGeoJSONNodeModel.FORMATS
+        		));
+        
+        final SettingsModelBoolean modelAppend = new SettingsModelBoolean("append", false);
+        addDialogComponent(new DialogComponentBoolean(
+        		modelAppend,
+        		"append to the existing file"
+        		));
+        
+        // only lines can be appended
+        modelFormat.addChangeListener(new ChangeListener() {
+			
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				modelAppend.setEnabled(WriteWKTToGeoJSONNodeModel.FORMAT_SEQUENCE.equals(modelFormat.getStringValue()));
+			}
+		});
+        modelAppend.setEnabled(WriteWKTToGeoJSONNodeModel.FORMAT_SEQUENCE.equals(modelFormat.getStringValue()));
+        
+        addDialogComponent(new DialogComponentBoolean(
+        		new SettingsModelBoolean("gzip", false),
+        		"compress with gzip"
+        		));
+        
+        addDialogComponent(new DialogComponentNumber(
+        		new SettingsModelIntegerBounded("decimals", 4, 0, 17),
+        		"decimals of the coordinates",
+        		1
+        		));
+        
     }
 }
 
@@ -10,23 +10,28 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_geojson;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.InvalidPathException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
@@ -39,15 +44,14 @@ import org.knime.core.node.InvalidSettingsException;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.util.FileUtil;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.NodeWarningWriter;
@@ -67,6 +71,22 @@ import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
 public class WriteWKTToGeoJSONNodeModel extends NodeModel {
 
     private final SettingsModelString m_file = new SettingsModelString("filename", null);
+    private final SettingsModelString m_format = new SettingsModelString("format", FORMAT_COLLECTION);
+    private final SettingsModelBoolean m_append = new SettingsModelBoolean("append", false);
+    private final SettingsModelBoolean m_gzip = new SettingsModelBoolean("gzip", false);
+    private final SettingsModelIntegerBounded m_decimals = new SettingsModelIntegerBounded("decimals", 4, 0, 17);
+
+    public static final String FORMAT_COLLECTION = "GeoJSON (FeatureCollection)";
+    public static final String FORMAT_SEQUENCE = "GeoJSON lines (one Feature per line)";
+    public static final List<String> FORMATS = Arrays.asList(FORMAT_COLLECTION, FORMAT_SEQUENCE);
+
+    /**
+     * Count of rows serialized together by one thread
+     */
+    private static final int ROWS_PER_CHUNK = 1000;
+    
+    private static final byte[] COLLECTION_START = "{\"type\":\"FeatureCollection\",\"features\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COLLECTION_END = "]}\n".getBytes(StandardCharsets.UTF_8);
 
 	/**
 	 * Constructor for the node model.
@@ -87,9 +107,6 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
 
 		final BufferedDataTable inputPopulation = inData[0];
     	
-		if (inputPopulation.size() > Integer.MAX_VALUE)
-			throw new IllegalArgumentException("sorry, we can not store more than "+Integer.MAX_VALUE+" with this node.");
-
     	if (!SpatialUtils.hasGeometry(inputPopulation.getDataTableSpec()))
     		throw new IllegalArgumentException("the input table contains no spatial data (no column named "+SpatialUtils.GEOMETRY_COLUMN_NAME+")");
     	
@@ -109,134 +126,74 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
         
     	File file = FileUtil.getFileFromURL(url);
         
-    	// copy the input population into a datastore
-    	exec.setMessage("encoding entities");
-        
-		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-        builder.setName("entities");
-        
-        // mandatory; the target CRS is always the same for KML
-        CoordinateReferenceSystem crs = DefaultGeographicCRS.WGS84; 
-        builder.setCRS(crs);
-
-        //builder.setCRS(crsOrig); 
-        
-        // TODO improve: create different files for different geom types (?)
-        Class<?> geomClassToBeStored = SpatialUtils.detectGeometryClassFromData(	
-        										inputPopulation, 
-        										SpatialUtils.GEOMETRY_COLUMN_NAME);
-        
-        // add attributes in order
-        builder.add(
-        		SpatialUtils.GEOMETRY_COLUMN_NAME, 
-        		geomClassToBeStored
-        		);
+        final boolean lines = FORMAT_SEQUENCE.equals(m_format.getStringValue());
+        final boolean append = lines && m_append.getBooleanValue();
         
         // create mappers
     	NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
 
-        List<DataTableToGeotoolsMapper> mappers = inputPopulation
+        final List<DataTableToGeotoolsMapper> mappers = inputPopulation
         												.getDataTableSpec()
         												.stream()
         												.filter(colspec -> !SpatialUtils.GEOMETRY_COLUMN_NAME.equals((colspec.getName())))
         												.map(colspec -> new DataTableToGeotoolsMapper(warnings, colspec))
         												.collect(Collectors.toList());
-        // add those to the builder type
-        mappers.forEach(mapper -> mapper.addAttributeForSpec(builder));
-        
-        // build the type
-        final SimpleFeatureType type = builder.buildFeatureType();
     
         // identify the id of the geom column, that we will not use as a standard one
         final int idxColGeom = inputPopulation.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
-		
-        // prepare classes to create Geometries from WKT
-        GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory( null );
-        WKTReader reader = new WKTReader(geomFactory);
         
-        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
+        final int decimals = m_decimals.getIntValue();
+        final long total = inputPopulation.size();
+        
+    	exec.setMessage(append ? "appending entities" : "writing entities");
 
-        // the buffer of spatial features to be added soon (it's quicker to add several lines than only one)
-		List<SimpleFeature> toStore = new ArrayList<>((int)inputPopulation.size());
-		
+    	// the features are written as the rows are read: the rows are serialized by chunks in parallel, 
+    	// and the chunks are written in order, so only the pending chunks are in memory
+    	OutputStream os = new FileOutputStream(file, append);
+    	if (m_gzip.getBooleanValue())
+    		os = new GZIPOutputStream(os, 1 << 16);
+    	os = new BufferedOutputStream(os, 1 << 16);
+    	
+    	final int threads = SpatialUtils.getParallelThreadsCount();
+		final int maxPending = threads * 2;
+		Deque<Future<byte[]>> pending = new ArrayDeque<>(maxPending);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
         CloseableRowIterator itRow = inputPopulation.iterator();
         try {
-	        int currentRow = 0;
-	        while (itRow.hasNext()) {
-	        	final DataRow row = itRow.next();
-	        	
-	        	// process the geom column
-	        	final DataCell cellGeom = row.getCell(idxColGeom);
-	        	if (cellGeom.isMissing()) {
-	        		// no geometry
-	        		continue; // skip lines without geom
-	        	}
-	        	try {
-		
-		        	Geometry geom = reader.read(cellGeom.toString());
-		        	featureBuilder.add(geom);
-	
-				} catch (ParseException e) {
-					e.printStackTrace();
-					throw new RuntimeException(e);
-				}
-	        	
-	        	int colId = 0;
-	        	for (int i=0; i<row.getNumCells(); i++) {
-	        		
-	        		if (i == idxColGeom) {
-	        			// skip the column with geom
-	        		} else {
-	        			// process as a standard column
-	        			featureBuilder.add(mappers.get(colId++).getValueNoNull(row.getCell(i)));
-	        		}
-	        	}
-	        	
-	        	// build this feature
-	            SimpleFeature feature = featureBuilder.buildFeature(null);
-	            // add this feature to the buffer
-	            toStore.add(feature);
-	            
-	            if (currentRow % 10 == 0) {
-	        		exec.setProgress(0.4*(double)currentRow / inputPopulation.size(), "encoding entity "+currentRow);
-	        		exec.checkCanceled();
-	            }
-	            currentRow++;
-	            
-	        }
-	
-	
-	        // store last lines
-	        if (!toStore.isEmpty()) {
-	        }
-	        exec.setProgress(0.4);
-
-        } finally {
-        	if (itRow != null)
-        		itRow.close();
+        	if (!lines)
+        		os.write(COLLECTION_START);
         	
-        }
-
-        // store geometries into a feature list
-    	exec.setMessage("storing entities");
-
-        ListFeatureCollection featureCollection = new ListFeatureCollection(type, toStore);
-        
-        exec.setProgress(0.5, "writing entities");
-        
-        FeatureJSON io = new FeatureJSON();
-    	
-        OutputStream os = null;
-        try {
-        	os = new FileOutputStream(file);
+        	boolean first = true;
+        	long currentRow = 0;
+        	while (itRow.hasNext()) {
+        		
+        		final List<DataRow> chunk = new ArrayList<>(ROWS_PER_CHUNK);
+        		while (chunk.size() < ROWS_PER_CHUNK && itRow.hasNext())
+        			chunk.add(itRow.next());
+        		currentRow += chunk.size();
+        		
+        		pending.add(executor.submit(() -> writeChunk(chunk, idxColGeom, mappers, decimals, lines)));
+        		
+        		// write the chunks already serialized
+        		while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+        			first = appendChunk(os, SpatialUtils.waitForChunk(pending.poll()), first, lines);
+        		}
+        		exec.checkCanceled();
+        		exec.setProgress((double)currentRow / total, "writing entity "+currentRow);
+        	}
+        	// write the last chunks
+        	while (!pending.isEmpty()) {
+        		first = appendChunk(os, SpatialUtils.waitForChunk(pending.poll()), first, lines);
+        		exec.checkCanceled();
+        	}
         	
-        	io.writeFeatureCollection(featureCollection, os);
+        	if (!lines)
+        		os.write(COLLECTION_END);
         	
         } finally {
-        	if (os != null) {
-        		os.close();
-        	}
-            
+        	executor.shutdownNow();
+        	itRow.close();
+        	os.close();
         }
         exec.setProgress(1);
         
@@ -245,7 +202,70 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
         return new BufferedDataTable[]{};
         
 	}
-
+	
+	/**
+	 * Serializes the features of these rows. In a FeatureCollection, the features
+	 * are separated by commas; as lines, each feature is followed by a new line.
+	 * Rows without geometry are skipped.
+	 * 
+	 * @return the UTF-8 content, which is empty if no row had a geometry
+	 */
+	protected static byte[] writeChunk(
+			List<DataRow> rows, 
+			int idxColGeom, 
+			List<DataTableToGeotoolsMapper> mappers, 
+			int decimals,
+			boolean lines) throws IOException {
+		
+        // each thread decodes with its own reader
+        WKTReader reader = new WKTReader(JTSFactoryFinder.getGeometryFactory( null ));
+        
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.size() * 256);
+		GeoJSONFeatureWriter writer = new GeoJSONFeatureWriter(bytes, idxColGeom, mappers, decimals);
+		boolean first = true;
+		for (DataRow row: rows) {
+			
+        	final DataCell cellGeom = row.getCell(idxColGeom);
+        	if (cellGeom.isMissing()) 
+        		continue; // skip lines without geom
+        	
+        	Geometry geom;
+        	try {
+				geom = SpatialUtils.readGeometry(cellGeom, reader);
+			} catch (ParseException e) {
+				e.printStackTrace();
+				throw new RuntimeException(e);
+			}
+        	
+        	if (lines) {
+        		writer.writeLine(row, geom);
+        	} else {
+        		if (!first)
+        			writer.getGenerator().writeRaw(',');
+        		writer.writeFeature(row, geom);
+        	}
+        	first = false;
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Writes a serialized chunk, separated by a comma from the previous features 
+	 * in a FeatureCollection.
+	 * 
+	 * @return true if no feature was written yet
+	 */
+	protected static boolean appendChunk(OutputStream os, byte[] chunk, boolean first, boolean lines) throws IOException {
+		
+		if (chunk.length == 0)
+			return first;
+		if (!first && !lines)
+			os.write(',');
+		os.write(chunk);
+		return false;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -283,6 +303,10 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
     protected void saveSettingsTo(final NodeSettingsWO settings) {
         
     	m_file.saveSettingsTo(settings);
+    	m_format.saveSettingsTo(settings);
+    	m_append.saveSettingsTo(settings);
+    	m_gzip.saveSettingsTo(settings);
+    	m_decimals.saveSettingsTo(settings);
     	
     }
 
@@ -295,6 +319,12 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
             
         
     	m_file.loadSettingsFrom(settings);
+    	
+    	// settings added later; older workflows write a FeatureCollection
+    	for (SettingsModel model: new SettingsModel[] { m_format, m_append, m_gzip, m_decimals }) {
+    		if (settings.containsKey(model.getKey()))
+    			model.loadSettingsFrom(settings);
+    	}
 
     }
 
@@ -306,6 +336,16 @@ public class WriteWKTToGeoJSONNodeModel extends NodeModel {
             throws InvalidSettingsException {
             
     	m_file.validateSettings(settings);
+    	
+    	for (SettingsModel model: new SettingsModel[] { m_format, m_append, m_gzip, m_decimals }) {
+    		if (settings.containsKey(model.getKey()))
+    			model.validateSettings(settings);
+    	}
+    	if (settings.containsKey(m_format.getKey())) {
+    		final String format = settings.getString(m_format.getKey());
+    		if (!FORMATS.contains(format))
+    			throw new InvalidSettingsException("unknown format "+format);
+    	}
 
     }
     
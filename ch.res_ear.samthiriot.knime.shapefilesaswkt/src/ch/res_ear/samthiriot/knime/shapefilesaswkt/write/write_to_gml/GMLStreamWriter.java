@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_gml;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.SpatialUtils;
+
+/**
+ * Writes KNIME rows as GML 2 or GML 3 feature members with a StAX writer,
+ * as the rows arrive, so only the current feature is in memory.
+ * Each row becomes a featureMember of a FeatureCollection, containing
+ * an element named as the feature type, with one element per column.
+ *
+ * @author Samuel Thiriot
+ */
+public class GMLStreamWriter {
+
+	public static final String NAMESPACE_GML = "http://www.opengis.net/gml";
+	public static final String NAMESPACE_WFS = "http://www.opengis.net/wfs";
+	public static final String NAMESPACE_XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+	private final XMLStreamWriter writer;
+
+	private final boolean gml3;
+	private final String prefix;
+	private final String namespace;
+	private final String typeName;
+	private final String geometryName;
+	private final String srsName;
+
+	private final int idxColGeom;
+	private final List<DataTableToGeotoolsMapper> mappers;
+
+	/**
+	 * True if the geometry being written has a Z ordinate;
+	 * all its coordinates are then written with the same dimension
+	 */
+	private boolean hasZ = false;
+
+	/**
+	 * Starts the FeatureCollection.
+	 *
+	 * @param os the stream to write into, which is not closed by this writer
+	 * @param gml3 true for GML 3, false for GML 2
+	 * @param prefix the prefix of the namespace of the features
+	 * @param namespace the namespace of the features
+	 * @param schemaLocation the location of the schema of the features, or null
+	 * @param typeName the name of the elements of the features
+	 * @param geometryName the name of the element of the geometry
+	 * @param srsName the name of the Coordinate Reference System, or null
+	 * @param idxColGeom the index of the geometry in the KNIME rows
+	 * @param mappers the mappers of the other KNIME columns, in order
+	 * @throws XMLStreamException
+	 */
+	public GMLStreamWriter(
+			OutputStream os,
+			boolean gml3,
+			String prefix,
+			String namespace,
+			String schemaLocation,
+			String typeName,
+			String geometryName,
+			String srsName,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers) throws XMLStreamException {
+
+		this.gml3 = gml3;
+		this.prefix = prefix;
+		this.namespace = namespace;
+		this.typeName = typeName;
+		this.geometryName = geometryName;
+		this.srsName = srsName;
+		this.idxColGeom = idxColGeom;
+		this.mappers = mappers;
+
+		writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeCharacters("\n");
+
+		// GML 2 has no concrete collection; the one of WFS is the usual one
+		if (gml3)
+			writer.writeStartElement("gml", "FeatureCollection", NAMESPACE_GML);
+		else
+			writer.writeStartElement("wfs", "FeatureCollection", NAMESPACE_WFS);
+		writer.writeNamespace("gml", NAMESPACE_GML);
+		if (!gml3)
+			writer.writeNamespace("wfs", NAMESPACE_WFS);
+		writer.writeNamespace(prefix, namespace);
+		// also used to write the missing values as nil
+		writer.writeNamespace("xsi", NAMESPACE_XSI);
+		if (schemaLocation != null) {
+			writer.writeAttribute("xsi", NAMESPACE_XSI, "schemaLocation", namespace+" "+schemaLocation);
+		}
+		writer.writeCharacters("\n");
+	}
+
+	private void startGML(String element) throws XMLStreamException {
+		writer.writeStartElement("gml", element, NAMESPACE_GML);
+	}
+
+	/**
+	 * Returns a valid XML identifier (NCName) for this row key: 
+	 * prefixed with "fid-", and with the characters not allowed replaced by '_'. 
+	 */
+	public static String toFeatureId(String key) {
+		StringBuilder sb = new StringBuilder(key.length()+4);
+		sb.append("fid-");
+		for (int i=0; i<key.length(); i++) {
+			final char c = key.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') 
+					|| c == '-' || c == '_' || c == '.')
+				sb.append(c);
+			else
+				sb.append('_');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the feature member of this row, with the geometry already decoded from the row.
+	 * An empty geometry is written as a nil element.
+	 */
+	public void write(DataRow row, Geometry geom) throws XMLStreamException {
+
+		startGML("featureMember");
+		writer.writeStartElement(prefix, typeName, namespace);
+		final String id = toFeatureId(row.getKey().getString());
+		if (gml3)
+			writer.writeAttribute("gml", NAMESPACE_GML, "id", id);
+		else
+			writer.writeAttribute("fid", id);
+
+		if (geom == null || geom.isEmpty()) {
+			// an empty geometry such as <gml:Point/> is not valid; written as nil like missing values
+			writer.writeEmptyElement(prefix, geometryName, namespace);
+			writer.writeAttribute("xsi", NAMESPACE_XSI, "nil", "true");
+		} else {
+			writer.writeStartElement(prefix, geometryName, namespace);
+			hasZ = SpatialUtils.hasZ(geom);
+			writeGeometry(geom, true);
+			writer.writeEndElement();
+		}
+
+		int colId = 0;
+		for (int i=0; i<row.getNumCells(); i++) {
+			if (i == idxColGeom)
+				continue;
+			final DataTableToGeotoolsMapper mapper = mappers.get(colId++);
+			final DataCell cell = row.getCell(i);
+			if (cell.isMissing()) {
+				// an empty element is not a valid number; the properties of the schema are nillable
+				writer.writeEmptyElement(prefix, mapper.getName(), namespace);
+				writer.writeAttribute("xsi", NAMESPACE_XSI, "nil", "true");
+			} else {
+				writer.writeStartElement(prefix, mapper.getName(), namespace);
+				writer.writeCharacters(mapper.getValueNoNull(cell).toString());
+				writer.writeEndElement();
+			}
+		}
+
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+	}
+
+	/**
+	 * Writes a geometry; the Coordinate Reference System is only declared on the top geometry
+	 */
+	protected void writeGeometry(Geometry geom, boolean top) throws XMLStreamException {
+
+		if (geom instanceof Point) {
+			startGeometry("Point", top);
+			writeCoordinates(((Point)geom).getCoordinateSequence(), true);
+			writer.writeEndElement();
+		} else if (geom instanceof LineString) {
+			startGeometry("LineString", top);
+			writeCoordinates(((LineString)geom).getCoordinateSequence(), false);
+			writer.writeEndElement();
+		} else if (geom instanceof Polygon) {
+			final Polygon polygon = (Polygon)geom;
+			startGeometry("Polygon", top);
+			if (!polygon.isEmpty()) {
+				writeRing(gml3 ? "exterior" : "outerBoundaryIs", polygon.getExteriorRing());
+				for (int i=0; i<polygon.getNumInteriorRing(); i++)
+					writeRing(gml3 ? "interior" : "innerBoundaryIs", polygon.getInteriorRingN(i));
+			}
+			writer.writeEndElement();
+		} else if (geom instanceof MultiPoint) {
+			writeMembers(geom, "MultiPoint", "pointMember", top);
+		} else if (geom instanceof MultiLineString) {
+			if (gml3)
+				writeMembers(geom, "MultiCurve", "curveMember", top);
+			else
+				writeMembers(geom, "MultiLineString", "lineStringMember", top);
+		} else if (geom instanceof MultiPolygon) {
+			if (gml3)
+				writeMembers(geom, "MultiSurface", "surfaceMember", top);
+			else
+				writeMembers(geom, "MultiPolygon", "polygonMember", top);
+		} else if (geom instanceof GeometryCollection) {
+			writeMembers(geom, "MultiGeometry", "geometryMember", top);
+		} else {
+			throw new IllegalArgumentException("unable to write in GML the geometry type "+geom.getGeometryType());
+		}
+	}
+
+	private void startGeometry(String element, boolean top) throws XMLStreamException {
+		startGML(element);
+		if (top && srsName != null)
+			writer.writeAttribute("srsName", srsName);
+	}
+
+	private void writeRing(String element, LineString ring) throws XMLStreamException {
+		startGML(element);
+		startGML("LinearRing");
+		writeCoordinates(ring.getCoordinateSequence(), false);
+		writer.writeEndElement();
+		writer.writeEndElement();
+	}
+
+	private void writeMembers(Geometry geom, String element, String member, boolean top) throws XMLStreamException {
+		startGeometry(element, top);
+		for (int i=0; i<geom.getNumGeometries(); i++) {
+			// the empty members cannot be written as valid GML
+			if (geom.getGeometryN(i).isEmpty())
+				continue;
+			startGML(member);
+			writeGeometry(geom.getGeometryN(i), false);
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes the coordinates as gml:pos or gml:posList in GML 3,
+	 * or as gml:coordinates in GML 2
+	 */
+	protected void writeCoordinates(CoordinateSequence seq, boolean single) throws XMLStreamException {
+
+		if (seq.size() == 0)
+			return;
+
+		final char ordinateSeparator = gml3 ? ' ' : ',';
+
+		StringBuilder sb = new StringBuilder(seq.size() * 24);
+		for (int i=0; i<seq.size(); i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(seq.getX(i)).append(ordinateSeparator).append(seq.getY(i));
+			if (hasZ)
+				sb.append(ordinateSeparator).append(seq.getOrdinate(i, CoordinateSequence.Z));
+		}
+
+		if (!gml3) {
+			startGML("coordinates");
+		} else if (single) {
+			startGML("pos");
+		} else {
+			startGML("posList");
+			if (hasZ)
+				writer.writeAttribute("srsDimension", "3");
+		}
+		writer.writeCharacters(sb.toString());
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Ends the FeatureCollection; the underlying stream is not closed.
+	 */
+	public void close() throws XMLStreamException {
+
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+		writer.flush();
+		writer.close();
+	}
+
+}
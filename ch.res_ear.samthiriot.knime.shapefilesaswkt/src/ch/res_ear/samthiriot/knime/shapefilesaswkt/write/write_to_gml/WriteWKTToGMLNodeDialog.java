@@ -46,12 +46,10 @@ public class WriteWKTToGMLNodeDialog extends DefaultNodeSettingsPane {
         		JFileChooser.SAVE_DIALOG,
         		false
         		));  
-        SettingsModelString modelVersion = new SettingsModelString("version", "GML v3");
-        modelVersion.setEnabled(false);
         addDialogComponent(new DialogComponentStringSelection(
-        		modelVersion,
+        		new SettingsModelString("version", "GML v3"),
         		"version",
-        		//"GML v2",
+        		"GML v2",
         		"GML v3"
         		));
 
@@ -10,6 +10,7 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_gml;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -17,7 +18,6 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.InvalidPathException;
-import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -25,11 +25,8 @@ import java.util.stream.Collectors;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.xmlbeans.impl.common.XMLChar;
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.wfs.GML;
 import org.geotools.wfs.GML.Version;
 import org.knime.core.data.DataCell;
@@ -47,11 +44,9 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.util.FileUtil;
-import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
-import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -76,6 +71,17 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
     private final SettingsModelString m_version = new SettingsModelString("version", "GML v3");
     protected final SettingsModelBoolean m_writeSchema = new SettingsModelBoolean("write_schema", true);
 
+    /**
+     * Namespace of the features, declared in the schema
+     */
+    private static final String NAMESPACE_PREFIX = "location";
+    private static final String NAMESPACE = "location.xsd";
+    
+    /**
+     * Name of the elements of the features
+     */
+    private static final String TYPE_NAME = "entities";
+
 	/**
 	 * Constructor for the node model.
 	 */
@@ -95,10 +101,6 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
 
 		final BufferedDataTable inputPopulation = inData[0];
     	
-		if (inputPopulation.size() > Integer.MAX_VALUE)
-			throw new IllegalArgumentException(
-					"sorry, we can not store more than "+Integer.MAX_VALUE+" with this node.");
-
     	if (!SpatialUtils.hasGeometry(inputPopulation.getDataTableSpec()))
     		throw new IllegalArgumentException(
     				"the input table contains no spatial data (no column named "+SpatialUtils.GEOMETRY_COLUMN_NAME+")");
@@ -107,8 +109,14 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
     		throw new IllegalArgumentException(
     				"the input table contains spatial data but no Coordinate Reference System");
     	    	
-    	
-    	//CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputPopulation.getSpec());
+        final String version = m_version.getStringValue(); 
+        final boolean gml3;
+        if ("GML v2".equals(version)) 
+        	gml3 = false;
+        else if ("GML v3".equals(version))
+        	gml3 = true;
+        else 
+        	throw new InvalidSettingsException("unknown GML version "+version);
     	
     	URL url;
 		try {
@@ -121,29 +129,8 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
         
     	File file = FileUtil.getFileFromURL(url);
         
-    	// copy the input population into a datastore
-    	exec.setMessage("encoding entities");
-        
-		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-        builder.setName("entities");
-        
-        // mandatory; the target CRS is always the same for KML
-        CoordinateReferenceSystem crs = DefaultGeographicCRS.WGS84; 
-        builder.setCRS(crs);
-
-        //builder.setCRS(crsOrig); 
-        
-        // TODO improve: create different files for different geom types (?)
-        Class<?> geomClassToBeStored = SpatialUtils.detectGeometryClassFromData(	
-        										inputPopulation, 
-        										SpatialUtils.GEOMETRY_COLUMN_NAME);
-        
-        // add attributes in order
-        builder.add(
-        		SpatialUtils.GEOMETRY_COLUMN_NAME, 
-        		geomClassToBeStored
-        		);
-        
+    	final CoordinateReferenceSystem crs = SpatialUtils.decodeCRS(inputPopulation.getDataTableSpec());
+    	
         // create mappers
     	NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
 
@@ -153,30 +140,45 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
         												.filter(colspec -> !SpatialUtils.GEOMETRY_COLUMN_NAME.equals((colspec.getName())))
         												.map(colspec -> new GMLDataTableToGeotoolsMapper(warnings, colspec))
         												.collect(Collectors.toList());
-        // add those to the builder type
-        mappers.forEach(mapper -> mapper.addAttributeForSpec(builder));
-        
-        // build the type
-        final SimpleFeatureType type = builder.buildFeatureType();
     
         // identify the id of the geom column, that we will not use as a standard one
         final int idxColGeom = inputPopulation.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
 		
+        String filenameSchema = null;
+        if (m_writeSchema.getBooleanValue()) {
+	        exec.setMessage("writing the schema");
+	        filenameSchema = FilenameUtils.removeExtension(file.getAbsolutePath())+".xsd";
+	        getLogger().info("writing the GML schema into "+filenameSchema);
+	        writeSchema(inputPopulation, mappers, crs, gml3, filenameSchema);
+        }
+        
         // prepare classes to create Geometries from WKT
         GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory( null );
-        //geomFactory.getPrecisionModel().
         WKTReader reader = new WKTReader(geomFactory);
         
-        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
-
-        // the buffer of spatial features to be added soon (it's quicker to add several lines than only one)
-		List<SimpleFeature> toStore = new ArrayList<>((int)inputPopulation.size());
-		
+        // write the entities as GML, as the rows are read
+        exec.setMessage("writing entities");
+        getLogger().info("writing the GML features into "+file);
+        final long total = inputPopulation.size();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
         CloseableRowIterator itRow = inputPopulation.iterator();
         try {
-	        int currentRow = 0;
+        	GMLStreamWriter writer = new GMLStreamWriter(
+        			os, 
+        			gml3, 
+        			NAMESPACE_PREFIX, 
+        			NAMESPACE, 
+        			filenameSchema == null ? null : FilenameUtils.getName(filenameSchema), 
+        			TYPE_NAME, 
+        			SpatialUtils.GEOMETRY_COLUMN_NAME, 
+        			SpatialUtils.getStringForCRS(crs), 
+        			idxColGeom, 
+        			mappers);
+        	
+	        long currentRow = 0;
 	        while (itRow.hasNext()) {
 	        	final DataRow row = itRow.next();
+	        	currentRow++;
 	        	
 	        	// process the geom column
 	        	final DataCell cellGeom = row.getCell(idxColGeom);
@@ -185,152 +187,72 @@ public class WriteWKTToGMLNodeModel extends NodeModel {
 	        		continue; // skip lines without geom
 	        	}
 	        	try {
-		
-		        	Geometry geom = reader.read(cellGeom.toString());
-		        	featureBuilder.add(geom);
-	
+	        		writer.write(row, SpatialUtils.readGeometry(cellGeom, reader));
 				} catch (ParseException e) {
 					e.printStackTrace();
 					throw new RuntimeException(e);
 				}
-	        	
-	        	int colId = 0;
-	        	for (int i=0; i<row.getNumCells(); i++) {
-	        		
-	        		if (i == idxColGeom) {
-	        			// skip the column with geom
-	        		} else {
-	        			// process as a standard column
-	        			featureBuilder.add(mappers.get(colId++).getValueNoNull(row.getCell(i)));
-	        		}
-	        	}
-	        	
-	        	// build this feature
-	            SimpleFeature feature = featureBuilder.buildFeature(row.getKey().toString());
-	            // add this feature to the buffer
-	            toStore.add(feature);
 	            
-	            if (currentRow % 10 == 0) {
-	        		exec.setProgress(0.4*(double)currentRow / inputPopulation.size(), "encoding entity "+currentRow);
+	            if (currentRow % 1000 == 0) {
+	        		exec.setProgress((double)currentRow / total, "writing entity "+currentRow);
 	        		exec.checkCanceled();
 	            }
-	            currentRow++;
-	            
 	        }
-	
-	
-	        // store last lines
-	        if (!toStore.isEmpty()) {
-	        }
-	        exec.setProgress(0.4);
-
+	        writer.close();
+	        
         } finally {
-        	if (itRow != null)
-        		itRow.close();
-        	
+        	itRow.close();
+        	os.close();
         }
 
-        // store geometries into a feature list
-    	exec.setMessage("storing entities");
-
-        ListFeatureCollection featureCollection = new ListFeatureCollection(type, toStore);
-
-        GML gml = null;
+        exec.setProgress(1);
         
-        javax.xml.namespace.QName qName;
-        org.geotools.xsd.Configuration config;
+        setWarningMessage(warnings.buildWarnings());
+
+        return new BufferedDataTable[]{};
         
-        final String version = m_version.getStringValue(); 
-        if ("GML v2".equals(version)) {
-            gml = new GML(Version.GML2);
-            gml.setLegacy(true);
-            //qName = org.geotools.gml2.GML._FeatureCollection;
-            //config = new org.geotools.gml2.GMLConfiguration();
-            qName = null;
-            config = null;
-            
-        } else if ("GML v3".equals(version)) {
-        	//configurationEncoder = new org.geotools.gml3.GMLConfiguration();
-        	//xmlspace = new org.geotools.gml3.GML();
-        	gml = new GML(Version.WFS1_1);
-        	gml.setNamespace("location", "location.xsd");
-        	
-            qName = org.geotools.gml3.GML.FeatureCollection;
-            config = new org.geotools.gml3.GMLConfiguration();
-            
-            // TODO 32 https://www.javatips.net/api/spatial_statistics_for_geotools_udig-master/uDig/org.locationtech.udig.processingtoolbox/src/org/locationtech/udig/processingtoolbox/tools/FormatTransformer.java
-            
-        } else {
-        	throw new InvalidSettingsException("unknown GML version "+version);
-        }
+	}
+	
+	/**
+	 * Writes the XSD schema describing the features.
+	 * Only the type of the features is built, so the schema is written 
+	 * without keeping the features in memory.
+	 */
+	protected void writeSchema(
+			BufferedDataTable inputPopulation, 
+			List<DataTableToGeotoolsMapper> mappers,
+			CoordinateReferenceSystem crs,
+			boolean gml3,
+			String filenameSchema) throws IOException {
+		
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName(TYPE_NAME);
+        builder.setCRS(crs);
+
+        // TODO improve: create different files for different geom types (?)
+        Class<?> geomClassToBeStored = SpatialUtils.detectGeometryClassFromData(	
+        										inputPopulation, 
+        										SpatialUtils.GEOMETRY_COLUMN_NAME);
         
+        // add attributes in order
+        builder.add(
+        		SpatialUtils.GEOMETRY_COLUMN_NAME, 
+        		geomClassToBeStored
+        		);
+        mappers.forEach(mapper -> mapper.addAttributeForSpec(builder));
+        final SimpleFeatureType type = builder.buildFeatureType();
         
-        org.geotools.xsd.Encoder encoder = null;
-        if (config != null) {
-        	encoder = new org.geotools.xsd.Encoder(config);
-            encoder.setIndenting(true);
-            encoder.setIndentSize(2);
-        }
-        //gml.setBaseURL(file.toURI().toURL());
+        GML gml = new GML(gml3 ? Version.WFS1_1 : Version.GML2);
+        gml.setNamespace(NAMESPACE_PREFIX, NAMESPACE);
         gml.setCoordinateReferenceSystem(crs);
-        final URL baseurl = file.getParentFile().toURI().toURL();
-        
-        String filenameSchema = null;
-        if (m_writeSchema.getBooleanValue()) {
-	        exec.setProgress(0.5, "writing the schema");
-	        filenameSchema = FilenameUtils.removeExtension(file.getAbsolutePath())+".xsd";
-	        getLogger().info("writing the GML schema into "+filenameSchema);
-	        FileOutputStream xsd = new FileOutputStream(filenameSchema);
-	        
-	        gml.setBaseURL(new URL("http://schemas.opengis.net"));
-
-	        try {
-		        gml.encode(xsd, type);
-		        
-		        // we use the WFS features to write the type. That's a bit weird but the official way does not work.
-		        //final javax.xml.namespace.QName typeQName = new javax.xml.namespace.QName(type.getName().getNamespaceURI(), type.getName().getLocalPart());
-		        //encoder.setNamespace("location", url.toExternalForm());
-		        //final javax.xml.namespace.QName typeQName = new javax.xml.namespace.QName(type.getName().getNamespaceURI(), type.getTypeName());
-		        
-		        //encoder.encode(type, typeQName, xsd);
+        gml.setBaseURL(new URL("http://schemas.opengis.net"));
 
-	        } finally {
-	        	xsd.close();
-	        }
-        }
-        
-        // write the entities as GML
-        exec.setProgress(0.6, "writing entities");
-        getLogger().info("writing the GML features into "+file);
-        OutputStream os = null;
+        FileOutputStream xsd = new FileOutputStream(filenameSchema);
         try {
-    		os = new FileOutputStream(file);
-
-    		if (config != null) {
-    			encoder.setSchemaLocation(baseurl.toExternalForm(), FilenameUtils.getName(filenameSchema));
-    			//featureCollection.getSchema().getCoordinateReferenceSystem()
-    			encoder.encode(featureCollection, qName, os);
-    		} else {
-    			if (filenameSchema != null)
-    	    		gml.setNamespace(baseurl.toExternalForm(), FilenameUtils.getName(filenameSchema));
-    			
-    			gml.encode(os, featureCollection);
-    			
-    		}
-            
+	        gml.encode(xsd, type);
         } finally {
-        	if (os != null) {
-        		os.close();
-        	}
-            
+        	xsd.close();
         }
-
-        exec.setProgress(1);
-        
-        setWarningMessage(warnings.buildWarnings());
-
-        return new BufferedDataTable[]{};
-        
 	}
 
 	/**
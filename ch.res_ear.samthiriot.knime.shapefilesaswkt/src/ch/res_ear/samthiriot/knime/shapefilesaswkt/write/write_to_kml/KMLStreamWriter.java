@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2019 EIfER[1] (European Institute for Energy Research).
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU GENERAL PUBLIC LICENSE
+ * which accompanies this distribution, and is available at
+ * https://www.gnu.org/licenses/gpl-3.0.html
+ *
+ * Contributors:
+ *     Samuel Thiriot - original version and contributions
+ *******************************************************************************/
+package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_kml;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.knime.core.data.DataRow;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
+import ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_gml.GMLStreamWriter;
+
+/**
+ * Writes KNIME rows as KML Placemarks with a StAX writer, as the rows arrive,
+ * so only the current Placemark is in memory.
+ * The columns named name and description become the name and description
+ * of the Placemarks; in KML 2.2, the other columns are written as ExtendedData.
+ *
+ * The KML elements are either prefixed with kml:, or written without prefix
+ * in the default namespace, which is what most programs expect.
+ *
+ * @author Samuel Thiriot
+ */
+public class KMLStreamWriter {
+
+	public static final String NAMESPACE_KML22 = "http://www.opengis.net/kml/2.2";
+	public static final String NAMESPACE_KML21 = "http://earth.google.com/kml/2.1";
+
+	private static final String PREFIX = "kml";
+
+	private final XMLStreamWriter writer;
+
+	private final String namespace;
+	private final String prefix;
+	private final boolean writeAttributes;
+
+	private final int idxColGeom;
+	private final List<DataTableToGeotoolsMapper> mappers;
+
+	/**
+	 * Indices of the columns written as name and description, or -1
+	 */
+	private final int idxColName;
+	private final int idxColDescription;
+
+	/**
+	 * Starts the document.
+	 *
+	 * @param os the stream to write into, which is not closed by this writer
+	 * @param kml22 true to write KML 2.2 with the attributes, false to write KML 2.1
+	 * @param removeNamespace true to write the elements without prefix
+	 * @param idxColGeom the index of the geometry in the KNIME rows
+	 * @param mappers the mappers of the other KNIME columns, in order
+	 * @throws XMLStreamException
+	 */
+	public KMLStreamWriter(
+			OutputStream os,
+			boolean kml22,
+			boolean removeNamespace,
+			int idxColGeom,
+			List<DataTableToGeotoolsMapper> mappers) throws XMLStreamException {
+
+		this.namespace = kml22 ? NAMESPACE_KML22 : NAMESPACE_KML21;
+		this.prefix = removeNamespace ? "" : PREFIX;
+		this.writeAttributes = kml22;
+		this.idxColGeom = idxColGeom;
+		this.mappers = mappers;
+
+		int name = -1;
+		int description = -1;
+		for (int i=0; i<mappers.size(); i++) {
+			if ("name".equalsIgnoreCase(mappers.get(i).getName()) && name < 0)
+				name = i;
+			else if ("description".equalsIgnoreCase(mappers.get(i).getName()) && description < 0)
+				description = i;
+		}
+		this.idxColName = name;
+		this.idxColDescription = description;
+
+		writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeCharacters("\n");
+		writer.writeStartElement(prefix, "kml", namespace);
+		if (removeNamespace)
+			writer.writeDefaultNamespace(namespace);
+		else
+			writer.writeNamespace(PREFIX, namespace);
+		writer.writeCharacters("\n");
+		start("Document");
+		writer.writeCharacters("\n");
+	}
+
+	private void start(String element) throws XMLStreamException {
+		writer.writeStartElement(prefix, element, namespace);
+	}
+
+	private void element(String element, String text) throws XMLStreamException {
+		start(element);
+		writer.writeCharacters(text);
+		writer.writeEndElement();
+	}
+
+	/**
+	 * Writes the Placemark of this row, with the geometry already decoded from the row
+	 */
+	public void write(DataRow row, Geometry geom) throws XMLStreamException {
+
+		start("Placemark");
+		// the id should be a valid XML identifier, which row keys like "Row 0" are not
+		writer.writeAttribute("id", GMLStreamWriter.toFeatureId(row.getKey().getString()));
+
+		if (idxColName >= 0)
+			element("name", getValue(row, idxColName));
+		if (idxColDescription >= 0)
+			element("description", getValue(row, idxColDescription));
+
+		if (writeAttributes) {
+			start("ExtendedData");
+			for (int colId=0; colId<mappers.size(); colId++) {
+				if (colId == idxColName || colId == idxColDescription)
+					continue;
+				start("Data");
+				writer.writeAttribute("name", mappers.get(colId).getName());
+				element("value", getValue(row, colId));
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+		}
+
+		writeGeometry(geom);
+
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+	}
+
+	/**
+	 * Returns as text the value of the column of this mapper
+	 */
+	private String getValue(DataRow row, int colId) {
+		final int idxCell = colId < idxColGeom ? colId : colId + 1;
+		return mappers.get(colId).getValueNoNull(row.getCell(idxCell)).toString();
+	}
+
+	protected void writeGeometry(Geometry geom) throws XMLStreamException {
+
+		if (geom instanceof Point) {
+			start("Point");
+			writeCoordinates(((Point)geom).getCoordinateSequence());
+			writer.writeEndElement();
+		} else if (geom instanceof LinearRing) {
+			start("LinearRing");
+			writeCoordinates(((LinearRing)geom).getCoordinateSequence());
+			writer.writeEndElement();
+		} else if (geom instanceof LineString) {
+			start("LineString");
+			writeCoordinates(((LineString)geom).getCoordinateSequence());
+			writer.writeEndElement();
+		} else if (geom instanceof Polygon) {
+			final Polygon polygon = (Polygon)geom;
+			start("Polygon");
+			if (!polygon.isEmpty()) {
+				start("outerBoundaryIs");
+				writeGeometry(polygon.getExteriorRing());
+				writer.writeEndElement();
+				for (int i=0; i<polygon.getNumInteriorRing(); i++) {
+					start("innerBoundaryIs");
+					writeGeometry(polygon.getInteriorRingN(i));
+					writer.writeEndElement();
+				}
+			}
+			writer.writeEndElement();
+		} else if (geom instanceof GeometryCollection) {
+			start("MultiGeometry");
+			for (int i=0; i<geom.getNumGeometries(); i++)
+				writeGeometry(geom.getGeometryN(i));
+			writer.writeEndElement();
+		} else {
+			throw new IllegalArgumentException("unable to write in KML the geometry type "+geom.getGeometryType());
+		}
+	}
+
+	/**
+	 * Formats an ordinate as a plain decimal number, as KML readers 
+	 * do not all accept the scientific notation (1.0E-4) of Double.toString
+	 */
+	protected static String formatOrdinate(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return Double.toString(value);
+		return BigDecimal.valueOf(value).toPlainString();
+	}
+
+	/**
+	 * Writes the coordinates as "x,y[,z] x,y[,z] ..."
+	 */
+	protected void writeCoordinates(CoordinateSequence seq) throws XMLStreamException {
+
+		StringBuilder sb = new StringBuilder(seq.size() * 24);
+		for (int i=0; i<seq.size(); i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(formatOrdinate(seq.getX(i))).append(',').append(formatOrdinate(seq.getY(i)));
+			if (seq.hasZ()) {
+				final double z = seq.getOrdinate(i, CoordinateSequence.Z);
+				if (!Double.isNaN(z))
+					sb.append(',').append(formatOrdinate(z));
+			}
+		}
+		element("coordinates", sb.toString());
+	}
+
+	/**
+	 * Ends the document; the underlying stream is not closed.
+	 */
+	public void close() throws XMLStreamException {
+
+		writer.writeEndElement(); // Document
+		writer.writeCharacters("\n");
+		writer.writeEndElement(); // kml
+		writer.writeEndDocument();
+		writer.flush();
+		writer.close();
+	}
+
+}
@@ -55,6 +55,11 @@ public class WriteWKTToKMLNodeDialog extends DefaultNodeSettingsPane {
         		new SettingsModelBoolean("useKMLv22", true), 
         		"write attributes and use KML specification v2.2")
         		);
+        
+        addDialogComponent(new DialogComponentBoolean(
+        		new SettingsModelBoolean("kmz", false), 
+        		"compress as KMZ")
+        		);
     }
 }
 
@@ -10,7 +10,7 @@
  *******************************************************************************/
 package ch.res_ear.samthiriot.knime.shapefilesaswkt.write.write_to_kml;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -18,22 +18,12 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.InvalidPathException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.xml.namespace.QName;
-
-import org.geotools.data.collection.ListFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.kml.KMLConfiguration;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.xsd.Configuration;
-import org.geotools.xsd.Encoder;
 import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
@@ -49,13 +39,9 @@ import org.knime.core.node.NodeSettingsWO;
 import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.util.FileUtil;
-import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.DataTableToGeotoolsMapper;
 import ch.res_ear.samthiriot.knime.shapefilesaswkt.NodeWarningWriter;
@@ -77,6 +63,7 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
     private final SettingsModelString m_file = new SettingsModelString("filename", null);
     private final SettingsModelBoolean m_removeKMLnamespace = new SettingsModelBoolean("removeNamespace", true);
     private final SettingsModelBoolean m_useKML22 = new SettingsModelBoolean("useKMLv22", true);
+    private final SettingsModelBoolean m_kmz = new SettingsModelBoolean("kmz", false);
     
 	/**
 	 * Constructor for the node model.
@@ -97,20 +84,13 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
 
 		final BufferedDataTable inputPopulation = inData[0];
     	
-		if (inputPopulation.size() > Integer.MAX_VALUE)
-			throw new IllegalArgumentException("sorry, we can not store more than "+Integer.MAX_VALUE+" with this node.");
-
     	if (!SpatialUtils.hasGeometry(inputPopulation.getDataTableSpec()))
     		throw new IllegalArgumentException("the input table contains no spatial data (no column named "+SpatialUtils.GEOMETRY_COLUMN_NAME+")");
     	
     	if (!SpatialUtils.hasCRS(inputPopulation.getDataTableSpec()))
     		throw new IllegalArgumentException("the input table contains spatial data but no Coordinate Reference System");
     	    	
-    	final boolean paramRemoveKMLnamespace = m_removeKMLnamespace.getBooleanValue();
-    	
-    	final boolean zipResult = m_file.getStringValue().toLowerCase().endsWith(".kmz");
-    	
-    	//CoordinateReferenceSystem crsOrig = SpatialUtils.decodeCRS(inputPopulation.getSpec());
+    	final boolean zipResult = m_kmz.getBooleanValue() || m_file.getStringValue().toLowerCase().endsWith(".kmz");
     	
     	URL url;
 		try {
@@ -123,29 +103,6 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
         
     	File file = FileUtil.getFileFromURL(url);
         
-    	// copy the input population into a datastore
-    	exec.setMessage("encoding entities");
-        
-		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
-        builder.setName("entities");
-        
-        // mandatory; the target CRS is always the same for KML
-        CoordinateReferenceSystem crs = DefaultGeographicCRS.WGS84; 
-        builder.setCRS(crs);
-
-        //builder.setCRS(crsOrig); 
-        
-        // TODO improve: create different files for different geom types (?)
-        Class<?> geomClassToBeStored = SpatialUtils.detectGeometryClassFromData(	
-        										inputPopulation, 
-        										SpatialUtils.GEOMETRY_COLUMN_NAME);
-        
-        // add attributes in order
-        builder.add(
-        		SpatialUtils.GEOMETRY_COLUMN_NAME, 
-        		geomClassToBeStored
-        		);
-        
         // create mappers
     	NodeWarningWriter warnings = new NodeWarningWriter(getLogger());
 
@@ -155,11 +112,6 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
         												.filter(colspec -> !SpatialUtils.GEOMETRY_COLUMN_NAME.equals((colspec.getName())))
         												.map(colspec -> new DataTableToGeotoolsMapper(warnings, colspec))
         												.collect(Collectors.toList());
-        // add those to the builder type
-        mappers.forEach(mapper -> mapper.addAttributeForSpec(builder));
-        
-        // build the type
-        final SimpleFeatureType type = builder.buildFeatureType();
     
         // identify the id of the geom column, that we will not use as a standard one
         final int idxColGeom = inputPopulation.getDataTableSpec().findColumnIndex(SpatialUtils.GEOMETRY_COLUMN_NAME);
@@ -168,16 +120,31 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
         GeometryFactory geomFactory = JTSFactoryFinder.getGeometryFactory( null );
         WKTReader reader = new WKTReader(geomFactory);
         
-        SimpleFeatureBuilder featureBuilder = new SimpleFeatureBuilder(type);
-
-        // the buffer of spatial features to be added soon (it's quicker to add several lines than only one)
-		List<SimpleFeature> toStore = new ArrayList<>((int)inputPopulation.size());
-		
+    	exec.setMessage("writing entities");
+    	
+    	// the placemarks are written as the rows are read
+    	final long total = inputPopulation.size();
+    	ZipOutputStream zos = null;
+    	OutputStream os = new FileOutputStream(file);
+    	if (zipResult) {
+    		zos = new ZipOutputStream(os);
+    		zos.putNextEntry(new ZipEntry("doc.kml"));
+    		os = zos;
+    	}
+    	os = new BufferedOutputStream(os, 1 << 16);
         CloseableRowIterator itRow = inputPopulation.iterator();
         try {
-	        int currentRow = 0;
+        	KMLStreamWriter writer = new KMLStreamWriter(
+        			os, 
+        			m_useKML22.getBooleanValue(), 
+        			m_removeKMLnamespace.getBooleanValue(), 
+        			idxColGeom, 
+        			mappers);
+        	
+	        long currentRow = 0;
 	        while (itRow.hasNext()) {
 	        	final DataRow row = itRow.next();
+	        	currentRow++;
 	        	
 	        	// process the geom column
 	        	final DataCell cellGeom = row.getCell(idxColGeom);
@@ -186,102 +153,25 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
 	        		continue; // skip lines without geom
 	        	}
 	        	try {
-		
-		        	Geometry geom = reader.read(cellGeom.toString());
-		        	featureBuilder.add(geom);
-	
+	        		writer.write(row, SpatialUtils.readGeometry(cellGeom, reader));
 				} catch (ParseException e) {
 					e.printStackTrace();
 					throw new RuntimeException(e);
 				}
-	        	
-	        	int colId = 0;
-	        	for (int i=0; i<row.getNumCells(); i++) {
-	        		
-	        		if (i == idxColGeom) {
-	        			// skip the column with geom
-	        		} else {
-	        			// process as a standard column
-	        			featureBuilder.add(mappers.get(colId++).getValueNoNull(row.getCell(i)));
-	        		}
-	        	}
-	        	
-	        	// build this feature
-	            SimpleFeature feature = featureBuilder.buildFeature(null);
-	            // add this feature to the buffer
-	            toStore.add(feature);
 	            
-	            if (currentRow % 10 == 0) {
-	        		exec.setProgress(0.4*(double)currentRow / inputPopulation.size(), "encoding entity "+currentRow);
+	            if (currentRow % 1000 == 0) {
+	        		exec.setProgress((double)currentRow / total, "writing entity "+currentRow);
 	        		exec.checkCanceled();
 	            }
-	            currentRow++;
-	            
-	        }
-	
-	
-	        // store last lines
-	        if (!toStore.isEmpty()) {
 	        }
-	        exec.setProgress(0.4);
+	        writer.close();
+	        os.flush();
+	        if (zos != null)
+	        	zos.closeEntry();
 
         } finally {
-        	if (itRow != null)
-        		itRow.close();
-        	
-        }
-
-        // store geometries into a feature list
-    	exec.setMessage("storing entities");
-
-        ListFeatureCollection featureCollection = new ListFeatureCollection(type, toStore);
-
-        QName KMLspace = null;
-        Configuration configurationEncoder = null;
-        if (m_useKML22.getBooleanValue()) {
-        	KMLspace = org.geotools.kml.v22.KML.kml;
-        	configurationEncoder = new org.geotools.kml.v22.KMLConfiguration();
-        } else {
-        	KMLspace = org.geotools.kml.KML.kml;
-        	configurationEncoder = new KMLConfiguration();
-        }
-    	
-        Encoder encoder = new Encoder(configurationEncoder);
-        encoder.setIndenting(true);
-        
-        exec.setProgress(0.5, "writing entities");
-        
-        OutputStream os = null;
-        try {
-        	if (zipResult) {
-        		@SuppressWarnings("resource")
-				ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
-        		ZipEntry e = new ZipEntry("doc.kml");
-        		zos.putNextEntry(e);
-        		os = zos;
-        	} else 
-        		os = new FileOutputStream(file);
-        	
-	        if (paramRemoveKMLnamespace) {
-	        	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	            try {
-	              encoder.encode(featureCollection, KMLspace, baos);
-	              String out = baos.toString().replaceAll("kml:", "");
-	              os.write(out.getBytes());
-	            } catch (Exception e) {
-	              throw new RuntimeException(e);
-	            } 
-	        } else {
-	        	encoder.encode(featureCollection, KMLspace, os);
-	        }
-        } finally {
-        	if (os != null) {
-        		if (zipResult) {
-            		((ZipOutputStream)os).closeEntry();
-            	}
-        		os.close();
-        	}
-            
+        	itRow.close();
+        	os.close();
         }
         exec.setProgress(1);
         
@@ -330,6 +220,7 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
     	m_file.saveSettingsTo(settings);
     	m_removeKMLnamespace.saveSettingsTo(settings);
     	m_useKML22.saveSettingsTo(settings);
+    	m_kmz.saveSettingsTo(settings);
     }
 
     /**
@@ -343,6 +234,9 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
     	m_file.loadSettingsFrom(settings);
     	m_removeKMLnamespace.loadSettingsFrom(settings);
     	m_useKML22.loadSettingsFrom(settings);
+    	// added later; older workflows detect KMZ from the extension
+    	if (settings.containsKey(m_kmz.getKey()))
+    		m_kmz.loadSettingsFrom(settings);
     }
 
     /**
@@ -355,6 +249,8 @@ public class WriteWKTToKMLNodeModel extends NodeModel {
     	m_file.validateSettings(settings);
     	m_removeKMLnamespace.validateSettings(settings);
     	m_useKML22.validateSettings(settings);
+    	if (settings.containsKey(m_kmz.getKey()))
+    		m_kmz.validateSettings(settings);
     }
     
     /**
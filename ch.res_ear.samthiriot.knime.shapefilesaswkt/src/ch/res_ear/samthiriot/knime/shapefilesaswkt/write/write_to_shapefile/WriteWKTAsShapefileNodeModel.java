@@ -199,7 +199,7 @@ public class WriteWKTAsShapefileNodeModel extends NodeModel {
 	        	}
 	        	try {
 		
-		        	Geometry geom = reader.read(cellGeom.toString());
+		        	Geometry geom = SpatialUtils.readGeometry(cellGeom, reader);
 		        	featureBuilder.add(geom);
 	
 				} catch (ParseException e) {